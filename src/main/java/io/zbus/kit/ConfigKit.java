@@ -112,6 +112,11 @@ public class ConfigKit {
 		return Integer.valueOf(value);
 	}
 	
+	public static long valueOf(String value, long defaultValue){
+		if(StrKit.isEmpty(value)) return defaultValue;
+		return Long.valueOf(value.trim());
+	}
+	
 	public static boolean valueOf(String value, boolean defaultValue){
 		if(StrKit.isEmpty(value)) return defaultValue;
 		return Boolean.valueOf(value);
@@ -7,6 +7,8 @@ public class ConsumeCtrl implements Cloneable {
 	private Long offset;    
 	
 	private Integer consumeWindow; 
+	
+	private Integer credit; //push mode if set, messages in flight granted to server
 
 	private long consumeTimeout = 10000;
 	
@@ -19,6 +21,7 @@ public class ConsumeCtrl implements Cloneable {
 		consumeGroup = msg.getConsumeGroup();  
 		offset = msg.getOffset(); 
 		consumeWindow = msg.getConsumeWindow();
+		credit = msg.getCredit();
 	}
 	
 	public void writeToMessage(Message msg){
@@ -26,6 +29,7 @@ public class ConsumeCtrl implements Cloneable {
 		msg.setConsumeGroup(this.consumeGroup);    
 		msg.setOffset(this.offset);
 		msg.setConsumeWindow(this.consumeWindow);
+		msg.setCredit(this.credit);
 	}  
 	
 	public String getTopic() {
@@ -52,6 +56,14 @@ public class ConsumeCtrl implements Cloneable {
 		this.consumeWindow = consumeWindow;
 	} 
 
+	public Integer getCredit() {
+		return credit;
+	}
+
+	public void setCredit(Integer credit) {
+		this.credit = credit;
+	} 
+
 	public long getConsumeTimeout() {
 		return consumeTimeout;
 	}
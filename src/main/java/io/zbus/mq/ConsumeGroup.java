@@ -15,6 +15,7 @@ public class ConsumeGroup implements Cloneable {
 	
 	private Integer ackWindow;
 	private Long ackTimeout; 
+	private Integer maxRetry; //timed out messages retried more are moved to dead letter topic, 0 for unlimited
 	
 	public ConsumeGroup(){
 		
@@ -35,6 +36,7 @@ public class ConsumeGroup implements Cloneable {
 		mask = msg.getGroupMask();    
 		ackWindow = msg.getGroupAckWindow();
 		ackTimeout = msg.getGroupAckTimeout();
+		maxRetry = msg.getGroupMaxRetry();
 	}
 	
 	public void writeToMessage(Message msg){
@@ -48,6 +50,7 @@ public class ConsumeGroup implements Cloneable {
 		msg.setGroupMask(this.mask); 
 		msg.setGroupAckWindow(this.ackWindow);
 		msg.setGroupAckTimeout(this.ackTimeout);
+		msg.setGroupMaxRetry(this.maxRetry);
 	}
 	
 	public ConsumeGroup asTempBroadcastGroup(){
@@ -162,6 +165,15 @@ public class ConsumeGroup implements Cloneable {
 	public void setAckTimeout(long duration, TimeUnit unit) {
 		setAckTimeout(unit.toMillis(duration));
 	}
+	public Integer getMaxRetry() {
+		return maxRetry;
+	}
+	/**
+	 * @param maxRetry redeliveries allowed for a message not acked, then moved to topic's dead letter topic. 0 for unlimited
+	 */
+	public void setMaxRetry(Integer maxRetry) {
+		this.maxRetry = maxRetry;
+	}
 
 	@Override
 	public ConsumeGroup clone() { 
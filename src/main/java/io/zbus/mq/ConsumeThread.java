@@ -3,12 +3,17 @@ package io.zbus.mq;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.channels.ClosedByInterruptException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import io.zbus.kit.ThreadKit.ManualResetEvent;
 import io.zbus.kit.logging.Logger;
 import io.zbus.kit.logging.LoggerFactory;
 import io.zbus.mq.Protocol.ConsumeGroupInfo;
+import io.zbus.transport.Client.DisconnectedHandler;
+import io.zbus.transport.Session;
 
 public class ConsumeThread implements Closeable{
 	private static final Logger log = LoggerFactory.getLogger(ConsumeThread.class);  
@@ -24,6 +29,9 @@ public class ConsumeThread implements Closeable{
 	protected ManualResetEvent active = new ManualResetEvent(true); 
 	
 	protected RunningThread consumeThread;
+	protected final BlockingQueue<Message> buffer = new LinkedBlockingQueue<Message>(); //rest of messages of last pull, or pushed
+	protected volatile boolean subscribed = false; //push mode, subscription dropped by server on pause or disconnect
+	protected int taken = 0; //push mode, messages taken since credits last granted
 	 
 	public ConsumeThread(MqClient client, Topic topic, ConsumeGroup group, ConsumeCtrl consumeCtrl){
 		this.client = client;
@@ -49,6 +57,9 @@ public class ConsumeThread implements Closeable{
 		} 
 		this.client.setToken(token);
 		this.client.setInvokeTimeout(consumeCtrl.getConsumeTimeout());
+		if(consumeCtrl.getCredit() != null){
+			initPush();
+		}
 		
 		if(declareOnMissing){
 			try { 
@@ -65,8 +76,30 @@ public class ConsumeThread implements Closeable{
 		consumeThread.start();
 	}
 	
+	private void initPush() {
+		this.client.onMessage(new io.zbus.transport.MessageHandler<Message>() { 
+			@Override
+			public void handle(Message msg, Session session) throws IOException { //not reply of any request: pushed
+				if(msg.getStatus() == null || msg.getStatus() != 200) return;
+				if(msg.getConsumeGroup() == null) return;
+				msg.setId(msg.getOriginId());
+				msg.removeHeader(Protocol.ORIGIN_ID); 
+				buffer.offer(msg);
+			}
+		});
+		this.client.onDisconnected(new DisconnectedHandler() { 
+			@Override
+			public void onDisconnected() throws IOException {
+				log.warn("Disconnected, subscription of %s dropped", topic.getName());
+				subscribed = false; //subscribed again once reconnected
+				client.ensureConnectedAsync();
+			}
+		});
+	}
+	
 	public void pause(){
 		try {
+			subscribed = false;
 			client.unconsume(topic.getName(), consumeCtrl.getConsumeGroup()); //stop consuming in server side
 			consumeThread.running = false;
 			consumeThread.interrupt();
@@ -86,8 +119,15 @@ public class ConsumeThread implements Closeable{
 		}
 	}
 	
+	/**
+	 * Next message, from messages buffered by the last pull if any(consumeWindow > 1), or pulled from server
+	 */
 	public Message take() throws IOException, InterruptedException {  
-		Message res = null;
+		if(consumeCtrl.getCredit() != null){
+			return takePushed();
+		}
+		Message res = buffer.poll();
+		if(res != null) return restore(res);
 		try {  
 			res = client.consume(consumeCtrl); 
 			if (res == null) return res; 
@@ -102,31 +142,13 @@ public class ConsumeThread implements Closeable{
 			}
 			
 			if (status == 200) { 
-				
-				String method = res.getOriginMethod();
-				if(method != null){
-					res.setMethod(method);
-					res.removeHeader(Protocol.ORIGIN_METHOD);
-				}
-				
-				String originUrl = res.getOriginUrl();
-				if(originUrl != null){ 
-					res.removeHeader(Protocol.ORIGIN_URL);
-					res.setUrl(originUrl);   
-					res.setStatus(null);
-					
-					return res;
+				List<Message> messages = MqClient.unpack(res);
+				if(messages.isEmpty()) return null;
+				res = messages.get(0);
+				for(int i=1;i<messages.size();i++){
+					buffer.offer(messages.get(i));
 				}
-				
-				Integer originStatus = res.getOriginStatus();
-				if(originStatus != null){ 
-					res.removeHeader(Protocol.ORIGIN_STATUS);  
-					res.setStatus(originStatus);
-					return res;
-				}
-				
-				res.setStatus(null);//default to request type
-				return res;
+				return restore(res);
 			}
 			
 			throw new MqException(res.getBodyString());
@@ -135,6 +157,70 @@ public class ConsumeThread implements Closeable{
 		}   
 	} 
 	
+	/**
+	 * Push mode: subscribe if not yet, wait for messages pushed, credits granted back by half of credit taken
+	 * @return null if none pushed within 1 second
+	 */
+	protected Message takePushed() throws IOException, InterruptedException {  
+		int credit = consumeCtrl.getCredit();
+		if(!subscribed){
+			Message res = client.subscribe(topic.getName(), consumeCtrl.getConsumeGroup(), Math.max(credit - buffer.size(), 0));
+			if (res == null) return res; 
+			Integer status = res.getStatus();
+			if (status == 404) { 
+				if(!declareOnMissing){
+					throw new MqException(res.getBodyString());
+				}
+				ConsumeGroupInfo info = client.declareGroup(topic, consumeGroup);
+				consumeCtrl.setConsumeGroup(info.groupName); //update groupName
+				return null;
+			}
+			if (status != 200) {
+				throw new MqException(res.getBodyString());
+			}
+			subscribed = true;
+			taken = 0;
+		}
+		Message res = buffer.poll(1000, TimeUnit.MILLISECONDS);
+		if(res == null) return null;
+		taken++;
+		if(taken >= Math.max(credit/2, 1)){
+			client.grantCredit(topic.getName(), consumeCtrl.getConsumeGroup(), taken);
+			taken = 0;
+		}
+		return restore(res);
+	}
+	
+	/**
+	 * Restore request/response status of message delivered with consume-status 200
+	 */
+	private Message restore(Message res) {
+		String method = res.getOriginMethod();
+		if(method != null){
+			res.setMethod(method);
+			res.removeHeader(Protocol.ORIGIN_METHOD);
+		}
+		
+		String originUrl = res.getOriginUrl();
+		if(originUrl != null){ 
+			res.removeHeader(Protocol.ORIGIN_URL);
+			res.setUrl(originUrl);   
+			res.setStatus(null);
+			
+			return res;
+		}
+		
+		Integer originStatus = res.getOriginStatus();
+		if(originStatus != null){ 
+			res.removeHeader(Protocol.ORIGIN_STATUS);  
+			res.setStatus(originStatus);
+			return res;
+		}
+		
+		res.setStatus(null);//default to request type
+		return res;
+	} 
+	
 	
 	class RunningThread extends Thread {
 		volatile boolean running = true; 
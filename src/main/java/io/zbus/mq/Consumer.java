@@ -44,6 +44,7 @@ public class Consumer extends MqAdmin implements Closeable {
 		consumeCtrl.setTopic(topic.getName());
 		consumeCtrl.setConsumeGroup(consumeGroup.getGroupName());
 		consumeCtrl.setConsumeWindow(config.getConsumeWindow());
+		consumeCtrl.setCredit(config.getCredit());
 		consumeCtrl.setConsumeTimeout(config.getConsumeTimeout()); 
 		
 		if(consumeGroup.isAckEnabled() && consumeGroup.getAckTimeout() == null){ 
@@ -8,6 +8,7 @@ public class ConsumerConfig extends MqConfig {
 	protected Topic topic; 
 	protected ConsumeGroup consumeGroup; 
 	protected Integer consumeWindow; 
+	protected Integer credit;  //push mode if set: messages pushed by server as produced, at most credit in flight
 	protected long consumeTimeout = 120000;// 2 minutes  
 	
 	protected MessageHandler messageHandler;   
@@ -52,6 +53,18 @@ public class ConsumerConfig extends MqConfig {
 		this.consumeWindow = consumeWindow;
 	} 
 
+	public Integer getCredit() {
+		return credit;
+	} 
+
+	/**
+	 * Consume in push mode instead of pull: server pushes messages as produced, at most credit not yet handled
+	 * @param credit messages in flight, null to pull
+	 */
+	public void setCredit(Integer credit) {
+		this.credit = credit;
+	} 
+
 	public long getConsumeTimeout() {
 		return consumeTimeout;
 	} 
@@ -0,0 +1,190 @@
+package io.zbus.mq;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.zbus.kit.logging.Logger;
+import io.zbus.kit.logging.LoggerFactory;
+import io.zbus.transport.ResultCallback;
+
+/**
+ * Ids of messages recently produced to a topic, duplicates from producer retries are detected in O(1).
+ *
+ * Ids are kept as 64 bit hashes in primitive arrays: an open addressing table for lookup and a ring in arrival order
+ * for eviction, so memory is fixed by size(about 32 bytes per id) and no object is allocated per id.
+ * The oldest id is evicted when the window is full or older than time. Hash collision of different ids is
+ * negligible(~n/2^64), a collision only drops the later message as duplicate.
+ *
+ * An id is recorded only once its message is stored(end with stored=true), a failed produce leaves the id unknown
+ * so the producer's retry is stored. A retry arriving while the first attempt is still in flight waits for its result.
+ */
+public class DedupWindow {
+	private static final Logger log = LoggerFactory.getLogger(DedupWindow.class);
+	public static final int NEW = 0;     //caller stores the message, then calls end
+	public static final int STORED = 1;  //stored already
+	public static final int PENDING = 2; //first attempt in flight, waiter called with its result
+	
+	private final int size;
+	private final long time;    //milliseconds, 0 for count based eviction only
+	private final long[] table; //hashes, 0 for empty slot
+	private final int mask;
+	private final long[] ring;  //hashes in arrival order
+	private final long[] times; //arrival time of ring entries
+	private int head = 0;       //oldest entry of ring
+	private int count = 0;
+	private final Map<Long, List<ResultCallback<Boolean>>> pending = new HashMap<Long, List<ResultCallback<Boolean>>>(); //in flight, value null if no waiter
+
+	/**
+	 * @param size ids kept at most
+	 * @param time milliseconds ids kept at most, 0 to evict by size only
+	 */
+	public DedupWindow(int size, long time) {
+		if(size <= 0){
+			throw new IllegalArgumentException("size(" + size + ") should > 0");
+		}
+		this.size = size;
+		this.time = time;
+		int tableSize = Integer.highestOneBit(Math.max(size*2-1, 1)) << 1; //load factor <= 0.5
+		this.table = new long[tableSize];
+		this.mask = tableSize - 1;
+		this.ring = new long[size];
+		this.times = new long[size];
+	}
+
+	/**
+	 * Check id before the message is stored
+	 * @param id message id, null is always NEW
+	 * @param waiter called with result of the first attempt if PENDING
+	 * @return NEW: caller stores then calls end(id, stored), STORED or PENDING: caller stores nothing
+	 */
+	public synchronized int begin(String id, ResultCallback<Boolean> waiter) {
+		if(id == null) return NEW;
+		evictExpired(System.currentTimeMillis());
+
+		long hash = hash(id);
+		if(contains(hash)) return STORED;
+		if(pending.containsKey(hash)){
+			List<ResultCallback<Boolean>> waiters = pending.get(hash);
+			if(waiters == null){
+				waiters = new ArrayList<ResultCallback<Boolean>>(1);
+				pending.put(hash, waiters);
+			}
+			waiters.add(waiter);
+			return PENDING;
+		}
+		pending.put(hash, null);
+		return NEW;
+	}
+	
+	/**
+	 * Complete the attempt begun as NEW, id recorded only if stored
+	 * @param id message id passed to begin
+	 * @param stored true if message stored
+	 */
+	public void end(String id, boolean stored) {
+		if(id == null) return;
+		List<ResultCallback<Boolean>> waiters;
+		synchronized (this) {
+			long hash = hash(id);
+			waiters = pending.remove(hash);
+			if(stored){
+				add(hash, System.currentTimeMillis());
+			}
+		}
+		if(waiters == null) return;
+		for(ResultCallback<Boolean> waiter : waiters){
+			try{
+				waiter.onReturn(stored);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	private boolean contains(long hash) {
+		int i = (int)hash & mask;
+		while(table[i] != 0){
+			if(table[i] == hash) return true;
+			i = (i+1) & mask;
+		}
+		return false;
+	}
+
+	private void add(long hash, long now) {
+		evictExpired(now);
+		int i = (int)hash & mask;
+		while(table[i] != 0){
+			if(table[i] == hash) return;
+			i = (i+1) & mask;
+		}
+		if(count == size){
+			remove(ring[head]);
+			head = (head+1) % size;
+			count--;
+			i = (int)hash & mask; //probe again, removal shifts entries back
+			while(table[i] != 0){
+				i = (i+1) & mask;
+			}
+		}
+		table[i] = hash;
+		int tail = (head+count) % size;
+		ring[tail] = hash;
+		times[tail] = now;
+		count++;
+	}
+
+	public synchronized int count() {
+		return count;
+	}
+
+	private void evictExpired(long now) {
+		if(time <= 0) return;
+		while(count > 0 && now - times[head] > time){
+			remove(ring[head]);
+			head = (head+1) % size;
+			count--;
+		}
+	}
+
+	/**
+	 * Remove by backward shift, keeps probe chains without tombstones
+	 */
+	private void remove(long hash) {
+		int i = (int)hash & mask;
+		while(table[i] != hash){
+			if(table[i] == 0) return;
+			i = (i+1) & mask;
+		}
+		int j = i;
+		while(true){
+			j = (j+1) & mask;
+			if(table[j] == 0) break;
+			int home = (int)table[j] & mask;
+			//move j back to hole i if its home is not in (i, j] cyclically
+			if(i <= j ? (home <= i || home > j) : (home <= i && home > j)){
+				table[i] = table[j];
+				i = j;
+			}
+		}
+		table[i] = 0;
+	}
+
+	/**
+	 * FNV-1a over chars, then mixed by murmur3 finalizer, never 0
+	 */
+	static long hash(String id) {
+		long h = 0xcbf29ce484222325L;
+		for(int i=0;i<id.length();i++){
+			h ^= id.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == 0? 1 : h;
+	}
+}
@@ -11,25 +11,129 @@ import java.util.List;
 import io.zbus.kit.logging.Logger;
 import io.zbus.kit.logging.LoggerFactory;
 import io.zbus.mq.Protocol.ConsumeGroupInfo;
+import io.zbus.mq.disk.DiskConfig;
+import io.zbus.mq.disk.DiskConfig.FlushMode;
 import io.zbus.mq.disk.DiskMessage;
 import io.zbus.mq.disk.Index;
+import io.zbus.mq.disk.Index.BlockOffset;
+import io.zbus.mq.disk.QueueAppender;
+import io.zbus.mq.disk.QueueAppender.AppendCallback;
+import io.zbus.mq.disk.QueueAppender.AppendResult;
+import io.zbus.mq.disk.QueueDelay;
+import io.zbus.mq.disk.QueueDelay.ReleaseHandler;
 import io.zbus.mq.disk.QueueNak;
 import io.zbus.mq.disk.QueueReader;
 import io.zbus.mq.disk.QueueWriter;
+import io.zbus.mq.disk.QueueNak.TimeoutListener;
 import io.zbus.mq.disk.QueueNak.TimeoutMessage;
+import io.zbus.mq.disk.QueueWriter.FlushCallback;
+import io.zbus.transport.ResultCallback;
 import io.zbus.transport.Session;
+import io.zbus.transport.http.Message.FileBody;
 
 
 public class DiskQueue extends AbstractQueue{
 	private static final Logger log = LoggerFactory.getLogger(DiskQueue.class); 
 	protected final Index index;     
-	protected final QueueWriter writer; 
+	protected volatile QueueWriter writer; //opened on first write, see writer()
+	protected volatile QueueAppender appender; //producers publish into, drained by one writer thread, see appender()
+	protected volatile QueueDelay delay;   //opened on first delayed message or if any pending, see delay()
 	
 	public DiskQueue(File dir) throws IOException {   
-		this.index = new Index(dir);
+		this(dir, new DiskConfig());
+	}
+	
+	public DiskQueue(File dir, DiskConfig config) throws IOException {   
+		this.index = new Index(dir, config);
 		this.topic = index.getName();
-		this.writer = new QueueWriter(this.index);
+		if(config.getDedupSize() > 0){
+			this.dedupWindow = new DedupWindow(config.getDedupSize(), config.getDedupTime());
+		}
+		index.checkRecovered(); //messageDepth exact from open, readers positioned on recovered tail
 		loadConsumeGroups();
+		index.setReaderFloor(new Index.ReaderFloor() {
+			@Override
+			public long minBlockNumber() throws IOException {
+				if(consumeGroups.isEmpty()){
+					return index.getBlockStart(); //nothing consumed
+				}
+				long blockNumber = Long.MAX_VALUE;
+				for(AbstractConsumeGroup group : consumeGroups.values()){
+					blockNumber = Math.min(blockNumber, ((DiskConsumeGroup)group).minBlockNumber());
+				}
+				return blockNumber;
+			}
+		});
+		if(QueueDelay.exists(index.getIndexDir())){
+			delay(); //pending delayed messages released on time
+		}
+	}
+	
+	/**
+	 * Writer opened on first use, topic loading maps index and reader files only, no block file opened.
+	 */
+	protected QueueWriter writer() throws IOException {
+		if(writer == null){
+			synchronized (this) {
+				if(writer == null){
+					writer = new QueueWriter(this.index);
+				}
+			}
+		}
+		return writer;
+	}
+	
+	/**
+	 * Append pipeline opened with the writer, null if appendRing disabled: messages written in producer thread
+	 */
+	protected QueueAppender appender() throws IOException {
+		int ringSize = index.getConfig().getAppendRing();
+		if(ringSize <= 0) return null;
+		if(appender == null){
+			QueueWriter writer = writer();
+			synchronized (this) {
+				if(appender == null){
+					appender = new QueueAppender(writer, ringSize, topic, new AppendCallback() { 
+						@Override
+						public void onAppended(long position, IOException error) {
+							lastUpdatedTime = System.currentTimeMillis(); 
+							dispatchLater(); //once per batch, on the topic executor
+						}
+					});
+				}
+			}
+		}
+		return appender;
+	}
+	
+	/**
+	 * Delayed messages of the topic, released into the topic log by batch when due
+	 */
+	protected QueueDelay delay() {
+		if(delay == null){
+			synchronized (this) {
+				if(delay == null){
+					delay = new QueueDelay(index.getIndexDir(), index.getConfig().getDelaySlot(), new ReleaseHandler() {
+						@Override
+						public void onRelease(DiskMessage[] data) throws IOException {
+							if(data.length == 0) return;
+							QueueAppender appender = appender();
+							if(appender != null){ //dispatched once appended
+								appender.appendAndWait(data); //slot file deleted once released, thrown to retry the slot
+							} else {
+								writer().write(data);
+								lastUpdatedTime = System.currentTimeMillis(); 
+								dispatchLater();
+							}
+							if(index.getConfig().getFlushMode() != FlushMode.NONE){ //slot file was forced, the released copy too before it is deleted
+								writer().flush();
+							}
+						}
+					});
+				}
+			}
+		}
+		return delay;
 	}
 	
 	protected void loadConsumeGroups() throws IOException{ 
@@ -88,6 +192,7 @@ public class DiskQueue extends AbstractQueue{
 		}
 		Integer ackWindow = ctrl.getAckWindow();
 		Long ackTimeout = ctrl.getAckTimeout();
+		Integer maxRetry = ctrl.getMaxRetry();
 		
 		if(ackWindow != null) {
 			group.setAckWindow(ackWindow);
@@ -95,6 +200,9 @@ public class DiskQueue extends AbstractQueue{
 		if(ackTimeout != null) { 
 			group.setAckTimeout(ackTimeout);
 		}
+		if(maxRetry != null) {
+			group.setMaxRetry(maxRetry);
+		}
 		
 		if(ctrl.getStartOffset() != null){
 			boolean seekOk = group.seek(ctrl.getStartOffset(), ctrl.getStartMsgId());
@@ -137,20 +245,171 @@ public class DiskQueue extends AbstractQueue{
 		for(AbstractConsumeGroup group : consumeGroups.values()){
 			group.delete();
 		}
-		writer.close();
+		if(appender != null){
+			appender.close();
+		}
+		if(writer != null){
+			writer.close();
+		}
+		if(delay != null){
+			delay.delete();
+		}
 		index.delete(); 
 	}
 	
 	@Override
 	public void produce(Message msg) throws IOException{ 
+		if(writeDelayed(msg)) return;
+		QueueAppender appender = appender();
+		if(appender != null){
+			appender.appendAndWait(diskMessage(msg));
+			return;
+		}
+		write(msg);
+		dispatchLater();
+	}
+	
+	@Override
+	public void produce(Message msg, final ResultCallback<Boolean> callback) throws IOException {
+		if(writeDelayed(msg)){
+			callback.onReturn(flushDelayed());
+			return;
+		}
+		QueueAppender appender = appender();
+		if(appender != null){ //replied by the writer thread
+			appender.append(diskMessage(msg), new AppendCallback() { 
+				@Override
+				public void onAppended(long position, IOException error) {
+					complete(position, error, callback);
+				}
+			});
+			return;
+		}
+		long position = write(msg);
+		sync(position, callback);
+		dispatchLater();
+	}
+	
+	/**
+	 * Batch written by one block append: one index update and one wakeup of readers for all messages.
+	 * Through the append ring the batch is kept in order, drained with messages of other producers in one or more writes.
+	 */
+	@Override
+	public void produce(List<Message> messages, final ResultCallback<Boolean> callback) throws IOException {
+		List<DiskMessage> data = new ArrayList<DiskMessage>(messages.size());
+		boolean delayed = false;
+		for(Message msg : messages){
+			if(writeDelayed(msg)){
+				delayed = true;
+				continue;
+			}
+			data.add(diskMessage(msg));
+		}
+		if(delayed && !flushDelayed()){
+			callback.onReturn(false);
+			return;
+		}
+		if(data.isEmpty()){
+			callback.onReturn(true);
+			return;
+		}
+		final QueueAppender appender = appender();
+		if(appender != null){ //appended in order, the last one completes the batch
+			final AppendResult result = new AppendResult(); //callbacks run in order, earlier ones before the last
+			for(int i=0;i<data.size()-1;i++){
+				appender.append(data.get(i), result);
+			}
+			appender.append(data.get(data.size()-1), new AppendCallback() { 
+				@Override
+				public void onAppended(long position, IOException error) {
+					if(error == null){
+						error = result.getError();
+					}
+					complete(position, error, callback);
+				}
+			});
+			return;
+		}
+		long position = writer().write(data.toArray(new DiskMessage[data.size()]));
+		this.lastUpdatedTime = System.currentTimeMillis(); 
+		sync(position, callback);
+		dispatchLater();
+	}
+	
+	/**
+	 * Reply of produce appended by the writer thread, held until flushed in sync flush mode
+	 */
+	private void complete(long position, IOException error, ResultCallback<Boolean> callback) {
+		if(error != null){
+			callback.onReturn(false);
+			return;
+		}
+		try {
+			sync(position, callback);
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+			callback.onReturn(false);
+		}
+	}
+	
+	private void sync(long position, final ResultCallback<Boolean> callback) throws IOException {
+		if(index.getConfig().getFlushMode() == FlushMode.SYNC){
+			writer().sync(position, new FlushCallback() { 
+				@Override
+				public void onFlushed(IOException error) {
+					callback.onReturn(error == null);
+				}
+			});
+		} else {
+			callback.onReturn(true);
+		}
+	}
+	
+	/**
+	 * @return true if message has delay or deliver_at in future, kept in QueueDelay until due
+	 */
+	private boolean writeDelayed(Message msg) throws IOException{
+		long now = System.currentTimeMillis();
+		Long deliverTime = msg.getDeliverAt();
+		if(deliverTime == null){
+			Long delayTime = msg.getDelay();
+			if(delayTime == null) return false;
+			deliverTime = now + delayTime;
+		}
+		if(deliverTime <= now) return false;
+		
+		delay().add(diskMessage(msg), deliverTime);
+		this.lastUpdatedTime = now; 
+		return true;
+	}
+	
+	/**
+	 * @return false if topic in sync flush mode and force failed
+	 */
+	private boolean flushDelayed() {
+		if(index.getConfig().getFlushMode() != FlushMode.SYNC) return true;
+		try {
+			delay().flush();
+			return true;
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+			return false;
+		}
+	}
+	
+	private long write(Message msg) throws IOException{
+		long position = writer().write(diskMessage(msg)); 
+		this.lastUpdatedTime = System.currentTimeMillis(); 
+		return position;
+	}
+	
+	private DiskMessage diskMessage(Message msg){
 		DiskMessage data = new DiskMessage();
 		data.id = msg.getId();
 		data.tag = msg.getTag(); 
 
 		data.body = msg.toBytes(); 
-		writer.write(data); 
-		this.lastUpdatedTime = System.currentTimeMillis(); 
-		dispatch();
+		return data;
 	}
 	
 	@Override
@@ -162,6 +421,46 @@ public class DiskQueue extends AbstractQueue{
 		return group.read();
 	}  
 	
+	/**
+	 * Remove sealed blocks out of retention policies of the topic, the current write block is kept.
+	 * 
+	 * @return files of blocks removed from index, to be deleted by caller
+	 * @throws IOException if index read failed
+	 */
+	public List<File> retain() throws IOException {
+		DiskConfig config = index.getConfig();
+		long removeBefore = index.getBlockStart();
+		
+		if(config.getRetentionTime() > 0){ 
+			BlockOffset res = index.searchBlockByTime(System.currentTimeMillis() - config.getRetentionTime());
+			long blockNumber = res == null? index.currentBlockNumber() : res.blockNumber;
+			removeBefore = Math.max(removeBefore, blockNumber);
+		}
+		if(config.getRetentionBytes() > 0){
+			long size = 0;
+			long blockNumber = index.currentBlockNumber();
+			for(long i=blockNumber; i>=index.getBlockStart(); i--){
+				size += index.blockSize(i);
+				if(size > config.getRetentionBytes()) break;
+				blockNumber = i;
+			}
+			removeBefore = Math.max(removeBefore, blockNumber);
+		}
+		if(config.isRetentionConsumed() && !consumeGroups.isEmpty()){
+			long blockNumber = Long.MAX_VALUE;
+			for(AbstractConsumeGroup group : consumeGroups.values()){
+				blockNumber = Math.min(blockNumber, ((DiskConsumeGroup)group).minBlockNumber());
+			}
+			removeBefore = Math.max(removeBefore, blockNumber);
+		}
+		
+		List<File> files = index.removeBlocksBefore(removeBefore);
+		if(!files.isEmpty()){
+			log.info("%s: blocks before %d removed by retention", topic, index.getBlockStart());
+		}
+		return files;
+	}
+	
 	@Override
 	public String getCreator() {
 		return index.getCreator();
@@ -198,15 +497,26 @@ public class DiskQueue extends AbstractQueue{
 		
 		public DiskConsumeGroup(String groupName) throws IOException{ 
 			super(groupName);
+			if(index.getBlockCount() < 1){
+				writer(); //first block created, readers always have one to read
+			}
 			reader = new QueueReader(index, this.groupName);
 			
-			initNakQueue();
+			initReader();
 		}
 		
 		public DiskConsumeGroup(String groupName, QueueReader reader) throws IOException{ 
 			super(groupName);
 			this.reader = new QueueReader(reader, groupName);
 			
+			initReader();
+		}
+		
+		private void initReader() throws IOException {
+			DiskConfig config = index.getConfig();
+			if(config.isZeroCopyEnabled()){ //large bodies sent from block file directly
+				reader.setBodyLimit(config.getZeroCopyThreshold());
+			}
 			initNakQueue();
 		}
 		
@@ -225,6 +535,12 @@ public class DiskQueue extends AbstractQueue{
 			
 			if(mask != null && (mask&Protocol.MASK_ACK_REQUIRED) != 0) {  
 				queueNak = new QueueNak(reader);
+				queueNak.setTimeoutListener(new TimeoutListener() { 
+					@Override
+					public void onTimeout(QueueNak queueNak) { //redeliver without waiting for next produce/consume
+						dispatchLater();
+					}
+				});
 			}
 		}
 		
@@ -245,6 +561,28 @@ public class DiskQueue extends AbstractQueue{
 			queueNak.setTimeout(timeout);
 		}
 		
+		public void setMaxRetry(Integer maxRetry) {
+			if(queueNak == null) return;
+			queueNak.setMaxRetry(maxRetry);
+		}
+		
+		/**
+		 * @return the oldest block still required, by reader or messages not acked
+		 */
+		public long minBlockNumber() throws IOException {
+			long blockNumber = reader.getBlockNumber();
+			if(queueNak != null) {
+				long offset = queueNak.minOffset();
+				if(offset >= 0) {
+					BlockOffset res = index.searchBlock(offset);
+					if(res != null) {
+						blockNumber = Math.min(blockNumber, res.blockNumber);
+					}
+				}
+			}
+			return blockNumber;
+		}
+		
 		@Override
 		public boolean isEnd() { 
 			try {
@@ -256,14 +594,40 @@ public class DiskQueue extends AbstractQueue{
 		
 		@Override
 		public Message readTimeoutMessage() throws IOException {
-			TimeoutMessage data = null; 
-			if(queueNak != null) {  
-				data = queueNak.pollTimeoutMessage();
+			if(queueNak == null) return null;
+			while(true){
+				TimeoutMessage data = queueNak.pollTimeoutMessage();
+				if(data == null) return null;
+				if(data.diskMessage == null) continue; //message removed by retention
+				Message message = convert(data.diskMessage);
+				if(message == null) continue;
+				if(queueNak.isRetryExceeded(data.nakRecord)){
+					deadLetter(message, data.nakRecord.retryCount);
+					continue; //NAK slot freed, not redelivered
+				}
+				message.setRetry(data.nakRecord.retryCount);
+				return message;
+			}
+		}
+		
+		private void deadLetter(Message message, int retryCount) {
+			message.setHeader(Protocol.ORIGIN_TOPIC, topic);
+			message.setHeader(Protocol.ORIGIN_GROUP, groupName);
+			message.setHeader(Protocol.ORIGIN_OFFSET, message.getOffset());
+			message.removeHeader(Protocol.OFFSET);
+			message.removeHeader(Protocol.DELAY); //delivered already, not delayed again
+			message.removeHeader(Protocol.DELIVER_AT);
+			message.setRetry(retryCount);
+			message.setTopic(deadLetterTopic(topic, groupName));
+			if(deadLetterHandler == null){
+				log.warn("Message(offset=%s) of %s dropped, retried %d times", message.getHeader(Protocol.ORIGIN_OFFSET), this, retryCount);
+				return;
+			}
+			try {
+				deadLetterHandler.handle(message);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
 			}
-			if(data == null) return null;
-			Message message = convert(data.diskMessage);
-			message.setRetry(data.nakRecord.retryCount);
-			return message;
 		}
 		
 		@Override
@@ -287,7 +651,15 @@ public class DiskQueue extends AbstractQueue{
 		}
 		
 		private Message convert(DiskMessage data) {
-			Message msg = Message.parse(data.body);
+			Message msg = null;
+			if(data.file != null){ //body left in block file
+				msg = Message.parse(data.body, data.file, data.bodyPosition);
+				if(msg == null){ //head exceeds bytes peeked
+					msg = Message.parse(new FileBody(data.file, data.bodyPosition, data.bodySize).read());
+				}
+			} else {
+				msg = Message.parse(data.body);
+			}
 			if(msg == null){ 
 				log.warn("data read from queue can not be serialized back to Message type");
 			} else {
@@ -355,6 +727,9 @@ public class DiskQueue extends AbstractQueue{
 			info.lastUpdatedTime = reader.getUpdatedTime();
 			info.consumerCount = pullSessions.size();
 			info.messageCount = reader.getMessageCount();
+			if(queueNak != null){
+				info.maxRetry = queueNak.getMaxRetry();
+			}
 			info.groupName = groupName;
 			info.consumerList = new ArrayList<String>();
 			for(Session session : pullSessions.values()){
@@ -1,45 +1,248 @@
 package io.zbus.mq;
- 
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import io.zbus.kit.logging.Logger;
 import io.zbus.kit.logging.LoggerFactory;
 import io.zbus.mq.Protocol.ConsumeGroupInfo;
+import io.zbus.transport.ResultCallback;
 import io.zbus.transport.Session;
 
-public class MemoryQueue extends AbstractQueue { 
-	private static final Logger log = LoggerFactory.getLogger(MemoryQueue.class); 
-	
-	protected Queue<Message> queue = new ConcurrentLinkedQueue<Message>();
-	protected int capacity = 1000; 
-	protected int mask = 0; 
-	protected String creator = "";  
-	protected long createdTime = System.currentTimeMillis();  
-	
+/**
+ * Topic kept in a preallocated ring, every consume group reads all messages by its own sequence cursor(broadcast as DiskQueue).
+ * Producers claim a sequence by one atomic operation and publish the slot, groups read without locks,
+ * depth and lag of a group are differences of sequences.
+ *
+ * Ring full means the slowest group has not read the slot to be reused, handled by OverflowPolicy.
+ * With no consume group nothing holds the ring, the oldest message is overwritten under any policy.
+ */
+public class MemoryQueue extends AbstractQueue {
+	private static final Logger log = LoggerFactory.getLogger(MemoryQueue.class);
+	private static final long Writing = Long.MIN_VALUE; //slot being overwritten
+
+	/**
+	 * DROP_OLDEST: overwrite the oldest message, groups not read it yet skip to the oldest retained
+	 * BLOCK: reply of produce held until the slowest group frees a slot, rejected beyond capacity held
+	 * REJECT: produce replied failure at once
+	 */
+	public static enum OverflowPolicy {
+		DROP_OLDEST, BLOCK, REJECT
+	}
+
+	private final AtomicReferenceArray<Message> ring;
+	private final AtomicLongArray published;        //sequence of message in each slot, Writing while overwritten
+	private final int slotMask;
+	private final AtomicLong claimed = new AtomicLong(-1);
+	private volatile long floor = 0;                //no group cursor below, slots under it free
+	private final OverflowPolicy overflow;
+	private final Queue<Blocked> blocked = new ConcurrentLinkedQueue<Blocked>(); //BLOCK policy, in produce order
+	private final AtomicInteger blockedCount = new AtomicInteger();
+	private final AtomicBoolean releasing = new AtomicBoolean(false);
+
+	protected int mask = 0;
+	protected String creator = "";
+	protected long createdTime = System.currentTimeMillis();
+
 	public MemoryQueue(String topic){
+		this(topic, 1024, OverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * @param capacity messages kept, rounded up to power of 2
+	 * @param overflow handling of produce when the slowest group is capacity behind
+	 */
+	public MemoryQueue(String topic, int capacity, OverflowPolicy overflow){
 		super(topic);
+		if(capacity <= 0){
+			throw new IllegalArgumentException("capacity(" + capacity + ") should > 0");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity) size <<= 1;
+		this.ring = new AtomicReferenceArray<Message>(size);
+		this.published = new AtomicLongArray(size);
+		for(int i=0;i<size;i++){
+			published.set(i, i - size); //as if written by the round before the first
+		}
+		this.slotMask = size - 1;
+		this.overflow = overflow == null? OverflowPolicy.DROP_OLDEST : overflow;
 	}
-	
+
+	/**
+	 * @throws MqException if ring full, REJECT or BLOCK policy(no reply to hold)
+	 */
 	@Override
 	public void produce(Message message) throws IOException {
-		queue.offer(message);
-		if(queue.size() > capacity){
-			queue.poll();
-			log.warn("Memory queue full, message discarded");
+		if(!offer(message)){
+			throw new MqException("MemoryQueue(" + topic + ") full");
 		}
-		message.setTimestamp(System.currentTimeMillis()); //record timestamp
-		this.lastUpdatedTime = System.currentTimeMillis(); 
 		dispatch();
 	}
 
+	@Override
+	public void produce(Message message, ResultCallback<Boolean> callback) throws IOException {
+		if(overflow == OverflowPolicy.BLOCK){
+			releaseBlocked(); //freed by reads not followed by dispatch
+		}
+		boolean inOrder = overflow != OverflowPolicy.BLOCK || blockedCount.get() == 0; //held ones go first
+		if(inOrder && offer(message)){
+			callback.onReturn(true);
+			dispatch();
+			return;
+		}
+		if(overflow == OverflowPolicy.BLOCK && blockedCount.get() < ring.length()){
+			blockedCount.incrementAndGet();
+			blocked.offer(new Blocked(message, callback));
+			dispatch(); //released here if freed meanwhile
+			return;
+		}
+		callback.onReturn(false);
+	}
+
+	@Override
+	public void produce(List<Message> messages, final ResultCallback<Boolean> callback) throws IOException {
+		if(messages.isEmpty()){
+			callback.onReturn(true);
+			return;
+		}
+		final AtomicInteger remaining = new AtomicInteger(messages.size());
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		ResultCallback<Boolean> each = new ResultCallback<Boolean>() {
+			@Override
+			public void onReturn(Boolean result) {
+				if(!result) failed.set(true);
+				if(remaining.decrementAndGet() == 0){
+					callback.onReturn(!failed.get());
+				}
+			}
+		};
+		for(Message message : messages){
+			produce(message, each);
+		}
+	}
+
+	/**
+	 * Publish message into the ring
+	 * @return false if ring full and not DROP_OLDEST
+	 */
+	private boolean offer(Message message) {
+		int size = ring.length();
+		long seq;
+		if(overflow == OverflowPolicy.DROP_OLDEST){
+			seq = claimed.incrementAndGet();
+		} else {
+			while(true){
+				long head = claimed.get();
+				seq = head + 1;
+				if(seq - size >= floor){ //looks full, refresh cursor of the slowest group
+					floor = slowest();
+					if(seq - size >= floor) return false;
+				}
+				if(claimed.compareAndSet(head, seq)) break;
+			}
+		}
+		message.setOffset(seq);
+		message.setTimestamp(System.currentTimeMillis()); //record timestamp
+
+		int i = (int)seq & slotMask;
+		int spins = 0;
+		while(published.get(i) != seq - size){ //previous round of the slot not published yet
+			spins = backoff(spins);
+		}
+		published.set(i, Writing);
+		ring.set(i, message);
+		published.set(i, seq);
+		this.lastUpdatedTime = System.currentTimeMillis();
+		return true;
+	}
+
+	private static int backoff(int spins){
+		if(spins < 100){
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(10 * 1000);
+		}
+		return spins+1;
+	}
+
+	/**
+	 * @return cursor of the slowest group, oldest retained after the next produce if no group
+	 */
+	private long slowest(){
+		if(consumeGroups.isEmpty()){
+			return claimed.get() + 2 - ring.length();
+		}
+		long min = Long.MAX_VALUE;
+		for(AbstractConsumeGroup group : consumeGroups.values()){
+			min = Math.min(min, ((MemoryConsumeGroup)group).cursor.get());
+		}
+		return min;
+	}
+
+	/**
+	 * Oldest sequence possibly retained
+	 */
+	private long tail(){
+		return Math.max(0, claimed.get() + 1 - ring.length());
+	}
+
+	@Override
+	protected void dispatch() throws IOException {
+		super.dispatch();
+		releaseBlocked();
+	}
+
+	@Override
+	protected void dispatch(AbstractConsumeGroup group) throws IOException {
+		super.dispatch(group);
+		releaseBlocked();
+	}
+
+	/**
+	 * Publish held produces slots freed for, one thread at a time to keep them in order
+	 */
+	private void releaseBlocked() throws IOException {
+		while(blockedCount.get() > 0 && releasing.compareAndSet(false, true)){
+			int released = 0;
+			try {
+				Blocked b;
+				while((b = blocked.peek()) != null && offer(b.message)){
+					blocked.poll();
+					blockedCount.decrementAndGet();
+					released++;
+					try {
+						b.callback.onReturn(true);
+					} catch (Exception e) {
+						log.error(e.getMessage(), e);
+					}
+				}
+			} finally {
+				releasing.set(false);
+			}
+			if(released == 0) return;
+			super.dispatch();
+		}
+	}
+
 	@Override
 	public Message consume(String consumeGroup) throws IOException {
-		return queue.poll();
-	} 
+		if(consumeGroup == null){
+			consumeGroup = this.topic;
+		}
+		AbstractConsumeGroup group = consumeGroups.get(consumeGroup);
+		if(group == null) return null;
+		return group.read();
+	}
 
 	@Override
 	public ConsumeGroupInfo declareGroup(ConsumeGroup ctrl) throws Exception {
@@ -47,61 +250,85 @@ public class MemoryQueue extends AbstractQueue {
 		if(consumeGroup == null){
 			consumeGroup = this.topic;
 		}
-		
-		MemoryConsumeGroup group = (MemoryConsumeGroup)consumeGroups.get(consumeGroup); 
+
+		MemoryConsumeGroup group = (MemoryConsumeGroup)consumeGroups.get(consumeGroup);
 		if(group == null){
 			group = new MemoryConsumeGroup(consumeGroup);
 			group.filter = ctrl.getFilter();
 			group.mask = ctrl.getMask();
+			group.cursor.set(Math.max(tail(), floor)); //messages still retained, none the producers may reuse
 			this.consumeGroups.put(consumeGroup, group);
-			log.info("ConsumeGroup created: %s", group); 
+			log.info("ConsumeGroup created: %s", group);
 		}
 		return group.getConsumeGroupInfo();
 	}
-	  
+
 	@Override
-	public long createdTime() { 
+	public long createdTime() {
 		return createdTime;
 	}
-	
+
+	/**
+	 * @return messages retained in the ring
+	 */
 	@Override
-	public long messageDepth() { 
-		return queue.size();
-	} 
-	 
+	public long messageDepth() {
+		return claimed.get() + 1 - tail();
+	}
+
+	public int getCapacity() {
+		return ring.length();
+	}
+
+	public OverflowPolicy getOverflow() {
+		return overflow;
+	}
+
 	@Override
-	public String getCreator() { 
+	public String getCreator() {
 		return creator;
 	}
 
 	@Override
-	public void setCreator(String value) { 
+	public void setCreator(String value) {
 		this.creator = value;
 	}
 
 	@Override
-	public int getMask() { 
+	public int getMask() {
 		return mask;
 	}
 
 	@Override
-	public void setMask(int value) { 
+	public void setMask(int value) {
 		mask = value;
 	}
-	 
 
-    class MemoryConsumeGroup extends AbstractConsumeGroup {   
+	private static class Blocked {
+		final Message message;
+		final ResultCallback<Boolean> callback;
+
+		Blocked(Message message, ResultCallback<Boolean> callback) {
+			this.message = message;
+			this.callback = callback;
+		}
+	}
+
+
+    class MemoryConsumeGroup extends AbstractConsumeGroup {
 		private String filter;
 		private Integer mask;
 		private long createdTime = System.currentTimeMillis();
 		private long updatedTime = System.currentTimeMillis();
-		
+		final AtomicLong cursor = new AtomicLong(); //next sequence to read
+
 		public MemoryConsumeGroup(String groupName) throws IOException {
 			super(groupName);
-		} 
-		
+		}
+
 		public void removeSession(Session session){
 			pullSessions.remove(session.id());
+			pushSessions.remove(session.id());
 			Iterator<PullSession> iter = pullQ.iterator();
 			while(iter.hasNext()){
 				if(iter.next().session == session){
@@ -110,23 +337,59 @@ public class MemoryQueue extends AbstractQueue {
 				}
 			}
 		}
-		
+
 		@Override
-		public Message read() throws IOException { 
-			return queue.poll();
-		} 
-		
+		public Message read() throws IOException {
+			int size = ring.length();
+			while(true){
+				long seq = cursor.get();
+				int i = (int)seq & slotMask;
+				long p = published.get(i);
+				if(p == seq){
+					Message msg = ring.get(i);
+					if(published.get(i) == seq){ //not overwritten while reading
+						if(cursor.compareAndSet(seq, seq+1)){
+							updatedTime = System.currentTimeMillis();
+							return msg;
+						}
+						continue;
+					}
+					p = Writing;
+				}
+				long head = claimed.get();
+				if(p != Writing && p < seq) return null; //not published yet
+				if(p == Writing && head < seq + size) return null; //seq itself being written
+
+				long tail = head + 1 - size; //overwritten, skip to the oldest retained
+				if(cursor.compareAndSet(seq, tail)){
+					log.warn("MemoryQueue(%s) full, %d messages of ConsumeGroup(%s) discarded", topic, tail-seq, groupName);
+				}
+			}
+		}
+
 		@Override
-		public Message read(long offset) { 
-			return null;
+		public Message read(long offset) {
+			int i = (int)offset & slotMask;
+			if(published.get(i) != offset) return null;
+			Message msg = ring.get(i);
+			if(published.get(i) != offset) return null;
+			return msg;
 		}
-		
+
 		public boolean isEnd(){
-			return queue.size() == 0;
+			return cursor.get() > claimed.get();
+		}
+
+		/**
+		 * @return messages not read yet, at most capacity
+		 */
+		public long lag(){
+			long head = claimed.get() + 1;
+			return Math.max(0, head - Math.max(cursor.get(), head - ring.length()));
 		}
-		 
+
 		public ConsumeGroupInfo getConsumeGroupInfo(){
-			ConsumeGroupInfo info = new ConsumeGroupInfo(); 
+			ConsumeGroupInfo info = new ConsumeGroupInfo();
 			info.topicName = topic;
 			info.filter = filter;
 			info.creator = null;
@@ -134,7 +397,7 @@ public class MemoryQueue extends AbstractQueue {
 			info.createdTime = createdTime;
 			info.lastUpdatedTime = updatedTime;
 			info.consumerCount = pullSessions.size();
-			info.messageCount = queue.size();
+			info.messageCount = lag();
 			info.groupName = groupName;
 			info.consumerList = new ArrayList<String>();
 			for(Session session : pullSessions.values()){
@@ -142,5 +405,5 @@ public class MemoryQueue extends AbstractQueue {
 			}
 			return info;
 		}
-	} 
+	}
 }
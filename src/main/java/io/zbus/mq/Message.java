@@ -25,6 +25,10 @@ package io.zbus.mq;
 
 import static io.zbus.mq.Protocol.*;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -273,6 +277,16 @@ public class Message extends io.zbus.transport.http.Message {
 		return this;
 	}   
 	
+	public Integer getGroupMaxRetry(){
+		String value = getHeader(GROUP_MAX_RETRY);
+		if(value != null) return Integer.valueOf(value); 
+		return null;
+	} 
+	public Message setGroupMaxRetry(Integer value) {
+		this.setHeader(GROUP_MAX_RETRY, value);
+		return this;
+	} 
+	
 	public Integer getConsumeWindow(){
 		String value = this.getHeader(CONSUME_WINDOW);
 		if(value == null) return null;
@@ -283,6 +297,28 @@ public class Message extends io.zbus.transport.http.Message {
 		this.setHeader(CONSUME_WINDOW, value);
 		return this;
 	}  
+	
+	public Integer getCredit(){
+		String value = this.getHeader(CREDIT);
+		if(value == null) return null;
+		return Integer.valueOf(value);
+	} 
+	
+	public Message setCredit(Integer value) {
+		this.setHeader(CREDIT, value);
+		return this;
+	}  
+	
+	public Integer getConsumeBatch(){
+		String value = this.getHeader(CONSUME_BATCH);
+		if(value == null) return null;
+		return Integer.valueOf(value);
+	} 
+	
+	public Message setConsumeBatch(Integer value) {
+		this.setHeader(CONSUME_BATCH, value);
+		return this;
+	}  
 	public String getGroupFilter() {
 		return getHeader(GROUP_FILTER);
 	} 
@@ -315,6 +351,28 @@ public class Message extends io.zbus.transport.http.Message {
 	}    
 	
 	
+	public Long getDelay() {
+		String value = this.getHeader(DELAY);
+		if(value == null) return null;
+		return Long.valueOf(value);
+	} 
+	
+	public Message setDelay(Long value) {
+		this.setHeader(DELAY, value);
+		return this;
+	}  
+	
+	public Long getDeliverAt() {
+		String value = this.getHeader(DELIVER_AT);
+		if(value == null) return null;
+		return Long.valueOf(value);
+	} 
+	
+	public Message setDeliverAt(Long value) {
+		this.setHeader(DELIVER_AT, value);
+		return this;
+	}  
+	
 	public void parseCookieToken(){
 		String cookieString = this.getHeader("cookie");
         if (cookieString != null) {
@@ -340,6 +398,57 @@ public class Message extends io.zbus.transport.http.Message {
 		return new Message(message);
 	}
 	
+	public static Message parse(byte[] data, File file, long position){
+		io.zbus.transport.http.Message message = io.zbus.transport.http.Message.parse(data, file, position);
+		if(message == null) return null;
+		return new Message(message);
+	}
+	
+	/**
+	 * Pack messages into one body, each message as [length:int][message bytes]
+	 * @param messages messages to pack
+	 * @return body of a batch frame
+	 */
+	public static byte[] encodeBatch(List<Message> messages){
+		List<byte[]> parts = new ArrayList<byte[]>(messages.size());
+		int size = 0;
+		for(Message msg : messages){
+			byte[] data = msg.toBytes();
+			parts.add(data);
+			size += 4 + data.length;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		for(byte[] data : parts){
+			buf.putInt(data.length);
+			buf.put(data);
+		}
+		return buf.array();
+	}
+	
+	/**
+	 * Unpack body of a batch frame, see encodeBatch
+	 * @param body body of a batch frame
+	 * @return messages in the batch, empty if body is null
+	 */
+	public static List<Message> decodeBatch(byte[] body){
+		List<Message> messages = new ArrayList<Message>();
+		if(body == null) return messages;
+		ByteBuffer buf = ByteBuffer.wrap(body);
+		while(buf.hasRemaining()){
+			if(buf.remaining() < 4){
+				throw new IllegalArgumentException("Invalid batch body");
+			}
+			int len = buf.getInt();
+			if(len < 0 || len > buf.remaining()){
+				throw new IllegalArgumentException("Invalid batch body");
+			}
+			byte[] data = new byte[len];
+			buf.get(data);
+			messages.add(parse(data));
+		}
+		return messages;
+	}
+	
 	public static Message copyWithoutBody(Message msg){
 		io.zbus.transport.http.Message res = io.zbus.transport.http.Message.copyWithoutBody(msg);
 		return new Message(res);
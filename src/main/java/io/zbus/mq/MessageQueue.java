@@ -4,30 +4,66 @@ package io.zbus.mq;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import io.zbus.kit.logging.Logger;
 import io.zbus.kit.logging.LoggerFactory;
 import io.zbus.mq.Protocol.ConsumeGroupInfo;
 import io.zbus.mq.Protocol.TopicInfo;
+import io.zbus.mq.server.DeadLetterHandler;
 import io.zbus.mq.server.MessageLogger;
 import io.zbus.mq.server.ReplyKit;
+import io.zbus.transport.ResultCallback;
 import io.zbus.transport.Session;
 
 public interface MessageQueue { 
 
 	void produce(Message message) throws IOException;  
+	/**
+	 * Produce message, callback invoked when the message is durable according to the topic's flush policy
+	 * @param message message to produce
+	 * @param callback true if produced successfully, false if failed to flush
+	 * @throws IOException if write failed
+	 */
+	void produce(Message message, ResultCallback<Boolean> callback) throws IOException;  
+	/**
+	 * Produce messages in one write, callback invoked once for the whole batch
+	 * @param messages messages to produce, in order
+	 * @param callback true if produced successfully, false if failed to flush
+	 * @throws IOException if write failed
+	 */
+	void produce(List<Message> messages, ResultCallback<Boolean> callback) throws IOException;  
+	/**
+	 * @return ids of messages recently stored to the topic, producer retries checked against, null if dedup disabled
+	 */
+	DedupWindow getDedupWindow();
 	Message consume(String consumeGroup) throws IOException;  
 	void ack(Message message, Session session) throws IOException;
 	
 	void consume(Message message, Session session) throws IOException;   
+	/**
+	 * Push mode: register session as push consumer of the group, add credits of message.
+	 * Messages are pushed to the session as produced while its credits remain, one credit each.
+	 * Without ack(no reply) credits are granted to a registered session only, ignored if unsubscribed.
+	 * @param message subscribe command, credit header for messages granted
+	 * @param session consumer session
+	 * @throws IOException if reply failed
+	 */
+	void subscribe(Message message, Session session) throws IOException;   
 	void unconsume(Message message, Session session) throws IOException;   
 	void cleanSession(Session sess);  
 	int sessionCount(String consumeGroup);  
@@ -51,6 +87,12 @@ public interface MessageQueue {
 	void setMask(int value);  
 	
 	void setMessageLogger(MessageLogger messageLogger);
+	void setDeadLetterHandler(DeadLetterHandler deadLetterHandler);
+	/**
+	 * @param executor worker the topic's commands run on, dispatch triggered by disk writer and timers run on it too;
+	 * null to dispatch in the triggering thread
+	 */
+	void setExecutor(Executor executor);
 }
 
 
@@ -97,13 +139,31 @@ class PullSession {
 }
 
 
+class PushSession {
+	final Session session;
+	final AtomicInteger credit = new AtomicInteger(); //messages still to push
+	
+	public PushSession(Session session) {
+		this.session = session;
+	}
+}
+
 
 abstract class AbstractQueue implements MessageQueue{
 	private static final Logger log = LoggerFactory.getLogger(AbstractQueue.class);   
+	private static final int MaxConsumeWindow = 1024;                  //messages of one pull at most
+	private static final long MaxConsumeBatchBytes = 4 * 1024 * 1024;  //bodies packed in one reply, exceeded by the last one at most
+	private static final int DispatchBudget = 1024;                    //messages dispatched to one group per round
 	protected Map<String, AbstractConsumeGroup> consumeGroups = new ConcurrentSkipListMap<String, AbstractConsumeGroup>(String.CASE_INSENSITIVE_ORDER); 
 	protected long lastUpdatedTime = System.currentTimeMillis();  
 	protected String topic;   
 	protected MessageLogger messageLogger;
+	protected DeadLetterHandler deadLetterHandler;
+	protected DedupWindow dedupWindow; //null if dedup disabled
+	protected Executor executor;       //null to dispatch in the triggering thread
+	private final AtomicBoolean dispatchPending = new AtomicBoolean(false);
+	//groups with consumers waiting(pull queued or push credit left), the only ones a produce dispatches
+	private final Set<AbstractConsumeGroup> activeGroups = Collections.newSetFromMap(new ConcurrentHashMap<AbstractConsumeGroup, Boolean>());
 	protected long groupNumber = consumeGroups.size();
 	  
 	public AbstractQueue(){
@@ -133,6 +193,46 @@ abstract class AbstractQueue implements MessageQueue{
 		this.messageLogger = messageLogger;
 	}
 	
+	@Override
+	public DedupWindow getDedupWindow() {
+		return dedupWindow;
+	}
+	
+	@Override
+	public void setDeadLetterHandler(DeadLetterHandler deadLetterHandler) {
+		this.deadLetterHandler = deadLetterHandler;
+	}
+	
+	@Override
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+	
+	/**
+	 * @param groupName consume group of the topic
+	 * @return topic dead letters of the group moved to
+	 */
+	public static String deadLetterTopic(String topic, String groupName){
+		if(topic.equalsIgnoreCase(groupName)){
+			return topic + ".DLQ";
+		}
+		return topic + "." + groupName + ".DLQ";
+	}
+	
+	@Override
+	public void produce(Message message, ResultCallback<Boolean> callback) throws IOException {
+		produce(message);
+		callback.onReturn(true);
+	}
+	
+	@Override
+	public void produce(List<Message> messages, ResultCallback<Boolean> callback) throws IOException {
+		for(Message message : messages){
+			produce(message);
+		}
+		callback.onReturn(true);
+	}
+	
 	@Override
 	public void destroy() throws IOException { 
 		
@@ -163,6 +263,7 @@ abstract class AbstractQueue implements MessageQueue{
 		if(group == null){
 			throw new MqException("ConsumeGroup("+groupName+") Not Found"); 
 		}
+		activeGroups.remove(group);
 		group.delete();
 	}
 	  
@@ -194,7 +295,7 @@ abstract class AbstractQueue implements MessageQueue{
 		}     
 		Long offset = message.getOffset();
 		group.ack(offset);
-		
+		dispatch(group); //NAK slot freed, subscribers wait on no pull
 	}
 
 	@Override
@@ -249,20 +350,114 @@ abstract class AbstractQueue implements MessageQueue{
 		}  
 		PullSession pull = new PullSession(session, message);
 		group.pullQ.offer(pull);  
+		activeGroups.add(group);
 		dispatch(group);
 	}    
+	
+	@Override
+	public void subscribe(Message message, Session session) throws IOException {
+		String consumeGroup = message.getConsumeGroup();
+		if(consumeGroup == null){
+			consumeGroup = this.topic;
+		}  
+		
+		AbstractConsumeGroup group = consumeGroups.get(consumeGroup);
+		if(group == null){
+			if(message.isAck()){
+				ReplyKit.reply404(message, session, "ConsumeGroup(" + consumeGroup + ") Not Found");
+			}
+			return;
+		}   
+		
+		PushSession push = group.pushSessions.get(session.id());
+		if(push == null){
+			if(!message.isAck()) return; //credits granted after unsubscribed
+			if(group.pullSessions.size() > 0 && !group.pullSessions.containsKey(session.id())){
+				if((group.getMask() & Protocol.MASK_EXCLUSIVE) != 0){ 
+					ReplyKit.reply401(message, session, String.format("ConsumeGroup(%s) exclusive, forbbiden", 
+							consumeGroup));
+					return;
+				}
+			}
+			push = new PushSession(session);
+			group.pushSessions.put(session.id(), push);
+			group.pullSessions.put(session.id(), session);
+		}
+		Integer credit = message.getCredit();
+		if(credit != null && credit > 0){
+			push.credit.addAndGet(credit);
+			activeGroups.add(group);
+		}
+		if(message.isAck()){
+			ReplyKit.reply200(message, session);
+		}
+		dispatch(group);
+	}
 	 
 	
+	/**
+	 * Dispatch groups with consumers waiting only, each up to DispatchBudget messages per round,
+	 * so a produce costs O(active groups) and a group with a large backlog does not hold up the others.
+	 * Rounds left over are continued by dispatchLater, behind commands queued on the topic executor meanwhile.
+	 */
 	protected void dispatch() throws IOException{  
-		Iterator<Entry<String, AbstractConsumeGroup>> iter = consumeGroups.entrySet().iterator();
-		while(iter.hasNext()){
-			AbstractConsumeGroup group = iter.next().getValue();
-			dispatch(group);
-		} 
+		boolean more;
+		do {
+			more = false;
+			for(AbstractConsumeGroup group : activeGroups){
+				if(dispatch(group, DispatchBudget)){
+					more = true;
+				}
+			}
+		} while(more && executor == null);
+		if(more){
+			dispatchLater();
+		}
+	}
+	
+	/**
+	 * Dispatch triggered outside the topic's commands(disk writer, timers), run on the topic executor if set.
+	 * Coalesced: one pending dispatch covers all triggered before it runs.
+	 */
+	protected void dispatchLater() {
+		if(executor == null){
+			try {
+				dispatch();
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+			}
+			return;
+		}
+		if(!dispatchPending.compareAndSet(false, true)) return;
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					dispatchPending.set(false);
+					try {
+						dispatch();
+					} catch (Exception e) {
+						log.error(e.getMessage(), e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) { //server closing
+			dispatchPending.set(false);
+		}
+	}
+	
+	protected void dispatch(AbstractConsumeGroup group) throws IOException {
+		if(dispatch(group, DispatchBudget)){
+			dispatchLater();
+		}
 	}
 	
-	protected void dispatch(AbstractConsumeGroup group) throws IOException {   
-		while(group.pullQ.peek() != null){
+	/**
+	 * @return true if budget used up, group may have more to dispatch
+	 */
+	private boolean dispatch(AbstractConsumeGroup group, int budget) throws IOException {   
+		int sent = 0;
+		while(sent < budget && group.pullQ.peek() != null){
 			Message msg = group.readTimeoutMessage();
 			if(msg == null && group.isEnd()) break;
 			
@@ -284,25 +479,138 @@ abstract class AbstractQueue implements MessageQueue{
 			
 			this.lastUpdatedTime = System.currentTimeMillis(); 
 			try {  
-				
-				if(group.isAckEnabled()) {
-					try {
-						group.recordNak(msg.getOffset(),msg.getRetry());
-					} catch (Exception e) {
-						log.error(e.getMessage(), e);  
-					}
-				} 
+				recordNak(group, msg);
 				
 				Message pullMsg = pull.getPullMessage(); 
-				sendOutMessage(group.groupName, pull.getSession(), msg, pullMsg.getId()); 
+				int window = consumeWindow(pullMsg);
+				if(window <= 1){
+					sent++;
+					sendOutMessage(group.groupName, pull.getSession(), msg, pullMsg.getId()); 
+					continue;
+				}
+				
+				List<Message> messages = new ArrayList<Message>();
+				messages.add(msg);
+				long bytes = bodyLength(msg);
+				while(messages.size() < window && bytes < MaxConsumeBatchBytes && !group.isNakFull()){
+					msg = group.readTimeoutMessage();
+					if(msg == null) {
+						msg = group.read();
+					}
+					if(msg == null) break;
+					recordNak(group, msg);
+					messages.add(msg);
+					bytes += bodyLength(msg);
+				}
+				sent += messages.size();
+				sendOutMessages(group.groupName, pull.getSession(), messages, pullMsg.getId());
 			} catch (Exception ex) {   
 				log.error(ex.getMessage(), ex);  
 			} 
 		} 
 		
+		if(sent < budget){
+			sent += push(group, budget - sent);
+		}
+		if(sent >= budget) return true;
+		
+		if(!group.hasWaitingConsumer()){
+			activeGroups.remove(group);
+			if(group.hasWaitingConsumer()){ //consumer came between the check and the remove
+				activeGroups.add(group);
+			}
+		}
+		return false;
 	} 
 	
+	/**
+	 * Push messages to subscribers of the group with credits, one message each in turn
+	 * @return messages pushed, no more than budget
+	 */
+	private int push(AbstractConsumeGroup group, int budget) throws IOException {
+		int sent = 0;
+		boolean pushed = !group.pushSessions.isEmpty();
+		while(pushed){
+			pushed = false;
+			for(PushSession push : group.pushSessions.values()){
+				if(sent >= budget) return sent;
+				if(push.credit.get() <= 0 || !push.session.active()) continue;
+				Message msg = group.readTimeoutMessage();
+				if(msg == null){
+					if(group.isNakFull()) return sent;
+					msg = group.read();
+					if(msg == null) return sent;
+				}
+				this.lastUpdatedTime = System.currentTimeMillis(); 
+				recordNak(group, msg);
+				push.credit.decrementAndGet();
+				sent++;
+				try {
+					sendOutMessage(group.groupName, push.session, msg, msg.getId()); //not reply of any request
+				} catch (Exception ex) {   
+					log.error(ex.getMessage(), ex);  
+				} 
+				pushed = true;
+			}
+		}
+		return sent;
+	}
+	
+	private void recordNak(AbstractConsumeGroup group, Message msg) {
+		if(!group.isAckEnabled()) return;
+		try {
+			group.recordNak(msg.getOffset(),msg.getRetry());
+		} catch (Exception e) {
+			log.error(e.getMessage(), e);  
+		}
+	}
+	
+	/**
+	 * @return messages to deliver for the pull, 1 if consumeWindow missing
+	 */
+	private static int consumeWindow(Message pullMsg) {
+		Integer window = null;
+		try {
+			window = pullMsg.getConsumeWindow();
+		} catch (NumberFormatException e) {
+			//invalid window taken as missing
+		}
+		if(window == null || window < 1) return 1;
+		return Math.min(window, MaxConsumeWindow);
+	}
+	
+	private static long bodyLength(Message msg) {
+		if(msg.getFileBody() != null) return msg.getFileBody().length;
+		byte[] body = msg.getBody();
+		return body == null? 0 : body.length;
+	}
+	
+	/**
+	 * Messages of one pull packed in one reply(consume_batch), a single message is sent as is
+	 */
+	private void sendOutMessages(String groupName, Session session, List<Message> messages, String pullMsgId) {
+		if(messages.size() == 1){
+			sendOutMessage(groupName, session, messages.get(0), pullMsgId);
+			return;
+		}
+		List<Message> writeMsgs = new ArrayList<Message>(messages.size());
+		for(Message msg : messages){
+			writeMsgs.add(writeMessage(groupName, session, msg, pullMsgId));
+		}
+		Message res = new Message();
+		res.setId(pullMsgId);
+		res.setStatus(200);
+		res.setConsumeGroup(groupName);
+		res.setConsumeBatch(writeMsgs.size());
+		res.setBody(Message.encodeBatch(writeMsgs)); //file bodies loaded, sent in memory
+		session.write(res);
+	}
+	
 	private void sendOutMessage(String groupName, Session session, Message msg, String pullMsgId) {
+		session.write(writeMessage(groupName, session, msg, pullMsgId));
+	}
+	
+	private Message writeMessage(String groupName, Session session, Message msg, String pullMsgId) {
 		Message writeMsg = Message.copyWithoutBody(msg); 
 		
 		writeMsg.removeHeader(Protocol.TOKEN); //Remove sensitive Token info
@@ -323,7 +631,7 @@ abstract class AbstractQueue implements MessageQueue{
 		if(messageLogger != null) {
 			messageLogger.log(writeMsg, session);
 		}
-		session.write(writeMsg);  
+		return writeMsg;
 	}
 	
 	@Override
@@ -336,7 +644,7 @@ abstract class AbstractQueue implements MessageQueue{
 		if(group == null){
 			return 0;
 		}   
-		return group.pullQ.size();
+		return group.pullQ.size() + group.pushSessions.size();
 	}
 	
 	public void cleanSession(Session sess) {
@@ -354,6 +662,7 @@ abstract class AbstractQueue implements MessageQueue{
 	
 	private void cleanSession(AbstractConsumeGroup group, Session sess){
 		group.pullSessions.remove(sess.id());
+		group.pushSessions.remove(sess.id());
 		
 		Iterator<PullSession> iter = group.pullQ.iterator();
 		while(iter.hasNext()){
@@ -387,6 +696,14 @@ abstract class AbstractQueue implements MessageQueue{
 					iterSess.remove(); 
 				}
 			}
+			Iterator<PushSession> iterPush = group.pushSessions.values().iterator();
+			while(iterPush.hasNext()){
+				PushSession push = iterPush.next();
+				if(!push.session.active()){
+					group.pullSessions.remove(push.session.id());
+					iterPush.remove(); 
+				}
+			}
 			
 			//remove group if masked as delete_on_exit
 			if((group.getMask() & Protocol.MASK_DELETE_ON_EXIT) != 0){
@@ -428,14 +745,27 @@ abstract class AbstractQueue implements MessageQueue{
 	static abstract class AbstractConsumeGroup implements Closeable{  
 		public final String groupName;
 		public final BlockingQueue<PullSession> pullQ = new LinkedBlockingQueue<PullSession>();  
-		public final Map<String, Session> pullSessions = new ConcurrentHashMap<String, Session>(); 
+		public final Map<String, Session> pullSessions = new ConcurrentHashMap<String, Session>(); //all consumers, pull or push
+		public final Map<String, PushSession> pushSessions = new ConcurrentHashMap<String, PushSession>(); 
 		
 		public AbstractConsumeGroup(String groupName) throws IOException { 
 			this.groupName = groupName; 
 		} 
 		
+		/**
+		 * @return true if a pull is queued or a subscriber has credit left
+		 */
+		public boolean hasWaitingConsumer(){
+			if(!pullQ.isEmpty()) return true;
+			for(PushSession push : pushSessions.values()){
+				if(push.credit.get() > 0) return true;
+			}
+			return false;
+		}
+		
 		public void removeSession(Session session){
 			pullSessions.remove(session.id());
+			pushSessions.remove(session.id());
 			Iterator<PullSession> iter = pullQ.iterator();
 			while(iter.hasNext()){
 				if(iter.next().session == session){
@@ -1,6 +1,7 @@
 package io.zbus.mq;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 import io.netty.channel.ChannelHandler;
@@ -121,6 +122,33 @@ public class MqClient extends CompositeClient<Message, Message> {
 		invokeAsync(msg, callback);
 	}
 	
+	/**
+	 * Produce messages of a topic in one frame, written to disk by one append and acked by one reply
+	 * @param topic topic of all messages
+	 * @param msgs messages to produce, in order
+	 * @param timeout timeout in milliseconds
+	 * @return reply of the batch
+	 */
+	public Message produceBatch(String topic, List<Message> msgs, long timeout) throws IOException, InterruptedException{ 
+		return invokeSync(batchMessage(topic, msgs), timeout);  
+	} 
+	
+	public Message produceBatch(String topic, List<Message> msgs) throws IOException, InterruptedException{ 
+		return produceBatch(topic, msgs, invokeTimeout);  
+	} 
+	
+	public void produceBatchAsync(String topic, List<Message> msgs, ResultCallback<Message> callback) throws IOException {
+		invokeAsync(batchMessage(topic, msgs), callback);
+	}
+	
+	static Message batchMessage(String topic, List<Message> msgs){
+		Message batch = new Message();
+		batch.setCommand(Protocol.PRODUCE_BATCH);
+		batch.setTopic(topic);
+		batch.setBody(Message.encodeBatch(msgs));
+		return batch;
+	}
+	
 	public Message consume(String topic) throws IOException, InterruptedException{
 		ConsumeCtrl ctrl = new ConsumeCtrl();
 		ctrl.setTopic(topic);
@@ -149,12 +177,60 @@ public class MqClient extends CompositeClient<Message, Message> {
 		
 		Message res = invokeSync(msg, invokeTimeout);
 		if (res == null) return res;
+		if (res.getConsumeBatch() != null) return res; //ids restored by unpack
 		
 		res.setId(res.getOriginId());
 		res.removeHeader(Protocol.ORIGIN_ID); 
 		return res;
 	}
 	
+	/**
+	 * Messages of a consume reply, more than one if the server packed a window of messages(consumeWindow > 1)
+	 * @param res reply of consume
+	 * @return messages packed in res, res itself if not packed
+	 */
+	public static List<Message> unpack(Message res) {
+		if(res.getConsumeBatch() == null){
+			return Arrays.asList(res);
+		}
+		List<Message> messages = Message.decodeBatch(res.getBody());
+		for(Message msg : messages){
+			msg.setId(msg.getOriginId());
+			msg.removeHeader(Protocol.ORIGIN_ID); 
+		}
+		return messages;
+	}
+	
+	/**
+	 * Subscribe in push mode, messages pushed to onMessage handler as produced while credits remain
+	 * @param topic topic to subscribe
+	 * @param group consume group
+	 * @param credit messages granted to push
+	 * @return reply, status 200 if subscribed, 404 if consume group not found
+	 */
+	public Message subscribe(String topic, String group, int credit) throws IOException, InterruptedException {
+		Message msg = new Message();
+		msg.setCommand(Protocol.SUBSCRIBE);
+		msg.setTopic(topic);
+		msg.setConsumeGroup(group);
+		msg.setCredit(credit);
+		return invokeSync(msg, invokeTimeout);
+	}
+	
+	/**
+	 * Grant more credits to the subscription, no reply
+	 * @param credit messages more to push, usually count of messages handled
+	 */
+	public void grantCredit(String topic, String group, int credit) throws IOException {
+		Message msg = new Message();
+		msg.setCommand(Protocol.SUBSCRIBE);
+		msg.setTopic(topic);
+		msg.setConsumeGroup(group);
+		msg.setCredit(credit);
+		msg.setAck(false);
+		invokeAsync(msg, null); 
+	}
+	
 	public void unconsume(String topic) throws IOException, InterruptedException {
 		unconsume(topic, topic);
 	}
@@ -11,6 +11,7 @@ import io.zbus.mq.Broker.ServerSelector;
 import io.zbus.mq.Protocol.TopicInfo;
 import io.zbus.transport.ResultCallback;
 import io.zbus.transport.ServerAddress;
+import io.zbus.transport.Sync;
  
 
 public class Producer extends MqAdmin{  
@@ -29,6 +30,10 @@ public class Producer extends MqAdmin{
 		this(new ProducerConfig(broker));
 	} 
 	
+	/**
+	 * Publish message, the id is kept: publishing the same message again after failure or timeout is a retry,
+	 * dropped by the server if stored already(dedup enabled on the topic)
+	 */
 	public Message publish(Message msg, long timeout) throws IOException, InterruptedException {
 		MqClientPool[] poolArray = broker.selectClient(this.produceServerSelector, msg);
 		if(poolArray.length < 1){
@@ -38,7 +43,11 @@ public class Producer extends MqAdmin{
 		MqClient client = null;
 		try {
 			client = pool.borrowClient(); 
-			return configClient(client).produce(msg, timeout);
+			if(msg.getId() == null){
+				msg.setId(Sync.nextId());
+			}
+			msg.setCommand(Protocol.PRODUCE);
+			return configClient(client).invokeSync(msg, timeout, true);
 		} finally {
 			pool.returnClient(client);
 		} 
@@ -63,6 +72,49 @@ public class Producer extends MqAdmin{
 		} 
 	}   
 	
+	/**
+	 * Publish messages of a topic in one request, written by one disk append and acked once
+	 * @param topic topic of all messages
+	 * @param msgs messages to publish, in order
+	 * @param timeout timeout in milliseconds
+	 * @return reply of the batch
+	 */
+	public Message publishBatch(String topic, List<Message> msgs, long timeout) throws IOException, InterruptedException {
+		Message batch = MqClient.batchMessage(topic, msgs);
+		MqClientPool[] poolArray = broker.selectClient(this.produceServerSelector, batch);
+		if(poolArray.length < 1){
+			throw new MqException("Missing MqClient for publishing topic: " + topic);
+		}
+		MqClientPool pool = poolArray[0]; 
+		MqClient client = null;
+		try {
+			client = pool.borrowClient(); 
+			return configClient(client).invokeSync(batch, timeout);
+		} finally {
+			pool.returnClient(client);
+		} 
+	}
+	
+	public Message publishBatch(String topic, List<Message> msgs) throws IOException, InterruptedException {
+		return publishBatch(topic, msgs, invokeTimeout);
+	}
+	
+	public void publishBatchAsync(String topic, List<Message> msgs, ResultCallback<Message> callback) throws IOException {
+		Message batch = MqClient.batchMessage(topic, msgs);
+		MqClientPool[] poolArray = broker.selectClient(this.produceServerSelector, batch);
+		if(poolArray.length < 1){
+			throw new MqException("Missing MqClient for publishing topic: " + topic);
+		}
+		MqClientPool pool = poolArray[0]; 
+		MqClient client = null;
+		try {
+			client = pool.borrowClient(); 
+			configClient(client).invokeAsync(batch, callback);
+		} finally {
+			pool.returnClient(client);
+		} 
+	}
+	
 	public ServerSelector getProduceServerSelector() {
 		return produceServerSelector;
 	}
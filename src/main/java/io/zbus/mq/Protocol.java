@@ -13,9 +13,11 @@ public class Protocol {
 	//=============================[1] Command Values================================================
 	//MQ Produce/Consume
 	public static final String PRODUCE       = "produce";   
+	public static final String PRODUCE_BATCH = "produce_batch"; //messages packed in body, see Message.encodeBatch
 	public static final String CONSUME       = "consume";   
 	public static final String UNCONSUME     = "unconsume"; //leave consume status
 	public static final String ACK           = "ack";
+	public static final String SUBSCRIBE     = "subscribe"; //push mode, messages pushed while credits granted remain
 	public static final String ROUTE   	     = "route";     //route back message to sender
 	
 	//Topic control
@@ -65,14 +67,19 @@ public class Protocol {
 	public static final String GROUP_MASK           = "group_mask"; 
 	public static final String GROUP_ACK_WINDOW     = "group_ack_window"; 
 	public static final String GROUP_ACK_TIMEOUT    = "group_ack_timeout";
+	public static final String GROUP_MAX_RETRY      = "group_max_retry"; //moved to dead letter topic if exceeded
 	
 	public static final String CONSUME_WINDOW       = "consume_window";  
+	public static final String CONSUME_BATCH        = "consume_batch";  //count of messages packed in consume reply, see Message.encodeBatch
+	public static final String CREDIT               = "credit";         //messages granted to push by subscribe
 	
 	public static final String SENDER   			= "sender"; 
 	public static final String RECVER   			= "recver";
 	public static final String ID      				= "id";	
 	public static final String TIMESTAMP      	    = "timestamp";	//timestamp when message saved in broker
 	public static final String RETRY      	        = "retry";	    //NAK message retry count
+	public static final String DELAY      	        = "delay";	    //milliseconds to delay delivery of message
+	public static final String DELIVER_AT           = "deliver_at"; //time in milliseconds to deliver message, overrides delay
 	
 	public static final String HOST   			    = "host";   
 	public static final String ENCODING 			= "encoding"; 
@@ -81,6 +88,9 @@ public class Protocol {
 	public static final String ORIGIN_URL   		= "origin_url";
 	public static final String ORIGIN_METHOD   		= "origin_method";
 	public static final String ORIGIN_STATUS 		= "origin_status";
+	public static final String ORIGIN_TOPIC 		= "origin_topic";  //dead letter's topic before moved
+	public static final String ORIGIN_GROUP 		= "origin_group";  //dead letter's consume group
+	public static final String ORIGIN_OFFSET 		= "origin_offset"; //dead letter's offset in origin topic
 	
 	//Security  
 	public static final String TOKEN   				= "token";  
@@ -130,12 +140,33 @@ public class Protocol {
 		public long infoVersion;
 		public List<ServerAddress> trackerList;  
 		public Map<String, TopicInfo> topicTable = new ConcurrentHashMap<String, TopicInfo>(); 
+		public BlockCacheInfo blockCache;
+		public ResourceInfo resources;
+		public long startupTime; //milliseconds, topics loading included
 		
 		public ServerInfo clone() { 
 			return (ServerInfo)super.clone();   
 		}
 	}
 	
+	public static class BlockCacheInfo { 
+		public long capacity;
+		public long size;
+		public long hitCount;
+		public long missCount;
+		public long evictionCount;
+	}
+	
+	public static class ResourceInfo { 
+		public long openFiles;     //file descriptors held by disk topics
+		public long maxOpenFiles;
+		public long mappedBytes;   //bytes mapped by disk topics
+		public long maxMappedBytes;
+		public int handleCount;    //releasable blocks, readers and NAK files open
+		public long releaseCount;
+		public long reopenCount;
+	}
+	
 	public static class TopicInfo extends TrackItem { 
 		public String topicName;
 		public int mask; 
@@ -168,6 +199,7 @@ public class Protocol {
 		public String filter;
 		public long messageCount;
 		public int consumerCount;
+		public Integer maxRetry;
 		public List<String> consumerList = new ArrayList<String>();
 		
 		public String creator;
@@ -6,41 +6,125 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
  
-class Block implements Closeable {  
+class Block implements Closeable, ResourceManager.Resource {  
 	private final Index index; 
 	private final long blockNumber; 
 	private final long baseOffset;
+	private final File file;
 	
 	private RandomAccessFile diskFile; 
-	private BlockReadBuffer readBuffer;
+	private MappedBlock mappedBlock;  //mmap mode only
+	private final BlockIndex blockIndex;
+	private ReadBuffer readBuffer;
+	private Boolean framed;       //compressed frames, detected by block magic or decided on first write
+	private int format = 0;       //write only, record format of the block, decided on first write
+	private int physicalEnd = -1; //write only, file position of next frame
+	private volatile int sealedEndOffset = -1;
 	private Object readBufferLock = new Object();
 	private final Lock lock = new ReentrantLock();  
+	private final Object forceLock = new Object(); //force runs outside of write lock, but never with close
+	private boolean closed = false;
+	private volatile boolean dirty = false; //written since last force, set after write and cleared before force
+	private final ResourceManager.Handle handle = new ResourceManager.Handle(this);
+	private ByteBuffer writeBuffer;               //write only, reused by batches, records encoded in place
+	private final Checksum crc = new CRC32();     //write only
+	private final Head head = new Head();         //record head last scanned, guarded by lock
+	private static final int WriteBufferInitSize = 64 * 1024;
+	private static final int WriteBufferMaxKept = 4 * 1024 * 1024;
 	
 	Block(Index index, File file, long blockNumber, long baseOffset) throws IOException{   
 		this.index = index;
 		this.blockNumber = blockNumber;
 		this.baseOffset = baseOffset;
+		this.file = file;
 		this.index.checkBlockNumber(blockNumber);
-		
-		if(!file.exists()){
-			File dir = file.getParentFile();
-			if(!dir.exists()){
-				dir.mkdirs();
-			}  
-		}   
-		
-		this.diskFile = new RandomAccessFile(file,"rw");    
+		this.blockIndex = new BlockIndex(Index.blockIndexFile(file));
+		open();
 	}   
 	
-	public int write(DiskMessage... msg) throws IOException {  
-		int size = 0;
-		for(DiskMessage data : msg){
-			size += data.size();
+	private void open() throws IOException {
+		if(index.getConfig().isMmapEnabled()){
+			this.mappedBlock = index.acquireMappedBlock(blockNumber, file);
+		} else {
+			if(!file.exists()){
+				File dir = file.getParentFile();
+				if(!dir.exists()){
+					dir.mkdirs();
+				}  
+			}   
+			this.diskFile = new RandomAccessFile(file,"rw");    
+			ResourceManager.shared().fileOpened();
+		}
+		ResourceManager.shared().opened(handle);
+	}
+	
+	/**
+	 * Reopen file or mapping released by ResourceManager, requires lock held
+	 */
+	private void checkOpen() throws IOException {
+		if(diskFile != null || mappedBlock != null){
+			handle.touch();
+			return;
+		}
+		if(closed){
+			throw new IllegalStateException("Block(" + blockNumber + ") closed");
+		}
+		open();
+	}
+	
+	/**
+	 * Close file and mapping of the block when idle, reopened on next access. Dirty data is forced first
+	 * unless flush disabled, force of a released block has nothing to do.
+	 */
+	@Override
+	public boolean release() {
+		if(!lock.tryLock()) return false;
+		try{
+			synchronized (forceLock) {
+				if(closed) return true;
+				if(dirty && index.getConfig().getFlushMode() != DiskConfig.FlushMode.NONE){
+					forceUnsafe();
+				}
+				closeFiles();
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void closeFiles() throws IOException {
+		synchronized (readBufferLock) {
+			readBuffer = null; //refers to the file or mapping closed
+		}
+		blockIndex.close();
+		if(mappedBlock != null){
+			index.releaseMappedBlock(mappedBlock);
+			mappedBlock = null;
 		}
+		if(diskFile != null){
+			diskFile.close();
+			diskFile = null;
+			ResourceManager.shared().fileClosed();
+		}
+	}
+	
+	public int write(DiskMessage... msg) throws IOException {  
+		return write(msg, msg.length);
+	}
+	
+	/**
+	 * Append the first count messages, encoded in place into the reused write buffer
+	 * @return bytes written, 0 if block is full
+	 */
+	public int write(DiskMessage[] msg, int count) throws IOException {  
 		try{
 			lock.lock();
 			
@@ -48,23 +132,69 @@ class Block implements Closeable {
 			if(start >= Index.BlockMaxSize){
 				return 0;
 			}  
+			checkOpen();
 			 
-			ByteBuffer buf = ByteBuffer.allocate(size); 
+			if(framed == null){
+				if(start == 0){ //new block
+					framed = index.getConfig().getCodec() != null;
+				} else {
+					checkReadBuffer();
+				}
+			}
+			if(format == 0){
+				format = start == 0? index.getConfig().getRecordFormat() : readFormatUnsafe(0); //never mixed in a block
+			}
+			
 			long messageNumber = index.getMessageCount();
-			int endOffset = start;
-			for(DiskMessage data : msg){
-				writeToBuffer(data, buf, endOffset, messageNumber++);
-				endOffset += data.size();
+			int indexInterval = index.getConfig().getIndexInterval();
+			if(writeBuffer != null){
+				writeBuffer.clear();
+			}
+			for(int i=0;i<count;i++){
+				DiskMessage data = msg[i];
+				int endOffset = start + (writeBuffer == null? 0 : writeBuffer.position());
+				long timestamp = data.timestamp == null? System.currentTimeMillis() : data.timestamp;
+				if(endOffset == 0 || messageNumber%indexInterval == 0){
+					blockIndex.addEntry(endOffset, messageNumber, timestamp);
+				}
+				blockIndex.addTag(data.tag);
+				if(format == DiskMessage.FORMAT_V2){
+					encodeV2(data, messageNumber++, timestamp);
+				} else { 
+					writeToBuffer(data, reserve(data.size()), endOffset, messageNumber++, timestamp);
+				}
 			} 
+			ByteBuffer buf = reserve(0);
+			int size = buf.position();
+			int endOffset = start + size;
 			
-			diskFile.seek(start);
-			diskFile.write(buf.array()); 
+			int writePosition = start;
+			if(framed){ //logical offsets unchanged, data stored as a frame at physical end
+				if(physicalEnd < 0){
+					physicalEnd = start == 0? 0 : ((FrameReadBuffer)readBuffer).physicalEnd(start);
+				}
+				writePosition = physicalEnd;
+				buf = FrameReadBuffer.encodeFrame(index.getConfig().getCodec(), buf.array(), size, start, physicalEnd == 0);
+			}
+			int bytes = buf.position();
 			
-			index.writeEndOffset(endOffset); 
-			index.increaseMessageCount(msg.length);
+			if(mappedBlock != null){
+				writeMapped(writePosition, buf);
+			} else {
+				diskFile.seek(writePosition);
+				diskFile.write(buf.array(), 0, bytes); 
+			}
+			if(framed){
+				physicalEnd = writePosition + bytes;
+			}
+			if(writeBuffer.capacity() > WriteBufferMaxKept){ //kept for typical batches only
+				writeBuffer = null;
+			}
+			blockIndex.flush(); //before endOffset published
+			dirty = true;
 			
-			index.newDataAvailable.get().countDown();
-			index.newDataAvailable.set(new CountDownLatch(1)); 
+			index.writeEndOffset(endOffset); //published once per batch
+			index.increaseMessageCount(count);
 		
 			return size;
 		} finally {
@@ -72,42 +202,90 @@ class Block implements Closeable {
 		}
 	}
 	
-	private ByteBuffer writeChecksumPart(DiskMessage data, long messageNumber){
-		ByteBuffer buf = ByteBuffer.wrap(new byte[DiskMessage.CHECKSUM_SIZE]); 
-		
-		byte[] id = new byte[40]; 
-		if(data.id != null){
-			id[0] = (byte)data.id.length();
-			System.arraycopy(data.id.getBytes(), 0, id, 1, id[0]); 
-		} else {
-			id[0] = 0; 
+	/**
+	 * Write buffer with at least bytes remaining, grown by copying the records encoded before
+	 */
+	private ByteBuffer reserve(int bytes){
+		if(writeBuffer == null){
+			writeBuffer = ByteBuffer.allocate(Math.max(bytes, WriteBufferInitSize));
+		} else if(writeBuffer.remaining() < bytes){
+			ByteBuffer buf = ByteBuffer.allocate(Math.max(writeBuffer.position() + bytes, writeBuffer.capacity()*2));
+			writeBuffer.flip();
+			buf.put(writeBuffer);
+			writeBuffer = buf;
+		}
+		return writeBuffer;
+	}
+	
+	private void writeMapped(int start, ByteBuffer buf) throws IOException{
+		long end = (long)start + buf.position();
+		if(end > mappedBlock.buffer.capacity()){
+			index.growMappedBlock(mappedBlock, end);
+		}
+		buf.flip();
+		ByteBuffer target = mappedBlock.buffer.duplicate();
+		target.position(start);
+		target.put(buf);
+	}
+	
+	private void encodeV2(DiskMessage data, long messageNumber, long timestamp) {  
+		int idLength = encodedLength(data.id);
+		int tagLength = encodedLength(data.tag);
+		int bodyLength = data.body == null? 0 : data.body.length;
+		int headerLength = Varint.sizeOf(timestamp) + Varint.sizeOf(messageNumber) 
+				+ Varint.sizeOf(idLength) + idLength + Varint.sizeOf(tagLength) + tagLength + Varint.sizeOf(bodyLength) + 4;
+		if(headerLength > DiskMessage.V2_HEADER_MAX_LEN){
+			throw new IllegalArgumentException("DiskMessage id/tag too long");
 		}
-		buf.put(id); 
-		if(data.timestamp == null){
-			buf.putLong(System.currentTimeMillis()); 
-		} else {
-			buf.putLong(data.timestamp);
-		} 
-		buf.putLong(messageNumber); //write message number
 		
-		byte[] tag = new byte[128];
-		if(data.tag != null){
-			tag[0] = (byte)data.tag.length();
-			System.arraycopy(data.tag.getBytes(), 0, tag, 1, tag[0]);
-		} else { 
-			tag[0] = 0; 
-		}
-		buf.put(tag);
+		ByteBuffer buf = reserve(1 + Varint.sizeOf(headerLength) + 4 + headerLength + bodyLength);
+		buf.put((byte)DiskMessage.FORMAT_V2);
+		Varint.write(buf, headerLength);
+		int checksumPos = buf.position();
+		buf.putInt(0);
+		Varint.write(buf, timestamp);
+		Varint.write(buf, messageNumber);
+		Varint.write(buf, idLength);
+		putString(buf, data.id);
+		Varint.write(buf, tagLength);
+		putString(buf, data.tag);
+		Varint.write(buf, bodyLength);
+		Checksum crc = this.crc;
+		crc.reset();
+		if(data.body != null){
+			crc.update(data.body, 0, data.body.length);
+		}
+		buf.putInt((int)crc.getValue());
 		
-		return buf;
+		crc.reset();
+		crc.update(buf.array(), buf.arrayOffset()+checksumPos+4, headerLength);
+		buf.putInt(checksumPos, (int)crc.getValue());
+		if(data.body != null){
+			buf.put(data.body);
+		}
+	}
+	
+	private int readFormatUnsafe(int pos) throws IOException {
+		checkReadBuffer();
+		readBuffer.seek(pos);
+		if(readBuffer.read(head.bytes, 0, 1) != 1){
+			throw new IllegalStateException("read position="+pos+" invalid");
+		}
+		return head.bytes[0] == DiskMessage.FORMAT_V2? DiskMessage.FORMAT_V2 : DiskMessage.FORMAT_V1;
 	}
 	
-	private void writeToBuffer(DiskMessage data, ByteBuffer buf, int endOffset, long messageNumber) {  
+	private void writeToBuffer(DiskMessage data, ByteBuffer buf, int endOffset, long messageNumber, long timestamp) {  
+		int start = buf.position();
 		buf.putLong(baseOffset+endOffset);
-		ByteBuffer checkedBuf = writeChecksumPart(data, messageNumber);
-		long checksum = BlockReadBuffer.calcChecksum(checkedBuf.array());
-		buf.putLong(checksum);
-		buf.put(checkedBuf.array()); 
+		buf.putLong(0); //checksum of the part below, filled after
+		int checkedPos = buf.position();
+		putFixed(buf, data.id, 40);
+		buf.putLong(timestamp);
+		buf.putLong(messageNumber); //write message number
+		putFixed(buf, data.tag, 128);
+		crc.reset();
+		crc.update(buf.array(), buf.arrayOffset()+checkedPos, DiskMessage.CHECKSUM_SIZE);
+		buf.putLong(start+8, crc.getValue());
 		
 		if(data.body != null){
 			buf.putInt(data.body.length);
@@ -117,62 +295,204 @@ class Block implements Closeable {
 		}   
 	}
 	
-	private void checkReadBuffer(){
+	/**
+	 * Format 1 fixed field: length(char count) + bytes, zero padded to size
+	 */
+	private static void putFixed(ByteBuffer buf, String value, int size){
+		int end = buf.position() + size;
+		if(value == null){
+			buf.put((byte)0);
+		} else {
+			buf.put((byte)value.length());
+			if(isAscii(value)){
+				putString(buf, value);
+			} else {
+				buf.put(value.getBytes(), 0, value.length());
+			}
+		}
+		while(buf.position() < end){ //write buffer reused, padding written explicitly
+			buf.put((byte)0);
+		}
+	}
+	
+	/**
+	 * @return bytes of value in default charset, 0 if null
+	 */
+	private static int encodedLength(String value){
+		if(value == null) return 0;
+		return isAscii(value)? value.length() : value.getBytes().length;
+	}
+	
+	/**
+	 * Put value as getBytes() does, ASCII(ids, tags in practice) copied by char without the intermediate array
+	 */
+	private static void putString(ByteBuffer buf, String value){
+		if(value == null) return;
+		if(!isAscii(value)){
+			buf.put(value.getBytes());
+			return;
+		}
+		for(int i=0;i<value.length();i++){
+			buf.put((byte)value.charAt(i));
+		}
+	}
+	
+	private static boolean isAscii(String value){
+		for(int i=0;i<value.length();i++){
+			if(value.charAt(i) >= 0x80) return false;
+		}
+		return true;
+	}
+	
+	private void checkReadBuffer() throws IOException{
+		checkOpen();
 		if(this.readBuffer != null){
 			return;
 		}
 		synchronized (readBufferLock) {
 			if(this.readBuffer == null){
-				this.readBuffer = new BlockReadBuffer(this.diskFile);
+				ReadBuffer raw = null;
+				if(mappedBlock != null){
+					raw = new MappedBlockReadBuffer(mappedBlock);
+				} else if(BlockCache.shared().isEnabled()){
+					raw = new CachedReadBuffer(BlockCache.shared(), this.diskFile, index.getCacheKey(), blockNumber);
+				} else {
+					raw = new BlockReadBuffer(this.diskFile);
+				}
+				if(framed == null){ //data available before read, magic already written 
+					framed = FrameReadBuffer.isFramed(raw);
+				}
+				this.readBuffer = framed? new FrameReadBuffer(raw) : raw;
 			}
 		}
 	}
 	 
+	/**
+	 * Read message head up to body length, readBuffer left at the start of body
+	 * bytesScanned is set to the head size, bodySize to the body length
+	 */
 	private DiskMessage readHeadUnsafe(int pos) throws IOException{
-		checkReadBuffer();
-    	
-		DiskMessage data = new DiskMessage();  
-    	
+		scanHeadUnsafe(pos);
+		return head.toMessage();
+	}
+	
+	/**
+	 * Parse message head into the reused head, no allocation: records skipped by filter or search create no object.
+	 * readBuffer left at the start of body.
+	 */
+	private void scanHeadUnsafe(int pos) throws IOException{
+		if(readFormatUnsafe(pos) == DiskMessage.FORMAT_V2){
+			scanHeadV2Unsafe(pos);
+			return;
+		}
+		Head h = head;
     	readBuffer.seek(pos);  
-		data.offset = readBuffer.readLong(); //offset
-		data.checksum = readBuffer.readLong();
-		boolean valid = readBuffer.checksum(DiskMessage.CHECKSUM_SIZE, data.checksum); 
-		if(!valid){
+		h.offset = readBuffer.readLong(); //offset
+		h.checksum = readBuffer.readLong();
+		byte[] b = h.reserve(DiskMessage.CHECKSUM_SIZE);
+		if(readBuffer.read(b, 0, DiskMessage.CHECKSUM_SIZE) != DiskMessage.CHECKSUM_SIZE){
 			throw new IllegalStateException("read position="+pos+" invalid");
 		}
-		byte[] id = new byte[40];
-		readBuffer.read(id); 
-		int idLen = id[0];
-		if(idLen>0 && idLen < 40){
-			data.id = new String(id, 1, idLen);  
-		} else {
+		h.crc.reset();
+		h.crc.update(b, 0, DiskMessage.CHECKSUM_SIZE);
+		if(h.crc.getValue() != h.checksum){
+			throw new IllegalStateException("read position="+pos+" invalid");
+		}
+		int idLen = b[0];
+		if(idLen <= 0 || idLen >= 40){
 			throw new IllegalStateException("Message.Id invalid length");
 		}
-		data.timestamp = readBuffer.readLong();
-		data.messageNumber = readBuffer.readLong();
-		byte[] tag = new byte[128];
-		readBuffer.read(tag);
-		int tagLen = tag[0];
-		if(tagLen > 0){ 
-			data.tag = new String(tag, 1, tagLen);  
-		}  
-		data.bytesScanned = DiskMessage.BODY_POS;
-		return data; 
+		h.idPos = 1;
+		h.idLength = idLen;
+		h.timestamp = getLong(b, 40);
+		h.messageNumber = getLong(b, 48);
+		h.tagPos = 57;
+		h.tagLength = Math.max(b[56], 0);
+		h.hasBodyChecksum = false;
+		h.bodySize = readBuffer.readInt();
+		h.bytesScanned = DiskMessage.BODY_POS + 4;
+	}
+	
+	private void scanHeadV2Unsafe(int pos) throws IOException{
+		Head h = head;
+		byte[] b = h.bytes;
+		int headerLength = 0, lengthSize = 0;
+		for(int shift=0; ; shift+=7){ //varint header length
+			if(readBuffer.read(b, 0, 1) != 1 || shift > 21){
+				throw new IllegalStateException("read position="+pos+" invalid");
+			}
+			lengthSize++;
+			headerLength |= (b[0] & 0x7F) << shift;
+			if((b[0] & 0x80) == 0) break;
+		}
+		if(headerLength <= 0 || headerLength > DiskMessage.V2_HEADER_MAX_LEN){
+			throw new IllegalStateException("read position="+pos+" invalid");
+		}
+		long checksum = readBuffer.readInt() & 0xFFFFFFFFL;
+		b = h.reserve(headerLength);
+		if(readBuffer.read(b, 0, headerLength) != headerLength){
+			throw new IllegalStateException("read position="+pos+" invalid");
+		}
+		h.crc.reset();
+		h.crc.update(b, 0, headerLength);
+		if(h.crc.getValue() != checksum){
+			throw new IllegalStateException("read position="+pos+" invalid");
+		}
+		
+		ByteBuffer buf = h.view;
+		buf.clear();
+		buf.limit(headerLength);
+		h.offset = baseOffset + pos;
+		h.checksum = checksum;
+		h.timestamp = Varint.readLong(buf);
+		h.messageNumber = Varint.readLong(buf);
+		h.idLength = Varint.readInt(buf);
+		h.idPos = buf.position();
+		buf.position(h.idPos + h.idLength);
+		h.tagLength = Varint.readInt(buf);
+		h.tagPos = buf.position();
+		buf.position(h.tagPos + h.tagLength);
+		h.bodySize = Varint.readInt(buf);
+		h.hasBodyChecksum = buf.remaining() >= 4;
+		if(h.hasBodyChecksum){
+			h.bodyChecksum = buf.getInt() & 0xFFFFFFFFL;
+		}
+		h.bytesScanned = 1 + lengthSize + 4 + headerLength;
+	}
+	
+	private static long getLong(byte[] b, int i){
+		long value = 0;
+		for(int k=0;k<8;k++){
+			value = (value << 8) | (b[i+k] & 0xFF);
+		}
+		return value;
 	}
 	 
-    private DiskMessage readFullyUnsafe(int pos) throws IOException{     
+    private DiskMessage readFullyUnsafe(int pos, int bodyLimit) throws IOException{     
     	DiskMessage data = readHeadUnsafe(pos);  
-		int size = readBuffer.readInt();
-		data.bytesScanned = DiskMessage.BODY_POS + 4;
-		if(size > 0){
-			byte[] body = new byte[size];
-			readBuffer.read(body);
-			data.body = body;
-			data.bytesScanned += size;
-		}
+		int size = data.bodySize;
+		readBodyUnsafe(data, pos, size, bodyLimit);
+		data.bytesScanned += size;
 		return data; 
     }
     
+    /**
+     * Read body after head read, bodies larger than bodyLimit are left on disk,
+     * only the first BODY_PEEK_SIZE bytes are read with the body region kept in data.
+     */
+    private void readBodyUnsafe(DiskMessage data, int pos, int size, int bodyLimit) throws IOException{
+    	if(size <= 0) return;
+    	int readSize = size;
+    	if(size > bodyLimit && !framed){ //body of compressed block can not be sent from file
+    		data.file = file;
+    		data.bodyPosition = pos + data.bytesScanned;
+    		readSize = Math.min(size, DiskMessage.BODY_PEEK_SIZE);
+    	}
+    	byte[] body = new byte[readSize];
+		readBuffer.read(body);
+		data.body = body;
+    }
+    
     public DiskMessage readHead(int pos) throws IOException{
     	try{
 			lock.lock();
@@ -183,9 +503,13 @@ class Block implements Closeable {
     }
     
     public DiskMessage readFully(int pos) throws IOException{ 
+    	return readFully(pos, Integer.MAX_VALUE);
+    }
+    
+    public DiskMessage readFully(int pos, int bodyLimit) throws IOException{ 
     	try{
 			lock.lock();
-			return readFullyUnsafe(pos);
+			return readFullyUnsafe(pos, bodyLimit);
     	} finally {
 			lock.unlock();
 		}
@@ -228,33 +552,101 @@ class Block implements Closeable {
     	return targetParts.length == tagParts.length;
     }
     
+    /**
+     * Same as isMatched(tagPartsList, new String(tag, offset, length)) without creating Strings,
+     * compared at byte level for ASCII filters(tag parts of multibyte charsets never equal ASCII parts)
+     */
+    protected static boolean isMatched(List<String[]> tagPartsList, byte[] tag, int offset, int length){
+    	if(length <= 0){
+    		return tagPartsList.isEmpty();
+    	}
+    	int count = tagPartsList.size(); //indexed loops, no iterator per record
+    	for(int i=0;i<count;i++){
+    		for(String tagPart : tagPartsList.get(i)){
+    			if(!isAscii(tagPart)){
+    				return isMatched(tagPartsList, new String(tag, offset, length));
+    			}
+    		}
+    	}
+    	int end = offset + length;
+    	while(end > offset && tag[end-1] == '.') end--; //trailing empty parts dropped, as String.split
+    	for(int i=0;i<count;i++){
+    		if(isMatched(tagPartsList.get(i), tag, offset, end)){
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+    
+    private static boolean isMatched(String[] tagParts, byte[] tag, int start, int end){
+    	int partStart = start;
+    	boolean hasPart = end > start; //target parts left
+    	for(int i=0;i<tagParts.length;i++){
+    		String tagPart = tagParts[i];
+    		if(!hasPart){
+    			return tagPart.equals("#"); //last #
+    		}
+    		int partEnd = partStart;
+    		while(partEnd < end && tag[partEnd] != '.') partEnd++;
+    		
+    		if("#".equals(tagPart)){
+    			return true;
+    		}
+    		if(!"*".equals(tagPart) && !equals(tagPart, tag, partStart, partEnd)){
+    			return false;
+    		}
+    		hasPart = partEnd < end;
+    		partStart = partEnd + 1;
+    	}
+    	return !hasPart;
+    }
+    
+    private static boolean equals(String value, byte[] bytes, int start, int end){
+    	if(value.length() != end - start) return false;
+    	for(int i=0;i<value.length();i++){
+    		if(value.charAt(i) != bytes[start+i]) return false;
+    	}
+    	return true;
+    }
+    
     public DiskMessage readByFilter(int pos, List<String[]> filterParts) throws IOException{ 
+    	return readByFilter(pos, filterParts, Integer.MAX_VALUE);
+    }
+    
+    public DiskMessage readByFilter(int pos, List<String[]> filterParts, int bodyLimit) throws IOException{ 
     	try{
 			lock.lock(); 
 			if(filterParts.size() < 1){ 
-				return readFullyUnsafe(pos);
+				return readFullyUnsafe(pos, bodyLimit);
 			}
 			
+			boolean tagIndexEnabled = index.getConfig().isTagIndexEnabled();
 			int bytesScanned = 0;
 			long messageCount = 0;
 			while(!isEndOfBlock(pos+bytesScanned)){
-				DiskMessage data = readHeadUnsafe(pos+bytesScanned); 
-				messageCount = data.messageNumber;
-				int size = readBuffer.readInt();
-				bytesScanned += data.bytesScanned+4+size; 
-				if(!isMatched(filterParts, data.tag)){ 
+				if(tagIndexEnabled){
+					BlockIndex.Entry next = blockIndex.skipChunks(pos+bytesScanned, endOffset(), filterParts);
+					if(next != null){ //no tag matched before next entry
+						bytesScanned = next.offset - pos;
+						messageCount = next.messageNumber-1;
+						continue;
+					}
+				}
+				int dataPos = pos+bytesScanned;
+				scanHeadUnsafe(dataPos); 
+				messageCount = head.messageNumber;
+				int size = head.bodySize;
+				bytesScanned += head.bytesScanned+size; 
+				if(!isMatched(filterParts, head.bytes, head.tagPos, head.tagLength)){ 
 					int n = readBuffer.skipBytes(size);
 					if( n != size){
-						throw new IllegalStateException("DiskMessage format error: " + data.offset);
+						throw new IllegalStateException("DiskMessage format error: " + head.offset);
 					}
 					continue;
 				}
 				
-				if(size > 0){
-					byte[] body = new byte[size];
-					readBuffer.read(body);
-					data.body = body; 
-				}
+				DiskMessage data = head.toMessage();
+				readBodyUnsafe(data, dataPos, size, bodyLimit);
 				data.bytesScanned = bytesScanned; 
 				return data;
 			}
@@ -269,6 +661,160 @@ class Block implements Closeable {
 		}
     } 
     
+    /**
+     * Search the first message with timestamp not less than the time given
+     * @param time timestamp to search
+     * @return offset of the message found, endOffset of the block if not found
+     * @throws IOException if read failed
+     */
+    public int searchByTime(long time) throws IOException{
+    	try{
+			lock.lock();
+			int endOffset = endOffset();
+			int pos = startPosition(blockIndex.floorByTime(time, endOffset));
+			while(pos < endOffset){
+				scanHeadUnsafe(pos);
+				if(head.timestamp >= time) break;
+				pos += head.bytesScanned + head.bodySize;
+			}
+			return pos;
+    	} finally {
+			lock.unlock();
+		}
+    }
+    
+    /**
+     * Search the message with the given message number
+     * @param messageNumber message number to search
+     * @return offset of the message found, -1 if not in this block
+     * @throws IOException if read failed
+     */
+    public int searchByMessageNumber(long messageNumber) throws IOException{
+    	try{
+			lock.lock();
+			int endOffset = endOffset();
+			int pos = startPosition(blockIndex.floorByMessageNumber(messageNumber, endOffset));
+			while(pos < endOffset){
+				scanHeadUnsafe(pos);
+				if(head.messageNumber == messageNumber) return pos;
+				if(head.messageNumber > messageNumber) break;
+				pos += head.bytesScanned + head.bodySize;
+			}
+			return -1;
+    	} finally {
+			lock.unlock();
+		}
+    }
+    
+    /**
+     * Validate records of the block tail for crash recovery, starting from the last sparse index entry verified.
+     * Records must be complete within endOffset, have valid checksums(body included if stored) and continuous message numbers.
+     * 
+     * @return tail validated, endOffset is the end of the last valid record
+     * @throws IOException if read failed
+     */
+    public Tail scanTail() throws IOException{
+    	try{
+			lock.lock();
+			int endOffset = endOffset();
+			BlockIndex.Entry entry = blockIndex.floorByOffset(endOffset-1);
+			while(entry != null && validRecordUnsafe(entry.offset, entry.messageNumber, endOffset) == null){
+				entry = blockIndex.floorByOffset(entry.offset-1); //torn before the entry, walk back
+			}
+			Tail tail = new Tail();
+			int pos = entry == null? 0 : entry.offset;
+			long messageNumber = entry == null? -1 : entry.messageNumber;
+			while(pos < endOffset){
+				DiskMessage data = validRecordUnsafe(pos, messageNumber, endOffset);
+				if(data == null) break;
+				tail.lastMessageNumber = data.messageNumber;
+				messageNumber = data.messageNumber + 1;
+				pos += data.bytesScanned;
+			}
+			tail.endOffset = pos;
+			return tail;
+    	} finally {
+			lock.unlock();
+		}
+    }
+    
+    /**
+     * @param messageNumber expected message number, -1 if unknown
+     * @return record with bytesScanned covering body, null if invalid
+     */
+    private DiskMessage validRecordUnsafe(int pos, long messageNumber, int endOffset) throws IOException{
+    	try{
+    		DiskMessage data = readHeadUnsafe(pos);
+    		if(messageNumber >= 0 && data.messageNumber != messageNumber) return null;
+    		if(data.bodySize < 0 || (long)pos + data.bytesScanned + data.bodySize > endOffset) return null;
+    		
+    		byte[] body = new byte[data.bodySize];
+    		if(readBuffer.read(body) != body.length) return null;
+    		if(data.bodyChecksum != null){
+    			Checksum crc = new CRC32();
+    			crc.update(body, 0, body.length);
+    			if(crc.getValue() != data.bodyChecksum) return null;
+    		}
+    		data.bytesScanned += data.bodySize;
+    		return data;
+    	} catch (RuntimeException e) { //IllegalStateException of checksum/format, or garbage lengths
+			return null;
+		} 
+    }
+    
+    /**
+     * Drop data after endOffset(torn records found by recovery), only before the block is written again
+     * @param endOffset valid end offset of the block
+     * @throws IOException if truncate failed
+     */
+    public void truncate(int endOffset) throws IOException{
+    	try{
+			lock.lock();
+			blockIndex.truncate(endOffset);
+			if(mappedBlock != null) return; //preallocated, overwritten by next write
+			
+			checkReadBuffer();
+			long length = framed? ((FrameReadBuffer)readBuffer).physicalEnd(endOffset) : endOffset;
+			if(diskFile.length() > length){
+				diskFile.setLength(length);
+			}
+    	} finally {
+			lock.unlock();
+		}
+    }
+    
+    private int startPosition(BlockIndex.Entry entry) throws IOException{
+    	if(entry == null) return 0;
+    	try{
+    		scanHeadUnsafe(entry.offset); //sparse index is a hint, verify it
+    		if(head.messageNumber == entry.messageNumber) return entry.offset;
+    	} catch (IllegalStateException e) {
+    		//ignore, scan from block start
+		}
+    	return 0;
+    }
+    
+    /**
+     * Force written data of this block to disk, concurrent writes are not blocked
+     * @throws IOException if force failed
+     */
+    public void force() throws IOException{
+    	synchronized (forceLock) {
+    		if(closed) return; //forced before closed
+    		forceUnsafe();
+		}
+    }
+    
+    private void forceUnsafe() throws IOException{
+    	dirty = false;
+    	if(mappedBlock != null){
+    		mappedBlock.buffer.force();
+    	} else if(diskFile != null){
+    		diskFile.getChannel().force(false);
+    	} //else released by ResourceManager, forced before released
+    	blockIndex.force();
+    }
+    
     /**
      * Check if endOffset of block reached max block size allowed
      * @return true if max block size reached, false other wise
@@ -289,15 +835,80 @@ class Block implements Closeable {
     }
     
     private int endOffset() throws IOException{
-    	return index.readOffset(blockNumber).endOffset;
+    	if(sealedEndOffset >= 0) return sealedEndOffset;
+    	boolean sealed = blockNumber < index.currentBlockNumber(); //checked before read, end offset final
+    	int endOffset = index.readEndOffset(blockNumber);
+    	if(sealed){ //still readable after removed from index by retention
+    		sealedEndOffset = endOffset;
+    	}
+    	return endOffset;
     } 
     
     public long getBlockNumber() {
 		return blockNumber;
 	}
     
+    static class Tail {
+    	int endOffset;
+    	long lastMessageNumber = -1; //-1 if no valid record
+    }
+    
 	@Override
 	public void close() throws IOException {  
-		this.diskFile.close();
+		synchronized (forceLock) {
+			closed = true;
+			ResourceManager.shared().closed(handle);
+			closeFiles();
+		}
 	}  
+	
+	/**
+	 * Fields of a record head, parsed into reused bytes. Strings and DiskMessage are created by toMessage only,
+	 * for records returned to readers.
+	 */
+	private static class Head {
+		byte[] bytes = new byte[256]; //format 1: checksum part, format 2: header
+		ByteBuffer view = ByteBuffer.wrap(bytes);
+		final Checksum crc = new CRC32();
+		long offset;
+		long checksum;
+		boolean hasBodyChecksum;
+		long bodyChecksum;
+		long timestamp;
+		long messageNumber;
+		int idPos;
+		int idLength;
+		int tagPos;
+		int tagLength;
+		int bodySize;
+		int bytesScanned;
+		
+		byte[] reserve(int size){
+			if(bytes.length < size){
+				bytes = new byte[Math.max(size, bytes.length*2)];
+				view = ByteBuffer.wrap(bytes);
+			}
+			return bytes;
+		}
+		
+		DiskMessage toMessage(){
+			DiskMessage data = new DiskMessage();
+			data.offset = offset;
+			data.checksum = checksum;
+			if(hasBodyChecksum){
+				data.bodyChecksum = bodyChecksum;
+			}
+			data.timestamp = timestamp;
+			data.messageNumber = messageNumber;
+			if(idLength > 0){
+				data.id = new String(bytes, idPos, idLength);
+			}
+			if(tagLength > 0){
+				data.tag = new String(bytes, tagPos, tagLength);
+			}
+			data.bodySize = bodySize;
+			data.bytesScanned = bytesScanned;
+			return data;
+		}
+	}
 }
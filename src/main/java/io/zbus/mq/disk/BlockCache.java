@@ -0,0 +1,161 @@
+package io.zbus.mq.disk;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-wide LRU cache of block chunks read from disk, shared by all readers(consume groups) of all topics,
+ * so fan-out topics read each chunk from disk once instead of once per group.
+ *
+ * Chunks are keyed by (index instance, blockNumber, chunk number), size bounded by bytes.
+ * The tail chunk of the block being written may be cached partially, readers reload it when reading beyond.
+ */
+public class BlockCache {
+	public static final int ChunkSize = 1024*1024;
+	public static final long DefaultCapacity = 64*1024*1024;
+
+	private static final BlockCache shared = new BlockCache(DefaultCapacity);
+
+	private final LinkedHashMap<ChunkKey, byte[]> chunks = new LinkedHashMap<ChunkKey, byte[]>(64, 0.75f, true); //access order
+	private long capacity;
+	private long size = 0;
+
+	private final AtomicLong hitCount = new AtomicLong(0);
+	private final AtomicLong missCount = new AtomicLong(0);
+	private final AtomicLong evictionCount = new AtomicLong(0);
+
+	public BlockCache(long capacity){
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return cache shared by all disk topics of the process
+	 */
+	public static BlockCache shared(){
+		return shared;
+	}
+
+	/**
+	 * @param key chunk key
+	 * @return chunk data, may be shorter than ChunkSize for the tail of block, null if not cached
+	 */
+	public synchronized byte[] get(ChunkKey key){
+		byte[] data = chunks.get(key);
+		if(data == null){
+			missCount.incrementAndGet();
+		} else {
+			hitCount.incrementAndGet();
+		}
+		return data;
+	}
+
+	public synchronized void put(ChunkKey key, byte[] data){
+		if(data.length > capacity) return; //disabled or too large
+		byte[] old = chunks.put(key, data);
+		if(old != null){
+			size -= old.length;
+		}
+		size += data.length;
+		evictUnsafe();
+	}
+
+	private void evictUnsafe(){
+		Iterator<byte[]> iter = chunks.values().iterator();
+		while(size > capacity && iter.hasNext()){ //least recently used first
+			size -= iter.next().length;
+			iter.remove();
+			evictionCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Remove chunks of blocks before blockNumber of an index, blocks removed by retention or index closed
+	 *
+	 * @param indexPath cache key of index
+	 * @param blockNumber chunks of blocks before it are removed, Long.MAX_VALUE for all
+	 */
+	public synchronized void invalidate(String indexPath, long blockNumber){
+		Iterator<Entry<ChunkKey, byte[]>> iter = chunks.entrySet().iterator();
+		while(iter.hasNext()){
+			Entry<ChunkKey, byte[]> e = iter.next();
+			ChunkKey key = e.getKey();
+			if(key.blockNumber < blockNumber && key.indexPath.equals(indexPath)){
+				size -= e.getValue().length;
+				iter.remove();
+			}
+		}
+	}
+
+	public synchronized void clear(){
+		chunks.clear();
+		size = 0;
+	}
+
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @param capacity max bytes cached, 0 to disable
+	 */
+	public synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+		evictUnsafe();
+	}
+
+	public boolean isEnabled(){
+		return getCapacity() >= ChunkSize;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("BlockCache[size=%d, capacity=%d, hit=%d, miss=%d, eviction=%d]",
+				getSize(), getCapacity(), getHitCount(), getMissCount(), getEvictionCount());
+	}
+
+	public static class ChunkKey {
+		final String indexPath;
+		final long blockNumber;
+		final long chunk;
+
+		public ChunkKey(String indexPath, long blockNumber, long chunk) {
+			this.indexPath = indexPath;
+			this.blockNumber = blockNumber;
+			this.chunk = chunk;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = indexPath.hashCode();
+			result = 31 * result + (int) (blockNumber ^ (blockNumber >>> 32));
+			result = 31 * result + (int) (chunk ^ (chunk >>> 32));
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof ChunkKey)) return false;
+			ChunkKey other = (ChunkKey) obj;
+			return blockNumber == other.blockNumber && chunk == other.chunk && indexPath.equals(other.indexPath);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package io.zbus.mq.disk;
+
+import java.io.IOException;
+
+/**
+ * Compression codec of block frames, a frame holds the messages of one block write.
+ *
+ * Codecs other than the built-in deflate are plugged in by ServiceLoader, list the
+ * implementation class in META-INF/services/io.zbus.mq.disk.BlockCodec, or register
+ * by BlockCodecs.register before topics are loaded.
+ */
+public interface BlockCodec {
+	/**
+	 * @return codec id stored in each frame, 1~127, 0 is reserved for uncompressed frames
+	 */
+	int id();
+
+	/**
+	 * @return codec name used in configuration, e.g. deflate
+	 */
+	String name();
+
+	byte[] compress(byte[] data, int offset, int length) throws IOException;
+
+	/**
+	 * @param data compressed data
+	 * @param offset offset of compressed data
+	 * @param length length of compressed data
+	 * @param out buffer of exactly the uncompressed size
+	 * @throws IOException if data corrupted
+	 */
+	void decompress(byte[] data, int offset, int length, byte[] out) throws IOException;
+}
@@ -0,0 +1,70 @@
+package io.zbus.mq.disk;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.zbus.kit.StrKit;
+import io.zbus.kit.logging.Logger;
+import io.zbus.kit.logging.LoggerFactory;
+
+/**
+ * Registry of block codecs, by name for configuration and by id for frames read
+ */
+public class BlockCodecs {
+	private static final Logger log = LoggerFactory.getLogger(BlockCodecs.class);
+	public static final String NONE = "none";
+
+	private static final Map<String, BlockCodec> codecNameTable = new ConcurrentHashMap<String, BlockCodec>();
+	private static final Map<Integer, BlockCodec> codecIdTable = new ConcurrentHashMap<Integer, BlockCodec>();
+
+	static {
+		register(new DeflateCodec());
+
+		Iterator<BlockCodec> iter = ServiceLoader.load(BlockCodec.class).iterator();
+		while(true){
+			try{
+				if(!iter.hasNext()) break;
+				register(iter.next());
+			} catch (ServiceConfigurationError e) {
+				log.error("Load BlockCodec error: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	public static void register(BlockCodec codec){
+		if(codec.id() <= 0 || codec.id() > 127){
+			throw new IllegalArgumentException("BlockCodec id should be 1~127: " + codec.id());
+		}
+		String name = codec.name().toLowerCase();
+		BlockCodec old = codecIdTable.get(codec.id());
+		if(old != null && !old.name().equalsIgnoreCase(name)){
+			throw new IllegalArgumentException(String.format("BlockCodec id=%d used by %s", codec.id(), old.name()));
+		}
+		codecIdTable.put(codec.id(), codec);
+		codecNameTable.put(name, codec);
+	}
+
+	/**
+	 * @param name codec name
+	 * @return null if name is empty or none
+	 */
+	public static BlockCodec get(String name){
+		if(StrKit.isEmpty(name) || NONE.equalsIgnoreCase(name)) return null;
+		BlockCodec codec = codecNameTable.get(name.trim().toLowerCase());
+		if(codec == null){
+			throw new IllegalArgumentException("BlockCodec(" + name + ") not found");
+		}
+		return codec;
+	}
+
+	public static BlockCodec get(int id){
+		BlockCodec codec = codecIdTable.get(id);
+		if(codec == null){
+			throw new IllegalStateException("BlockCodec(id=" + id + ") not registered");
+		}
+		return codec;
+	}
+}
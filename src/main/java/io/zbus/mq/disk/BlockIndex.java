@@ -0,0 +1,287 @@
+package io.zbus.mq.disk;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sparse index of a block, persisted next to the block file.
+ *
+ * One entry for the first message of the block and every indexInterval messages after,
+ * entries are ordered by offset, message number and timestamp at the same time, so all
+ * three keys support binary search.
+ *
+ * Each entry also carries the tag bloom filter of its chunk(messages up to the next entry),
+ * updated in place while the chunk is being written, which lets filtered readers skip
+ * whole chunks without matching tags.
+ *
+ * Entry: offset in block(4) + messageNumber(8) + timestamp(8) + tag bloom filter(64)
+ */
+class BlockIndex implements Closeable {
+	public static final int EntrySize = 4 + 8 + 8 + TagBloomFilter.Size;
+	private static final int BloomPos = 4 + 8 + 8;
+
+	private static final int KeyMessageNumber = 0;
+	private static final int KeyTimestamp = 1;
+	private static final int KeyOffset = 2;
+
+	private final File file;
+
+	//write block only
+	private RandomAccessFile writeFile;
+	private long writeEntryCount = -1;
+	private TagBloomFilter writeBloom; //bloom of the last entry, chunk still open
+	private ByteBuffer pendingEntries = ByteBuffer.allocate(EntrySize*4);
+	private boolean writeBloomChanged = false;
+
+	//read block only, entries cached for chunk skipping
+	private RandomAccessFile readFile;
+	private final List<Entry> readEntries = new ArrayList<Entry>();
+
+	BlockIndex(File file){
+		this.file = file;
+	}
+
+	/**
+	 * Start a new entry(chunk) at the message given, must be followed by addTag of the message
+	 */
+	public void addEntry(int offset, long messageNumber, long timestamp) throws IOException{
+		openForWrite();
+		if(pendingEntries.remaining() < EntrySize){
+			ByteBuffer buf = ByteBuffer.allocate(pendingEntries.capacity()*2);
+			pendingEntries.flip();
+			buf.put(pendingEntries);
+			pendingEntries = buf;
+		}
+		if(writeBloom != null && pendingEntries.position() > 0){ //bloom of previous pending entry completed
+			pendingEntries.position(pendingEntries.position() - TagBloomFilter.Size);
+			pendingEntries.put(writeBloom.getBits());
+		} else if(writeBloom != null && writeBloomChanged){ //chunk on disk completed
+			writeBloomUnsafe(writeEntryCount-1);
+		}
+		pendingEntries.putInt(offset);
+		pendingEntries.putLong(messageNumber);
+		pendingEntries.putLong(timestamp);
+		pendingEntries.put(new byte[TagBloomFilter.Size]);
+		writeEntryCount++;
+		writeBloom = new TagBloomFilter();
+		writeBloomChanged = false;
+	}
+
+	public void addTag(String tag){
+		if(tag == null || writeBloom == null) return;
+		writeBloom.add(tag);
+		writeBloomChanged = true;
+	}
+
+	/**
+	 * Write entries added, must be called before the block's endOffset covering them is published
+	 * @throws IOException if write failed
+	 */
+	public void flush() throws IOException{
+		if(pendingEntries.position() == 0 && !writeBloomChanged) return;
+		openForWrite(); //closed if released by ResourceManager
+		if(pendingEntries.position() > 0){
+			if(writeBloom != null){
+				pendingEntries.position(pendingEntries.position() - TagBloomFilter.Size);
+				pendingEntries.put(writeBloom.getBits());
+			}
+			long start = writeEntryCount - pendingEntries.position()/EntrySize;
+			writeFile.seek(start*EntrySize);
+			writeFile.write(pendingEntries.array(), 0, pendingEntries.position());
+			pendingEntries.clear();
+		} else if(writeBloomChanged){
+			writeBloomUnsafe(writeEntryCount-1);
+		}
+		writeBloomChanged = false;
+	}
+
+	private void writeBloomUnsafe(long entryIndex) throws IOException{
+		writeFile.seek(entryIndex*EntrySize + BloomPos);
+		writeFile.write(writeBloom.getBits());
+	}
+
+	private void openForWrite() throws IOException{
+		if(writeFile != null) return;
+		writeFile = new RandomAccessFile(file, "rw");
+		ResourceManager.shared().fileOpened();
+		if(writeEntryCount >= 0) return; //reopened after closed, entries and bloom kept in memory
+		writeEntryCount = writeFile.length()/EntrySize; //drop torn entry if any
+		if(writeEntryCount > 0){ //continue the open chunk after restart
+			byte[] bits = new byte[TagBloomFilter.Size];
+			writeFile.seek((writeEntryCount-1)*EntrySize + BloomPos);
+			writeFile.readFully(bits);
+			writeBloom = new TagBloomFilter(bits);
+		}
+	}
+
+	/**
+	 * @param messageNumber message number to search
+	 * @param endOffset end offset of the block, entries beyond are ignored
+	 * @return the last entry with message number less or equal than messageNumber, null if not found
+	 * @throws IOException if read failed
+	 */
+	public Entry floorByMessageNumber(long messageNumber, int endOffset) throws IOException{
+		return floor(KeyMessageNumber, messageNumber, endOffset, false);
+	}
+
+	/**
+	 * @param offset offset in block
+	 * @return the last entry with offset less or equal than offset, null if not found
+	 * @throws IOException if read failed
+	 */
+	public Entry floorByOffset(int offset) throws IOException{
+		return floor(KeyOffset, offset, Integer.MAX_VALUE, false);
+	}
+
+	/**
+	 * Remove entries at or after endOffset, records dropped by crash recovery
+	 * @param endOffset valid end offset of the block
+	 * @throws IOException if write failed
+	 */
+	public void truncate(int endOffset) throws IOException{
+		if(!file.exists()) return;
+		Entry entry = floorByOffset(endOffset-1);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try{
+			long count = raf.length()/EntrySize, keep = 0;
+			if(entry != null){
+				for(keep=count; keep>0; keep--){
+					if(readEntry(raf, keep-1).offset == entry.offset) break;
+				}
+			}
+			raf.setLength(keep*EntrySize);
+		} finally {
+			raf.close();
+		}
+		readEntries.clear();
+	}
+
+	/**
+	 * @param timestamp time to search
+	 * @param endOffset end offset of the block, entries beyond are ignored
+	 * @return the last entry with timestamp strictly less than timestamp, null if not found
+	 * @throws IOException if read failed
+	 */
+	public Entry floorByTime(long timestamp, int endOffset) throws IOException{
+		return floor(KeyTimestamp, timestamp, endOffset, true);
+	}
+
+	private Entry floor(int key, long target, int endOffset, boolean strict) throws IOException{
+		if(!file.exists()) return null;
+		RandomAccessFile readFile = new RandomAccessFile(file, "r");
+		try{
+			long lo = 0, hi = readFile.length()/EntrySize - 1;
+			Entry res = null;
+			while(lo <= hi){
+				long mid = (lo+hi) >>> 1;
+				Entry entry = readEntry(readFile, mid);
+				long value = key == KeyTimestamp? entry.timestamp : (key == KeyOffset? entry.offset : entry.messageNumber);
+				boolean before = strict? value < target : value <= target;
+				if(before && entry.offset < endOffset){
+					res = entry;
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			return res;
+		} finally {
+			readFile.close();
+		}
+	}
+
+	/**
+	 * Skip chunks whose tags can not match the filter, starting from the chunk containing pos.
+	 * The last chunk is never skipped since it may still be written.
+	 *
+	 * @param pos current read position
+	 * @param endOffset end offset of the block, entries beyond are ignored
+	 * @param filterParts filter groups of reader
+	 * @return entry starting the first chunk which may match, null if the chunk of pos may match
+	 * @throws IOException if read failed
+	 */
+	public Entry skipChunks(int pos, int endOffset, List<String[]> filterParts) throws IOException{
+		if(readEntries.isEmpty() || readEntries.get(readEntries.size()-1).offset <= pos){
+			loadEntries();
+		}
+		int lo = 0, hi = readEntries.size()-1, i = -1;
+		while(lo <= hi){ //the chunk containing pos
+			int mid = (lo+hi) >>> 1;
+			if(readEntries.get(mid).offset <= pos){
+				i = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		if(i < 0) return null;
+
+		Entry res = null;
+		while(i+1 < readEntries.size() && readEntries.get(i+1).offset < endOffset 
+				&& !readEntries.get(i).bloom.mayMatch(filterParts)){
+			res = readEntries.get(++i);
+		}
+		return res;
+	}
+
+	private void loadEntries() throws IOException{
+		if(readFile == null){
+			if(!file.exists()) return;
+			readFile = new RandomAccessFile(file, "r");
+			ResourceManager.shared().fileOpened();
+		}
+		long count = readFile.length()/EntrySize;
+		int start = readEntries.size();
+		if(start > 0){
+			start--; //bloom of the last loaded entry may have changed
+			readEntries.remove(start);
+		}
+		for(long i=start; i<count; i++){
+			readEntries.add(readEntry(readFile, i));
+		}
+	}
+
+	private Entry readEntry(RandomAccessFile readFile, long idx) throws IOException{
+		readFile.seek(idx*EntrySize);
+		Entry entry = new Entry();
+		entry.offset = readFile.readInt();
+		entry.messageNumber = readFile.readLong();
+		entry.timestamp = readFile.readLong();
+		byte[] bits = new byte[TagBloomFilter.Size];
+		readFile.readFully(bits);
+		entry.bloom = new TagBloomFilter(bits);
+		return entry;
+	}
+
+	public void force() throws IOException{
+		if(writeFile != null){
+			writeFile.getChannel().force(false);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(writeFile != null){
+			writeFile.close();
+			writeFile = null;
+			ResourceManager.shared().fileClosed();
+		}
+		if(readFile != null){
+			readFile.close();
+			readFile = null;
+			ResourceManager.shared().fileClosed();
+		}
+	}
+
+	public static class Entry {
+		public int offset;
+		public long messageNumber;
+		public long timestamp;
+		public TagBloomFilter bloom;
+	}
+}
@@ -5,7 +5,7 @@ import java.io.RandomAccessFile;
 import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 
-public class BlockReadBuffer {
+public class BlockReadBuffer implements ReadBuffer {
 	private static final int BUFFER_SIZE = 1024*1024; //TODO, Make it configuarable
 	private RandomAccessFile file;
 	private byte[] buffer;
@@ -77,19 +77,23 @@ public class BlockReadBuffer {
 	}
 	
 	public int read(byte[] data) throws IOException{   
-		int required = data.length;
+		return read(data, 0, data.length);
+	}
+	
+	public int read(byte[] data, int start, int length) throws IOException{   
+		int required = length;
 		if(required <= remaining()){
-			System.arraycopy(this.buffer, offset, data, 0, required);
+			System.arraycopy(this.buffer, offset, data, start, required);
 			offset += required;
 			return required;
 		}
 		
-		int dst = 0;
+		int dst = start;
 		while(required > 0){
 			if(remaining() <= 0){
 				this.pos += bufferLen;
 				this.loadBuffer();
-				if(bufferLen <= 0) return dst; //EOF
+				if(bufferLen <= 0) return dst - start; //EOF
 			}
 			
 			int bufRemaining = remaining();
@@ -99,7 +103,7 @@ public class BlockReadBuffer {
 			dst += n;
 			required -= n; 
 		} 
-		return dst;
+		return dst - start;
 	}
 	
 	public int peek(byte[] data) throws IOException{   
@@ -118,6 +122,12 @@ public class BlockReadBuffer {
 	
 	
 	public int readInt() throws IOException{ 
+		if(bufferLen - offset >= 4){ //no copy within the buffer
+			byte[] b = this.buffer;
+			int i = offset;
+			offset += 4;
+			return ((b[i]&0xFF) << 24) | ((b[i+1]&0xFF) << 16) | ((b[i+2]&0xFF) << 8) | (b[i+3]&0xFF);
+		}
 		byte[] data = new byte[4];
 		int n = read(data);
 		if(n != 4){
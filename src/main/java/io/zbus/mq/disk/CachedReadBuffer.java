@@ -0,0 +1,139 @@
+package io.zbus.mq.disk;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import io.zbus.mq.disk.BlockCache.ChunkKey;
+
+/**
+ * ReadBuffer of block file served by chunks of the shared BlockCache, chunks missed are read from file and cached.
+ */
+class CachedReadBuffer implements ReadBuffer {
+	private final BlockCache cache;
+	private final RandomAccessFile file;
+	private final String indexPath;
+	private final long blockNumber;
+
+	private byte[] chunk;        //chunk data of current position
+	private long chunkPos = -1;  //file position of chunk
+	private long pos = 0;        //read position in file
+
+	public CachedReadBuffer(BlockCache cache, RandomAccessFile file, String indexPath, long blockNumber) {
+		this.cache = cache;
+		this.file = file;
+		this.indexPath = indexPath;
+		this.blockNumber = blockNumber;
+	}
+
+	/**
+	 * @return bytes available in chunk from current position, 0 or less if end of file
+	 */
+	private int remaining() throws IOException{
+		if(chunk == null || pos < chunkPos || pos >= chunkPos + chunk.length){
+			loadChunk();
+		}
+		return (int)(chunkPos + chunk.length - pos);
+	}
+
+	private void loadChunk() throws IOException{
+		long chunkNumber = pos / BlockCache.ChunkSize;
+		long start = chunkNumber * BlockCache.ChunkSize;
+		ChunkKey key = new ChunkKey(indexPath, blockNumber, chunkNumber);
+		byte[] data = cache.get(key);
+		if(data == null || (data.length < BlockCache.ChunkSize && pos >= start + data.length)){ //tail chunk may grow
+			data = readChunk(start);
+			if(data.length > 0){
+				cache.put(key, data);
+			}
+		}
+		chunk = data;
+		chunkPos = start;
+	}
+
+	private byte[] readChunk(long start) throws IOException{
+		long length = Math.min(BlockCache.ChunkSize, file.length() - start);
+		if(length <= 0) return new byte[0];
+		byte[] data = new byte[(int)length];
+		file.seek(start);
+		int n = 0;
+		while(n < data.length){
+			int count = file.read(data, n, data.length - n);
+			if(count < 0) break;
+			n += count;
+		}
+		if(n < data.length){
+			byte[] res = new byte[n];
+			System.arraycopy(data, 0, res, 0, n);
+			data = res;
+		}
+		return data;
+	}
+
+	@Override
+	public void seek(long pos) throws IOException {
+		this.pos = pos;
+	}
+
+	@Override
+	public int skipBytes(int n) throws IOException {
+		if(n <= 0) return 0;
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public boolean checksum(int size, long checksum) {
+		long mark = pos;
+		byte[] data = new byte[size];
+		try {
+			if(read(data) != size) return false;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			pos = mark;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, size);
+		return checksum == crc.getValue();
+	}
+
+	@Override
+	public int read(byte[] data) throws IOException {
+		return read(data, 0, data.length);
+	}
+	
+	@Override
+	public int read(byte[] data, int offset, int length) throws IOException {
+		int n = 0;
+		while(n < length){
+			int remaining = remaining();
+			if(remaining <= 0) break; //EOF
+			int size = Math.min(remaining, length - n);
+			System.arraycopy(chunk, (int)(pos - chunkPos), data, offset + n, size);
+			pos += size;
+			n += size;
+		}
+		return n;
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		if(remaining() >= 4){ //within the chunk
+			byte[] b = chunk;
+			int i = (int)(pos - chunkPos);
+			pos += 4;
+			return ((b[i]&0xFF) << 24) | ((b[i+1]&0xFF) << 16) | ((b[i+2]&0xFF) << 8) | (b[i+3]&0xFF);
+		}
+		byte[] data = new byte[4];
+		if(read(data) != 4){
+			throw new IllegalStateException("Not enought data");
+		}
+		return ((data[0]&0xFF) << 24) | ((data[1]&0xFF) << 16) | ((data[2]&0xFF) << 8) | (data[3]&0xFF);
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		return ((long)(readInt()) << 32) + (readInt() & 0xFFFFFFFFL);
+	}
+}
@@ -0,0 +1,82 @@
+package io.zbus.mq.disk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Built-in block codec based on JDK Deflater, zlib state is reused per thread.
+ */
+public class DeflateCodec implements BlockCodec {
+	public static final int ID = 1;
+	public static final String NAME = "deflate";
+
+	private final ThreadLocal<Deflater> deflater;
+	private final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>(){
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	public DeflateCodec(){
+		this(Deflater.BEST_SPEED); //write path, speed over ratio
+	}
+
+	public DeflateCodec(final int level){
+		deflater = new ThreadLocal<Deflater>(){
+			@Override
+			protected Deflater initialValue() {
+				return new Deflater(level);
+			}
+		};
+	}
+
+	@Override
+	public int id() {
+		return ID;
+	}
+
+	@Override
+	public String name() {
+		return NAME;
+	}
+
+	@Override
+	public byte[] compress(byte[] data, int offset, int length) throws IOException {
+		Deflater deflater = this.deflater.get();
+		deflater.reset();
+		deflater.setInput(data, offset, length);
+		deflater.finish();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length/2 + 64);
+		byte[] buf = new byte[8192];
+		while(!deflater.finished()){
+			int n = deflater.deflate(buf);
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	@Override
+	public void decompress(byte[] data, int offset, int length, byte[] out) throws IOException {
+		Inflater inflater = this.inflater.get();
+		inflater.reset();
+		inflater.setInput(data, offset, length);
+		try {
+			int size = 0;
+			while(size < out.length && !inflater.finished()){
+				int n = inflater.inflate(out, size, out.length-size);
+				if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				size += n;
+			}
+			if(size != out.length){
+				throw new IOException("Frame data corrupted, expected=" + out.length + ", actual=" + size);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+}
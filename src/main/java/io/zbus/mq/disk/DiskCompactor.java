@@ -0,0 +1,157 @@
+package io.zbus.mq.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.zbus.kit.ConfigKit;
+import io.zbus.kit.FileKit;
+import io.zbus.kit.logging.Logger;
+import io.zbus.kit.logging.LoggerFactory;
+
+/**
+ * Offline tool rewriting a disk topic with the record format and compression given,
+ * e.g. migrate blocks of format 1 to the compact format 2. Run with the server stopped.
+ *
+ * Messages keep their id, tag, timestamp and message number, consume groups keep their position and filter,
+ * messages pending acknowledge(.nak) are not carried. 
+ * The original topic directory is moved to [mqPath].bak/[topic], out of mqPath so never loaded as a topic.
+ *
+ * Usage: DiskCompactor -dir /tmp/zbus/MyTopic [-format 2] [-compression none]
+ */
+public class DiskCompactor {
+	private static final Logger log = LoggerFactory.getLogger(DiskCompactor.class);
+	private static final String ScanReader = "__compactor__";
+
+	public static void main(String[] args) throws Exception {
+		String dir = ConfigKit.option(args, "-dir", null);
+		if(dir == null){
+			System.err.println("Usage: DiskCompactor -dir <topic directory> [-format 2] [-compression none]");
+			return;
+		}
+		DiskConfig config = new DiskConfig();
+		config.setRecordFormat(Integer.valueOf(ConfigKit.option(args, "-format", "" + DiskMessage.FORMAT_V2)));
+		config.setCompression(ConfigKit.option(args, "-compression", BlockCodecs.NONE));
+		compact(new File(dir), config);
+	}
+
+	/**
+	 * @param dir topic directory
+	 * @param config storage options of the topic rewritten
+	 * @throws IOException if read or write failed
+	 */
+	public static void compact(File dir, DiskConfig config) throws IOException {
+		File mqPath = dir.getAbsoluteFile().getParentFile(); //every directory in mqPath is loaded as a topic
+		File tmpDir = new File(mqPath.getPath() + ".compact", dir.getName()); //index named by directory
+		File bakDir = new File(mqPath.getPath() + ".bak", dir.getName());
+		if(bakDir.exists()){
+			throw new IllegalStateException(bakDir + " exists, remove it first");
+		}
+		FileKit.deleteFile(tmpDir);
+
+		Index src = new Index(dir);
+		Index dst = new Index(tmpDir, config);
+		copyMeta(src, dst);
+
+		List<ReaderState> readers = new ArrayList<ReaderState>();
+		Map<Long, List<ReaderState>> readerTable = new HashMap<Long, List<ReaderState>>(); //next message number => readers
+		File[] files = src.getReaderDir().listFiles();
+		if(files != null){
+			for(File file : files){
+				if(Index.isReaderFile(file)){
+					String name = file.getName().substring(0, file.getName().length() - Index.ReaderSuffix.length());
+					ReaderState state = new ReaderState();
+					state.reader = new QueueReader(src, name);
+					state.nextNumber = state.reader.getMessageNumber()+1;
+					readers.add(state);
+					List<ReaderState> list = readerTable.get(state.nextNumber);
+					if(list == null){
+						list = new ArrayList<ReaderState>();
+						readerTable.put(state.nextNumber, list);
+					}
+					list.add(state);
+				} else if(file.getName().endsWith(Index.NakSuffix)){
+					log.warn("%s not carried, messages pending acknowledge are dropped", file.getName());
+				}
+			}
+		}
+
+		QueueReader scan = new QueueReader(src, ScanReader + System.currentTimeMillis());
+		QueueWriter writer = new QueueWriter(dst);
+		long srcBytes = 0, position = 0, lastOffset = -1, lastNumber = -1, count = 0;
+		String lastId = null;
+		DiskMessage data;
+		while((data = scan.read()) != null){
+			if(count == 0){
+				dst.setMessageCount(data.messageNumber);
+			}
+			List<ReaderState> list = readerTable.get(data.messageNumber);
+			if(list != null){
+				for(ReaderState state : list){
+					state.offset = position;
+					state.id = data.id;
+				}
+			}
+			srcBytes += data.size();
+			lastOffset = position;
+			lastId = data.id;
+			lastNumber = data.messageNumber;
+
+			DiskMessage copy = new DiskMessage();
+			copy.id = data.id;
+			copy.tag = data.tag;
+			copy.timestamp = data.timestamp;
+			copy.body = data.body;
+			position = writer.write(copy);
+			count++;
+		}
+		writer.close();
+		scan.delete();
+
+		for(ReaderState state : readers){
+			QueueReader reader = new QueueReader(dst, state.reader.getGroupName());
+			copyMeta(state.reader, reader);
+			if(state.reader.getFilter() != null){
+				reader.setFilter(state.reader.getFilter());
+			}
+			if(state.id != null){
+				reader.seek(state.offset, state.id);
+			} else if(lastId != null && state.nextNumber > lastNumber){ //all read, move to the end
+				reader.seek(lastOffset, lastId);
+				reader.read();
+			}
+			reader.close();
+			state.reader.close();
+		}
+		src.close();
+		dst.close();
+
+		bakDir.getParentFile().mkdirs();
+		if(!dir.renameTo(bakDir) || !tmpDir.renameTo(dir)){
+			throw new IOException("Rename failed, compacted topic left in " + tmpDir);
+		}
+		tmpDir.getParentFile().delete();
+		log.info("%s compacted: %d messages, %d bytes(format 1) => %d bytes, backup in %s",
+				dir.getName(), count, srcBytes, position, bakDir);
+	}
+
+	private static void copyMeta(MappedFile src, MappedFile dst){
+		dst.setMask(src.getMask());
+		dst.setCreator(src.getCreator());
+		for(int i=0;i<MappedFile.ExtItemCount;i++){
+			if(src.getExt(i) != null){
+				dst.setExt(i, src.getExt(i));
+			}
+		}
+	}
+
+	private static class ReaderState {
+		QueueReader reader;
+		long nextNumber;
+		long offset;
+		String id;
+	}
+}
@@ -0,0 +1,252 @@
+package io.zbus.mq.disk;
+
+import static io.zbus.kit.ConfigKit.valueOf;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.w3c.dom.Node;
+
+import io.zbus.kit.StrKit;
+
+/**
+ * Storage options of a disk topic, configured globally by &lt;diskQueue&gt; and overridden
+ * per topic by &lt;diskQueueList&gt;&lt;diskQueue topic="xxx"&gt; in zbus.xml
+ */
+public class DiskConfig implements Cloneable {
+	/**
+	 * FILE: blocks are written by RandomAccessFile and read through per reader buffer
+	 * MMAP: active block mapped once, appends copied into the mapping, readers slice the shared mapping
+	 */
+	public static enum BlockMode {
+		FILE, MMAP
+	}
+	
+	/**
+	 * NONE: never force, left to OS page cache
+	 * INTERVAL: force every flushInterval milliseconds in background
+	 * BYTES: force in background once flushBytes written since last force
+	 * SYNC: force before acknowledging produce, concurrent producers share one force(group commit)
+	 */
+	public static enum FlushMode {
+		NONE, INTERVAL, BYTES, SYNC
+	}
+	
+	private BlockMode blockMode = BlockMode.FILE;
+	private FlushMode flushMode = FlushMode.NONE;
+	private long flushInterval = 1000;         //milliseconds, INTERVAL mode
+	private long flushBytes = 4 * 1024 * 1024; //BYTES mode
+	private int indexInterval = 64;            //one sparse index entry every indexInterval messages
+	private boolean tagIndexEnabled = true;    //filtered readers skip chunks by tag bloom filter
+	private int zeroCopyThreshold = 64 * 1024; //bodies larger are sent from block file directly, <=0 to disable
+	private String compression = BlockCodecs.NONE; //codec name of new block frames, see BlockCodecs
+	private long retentionBytes = 0;            //keep latest blocks within size, 0 for unlimited
+	private long retentionTime = 0;             //milliseconds, remove blocks not updated since, 0 for unlimited
+	private boolean retentionConsumed = false;  //remove blocks all consume groups have read past
+	private boolean evictUnconsumed = false;    //offset table full: evict the oldest block even if not consumed, otherwise produce fails
+	private int recordFormat = DiskMessage.FORMAT_V2; //message record layout of new blocks, 1: fixed 200 bytes header, 2: varint compact
+	private long delaySlot = 1000;              //milliseconds, time span of a delayed message slot file, delivered at most one slot late
+	private int dedupSize = 0;                  //recent message ids checked for duplicates, 0 to disable
+	private long dedupTime = 0;                 //milliseconds, ids older evicted from dedup window, 0 to evict by size only
+	private int appendRing = 8192;              //slots of the append ring drained by one writer thread, 0 to write in producer thread
+	
+	public void loadFromXml(XPath xpath, Node node) throws XPathExpressionException {
+		String value = xpath.evaluate("blockMode", node);
+		if(!StrKit.isEmpty(value)){
+			this.blockMode = BlockMode.valueOf(value.trim().toUpperCase());
+		}
+		value = xpath.evaluate("flushMode", node);
+		if(!StrKit.isEmpty(value)){
+			this.flushMode = FlushMode.valueOf(value.trim().toUpperCase());
+		}
+		this.flushInterval = valueOf(xpath.evaluate("flushMode/@interval", node), this.flushInterval);
+		this.flushBytes = valueOf(xpath.evaluate("flushMode/@bytes", node), this.flushBytes);
+		this.indexInterval = valueOf(xpath.evaluate("indexInterval", node), this.indexInterval);
+		this.tagIndexEnabled = valueOf(xpath.evaluate("tagIndexEnabled", node), this.tagIndexEnabled);
+		this.zeroCopyThreshold = valueOf(xpath.evaluate("zeroCopyThreshold", node), this.zeroCopyThreshold);
+		this.retentionBytes = valueOf(xpath.evaluate("retention/@bytes", node), this.retentionBytes);
+		this.retentionTime = valueOf(xpath.evaluate("retention/@time", node), this.retentionTime);
+		this.retentionConsumed = valueOf(xpath.evaluate("retention/@consumed", node), this.retentionConsumed);
+		this.evictUnconsumed = valueOf(xpath.evaluate("evictUnconsumed", node), this.evictUnconsumed);
+		setRecordFormat(valueOf(xpath.evaluate("recordFormat", node), this.recordFormat));
+		setDelaySlot(valueOf(xpath.evaluate("delaySlot", node), this.delaySlot));
+		this.dedupSize = valueOf(xpath.evaluate("dedup/@size", node), this.dedupSize);
+		this.dedupTime = valueOf(xpath.evaluate("dedup/@time", node), this.dedupTime);
+		this.appendRing = valueOf(xpath.evaluate("appendRing", node), this.appendRing);
+		value = xpath.evaluate("compression", node);
+		if(!StrKit.isEmpty(value)){
+			setCompression(value.trim());
+		}
+	}
+	
+	public BlockMode getBlockMode() {
+		return blockMode;
+	}
+
+	public void setBlockMode(BlockMode blockMode) {
+		this.blockMode = blockMode;
+	}
+	
+	public boolean isMmapEnabled(){
+		return blockMode == BlockMode.MMAP;
+	}
+	
+	public FlushMode getFlushMode() {
+		return flushMode;
+	}
+
+	public void setFlushMode(FlushMode flushMode) {
+		this.flushMode = flushMode;
+	}
+
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	public long getFlushBytes() {
+		return flushBytes;
+	}
+
+	public void setFlushBytes(long flushBytes) {
+		this.flushBytes = flushBytes;
+	}
+
+	public int getIndexInterval() {
+		return indexInterval;
+	}
+
+	public void setIndexInterval(int indexInterval) {
+		if(indexInterval < 1){
+			throw new IllegalArgumentException("indexInterval should >= 1");
+		}
+		this.indexInterval = indexInterval;
+	}
+
+	public boolean isTagIndexEnabled() {
+		return tagIndexEnabled;
+	}
+
+	public void setTagIndexEnabled(boolean tagIndexEnabled) {
+		this.tagIndexEnabled = tagIndexEnabled;
+	}
+
+	public int getZeroCopyThreshold() {
+		return zeroCopyThreshold;
+	}
+
+	public void setZeroCopyThreshold(int zeroCopyThreshold) {
+		this.zeroCopyThreshold = zeroCopyThreshold;
+	}
+	
+	public boolean isZeroCopyEnabled(){
+		return zeroCopyThreshold > 0;
+	}
+
+	public String getCompression() {
+		return compression;
+	}
+
+	public void setCompression(String compression) {
+		BlockCodecs.get(compression); //validate
+		this.compression = compression;
+	}
+	
+	public BlockCodec getCodec(){
+		return BlockCodecs.get(compression);
+	}
+	
+	public int getRecordFormat() {
+		return recordFormat;
+	}
+
+	public void setRecordFormat(int recordFormat) {
+		if(recordFormat != DiskMessage.FORMAT_V1 && recordFormat != DiskMessage.FORMAT_V2){
+			throw new IllegalArgumentException("recordFormat should be 1 or 2, but was " + recordFormat);
+		}
+		this.recordFormat = recordFormat;
+	}
+
+	public long getRetentionBytes() {
+		return retentionBytes;
+	}
+
+	public void setRetentionBytes(long retentionBytes) {
+		this.retentionBytes = retentionBytes;
+	}
+
+	public long getRetentionTime() {
+		return retentionTime;
+	}
+
+	public void setRetentionTime(long retentionTime) {
+		this.retentionTime = retentionTime;
+	}
+
+	public boolean isRetentionConsumed() {
+		return retentionConsumed;
+	}
+
+	public void setRetentionConsumed(boolean retentionConsumed) {
+		this.retentionConsumed = retentionConsumed;
+	}
+	
+	public boolean isEvictUnconsumed() {
+		return evictUnconsumed;
+	}
+
+	public void setEvictUnconsumed(boolean evictUnconsumed) {
+		this.evictUnconsumed = evictUnconsumed;
+	}
+	
+	public long getDelaySlot() {
+		return delaySlot;
+	}
+
+	public void setDelaySlot(long delaySlot) {
+		if(delaySlot <= 0){
+			throw new IllegalArgumentException("delaySlot(" + delaySlot + ") should > 0");
+		}
+		this.delaySlot = delaySlot;
+	}
+	
+	public int getDedupSize() {
+		return dedupSize;
+	}
+
+	public void setDedupSize(int dedupSize) {
+		this.dedupSize = dedupSize;
+	}
+
+	public long getDedupTime() {
+		return dedupTime;
+	}
+
+	public void setDedupTime(long dedupTime) {
+		this.dedupTime = dedupTime;
+	}
+	
+	public int getAppendRing() {
+		return appendRing;
+	}
+
+	public void setAppendRing(int appendRing) {
+		this.appendRing = appendRing;
+	}
+	
+	public boolean isRetentionEnabled(){
+		return retentionBytes > 0 || retentionTime > 0 || retentionConsumed;
+	}
+
+	@Override
+	public DiskConfig clone() { 
+		try {
+			return (DiskConfig)super.clone();
+		} catch (CloneNotSupportedException e) {
+			return null;
+		}
+	}
+}
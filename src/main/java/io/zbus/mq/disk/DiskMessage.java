@@ -1,8 +1,21 @@
 package io.zbus.mq.disk;
 
+import java.io.File;
+
+/**
+ * Message record stored in block.
+ * 
+ * Format 1: offset(8) + checksum(8) + id(40) + timestamp(8) + messageNumber(8) + tag(128) + body length(4) + body,
+ * the first byte is always 0 since offset never reaches 2^56.
+ * 
+ * Format 2: format(1, =2) + header length(varint) + CRC32 of header(4) + 
+ * header[timestamp(varint) + messageNumber(varint) + id length(varint) + id + tag length(varint) + tag + body length(varint) 
+ * + CRC32 of body(4, optional)] + body, offset is not stored but derived from the position.
+ */
 public class DiskMessage {
 	public Long offset; // 8, write ignore
 	public Long checksum; // 8
+	public Long bodyChecksum; //format 2 only, null if not stored
 	public String id; // 1 + id(max 39)
 	public Long timestamp; // 8
 	public Long messageNumber; // 8, write ignore
@@ -15,6 +28,10 @@ public class DiskMessage {
 		return 4 + bodySize + BODY_POS;
 	}
 	
+	public File file;          //block file, set only when body left on disk, body holds the first BODY_PEEK_SIZE bytes
+	public long bodyPosition;  //position of body in block file
+	public int bodySize;       //size of the whole body, set by read
+	
 	public boolean valid = true; //default to valid, when tag not found after reading to the end of block
 	public int bytesScanned; //when tagging applied, bytesScanned >= size()
 	
@@ -22,4 +39,9 @@ public class DiskMessage {
 	public static final int TAG_MAX_LEN = 127;
 	public static final int BODY_POS = 8 + 8 + 40 + 8 + 8 + 128; //200
 	public static final int CHECKSUM_SIZE = 40 + 8 + 8 + 128; 
+	public static final int BODY_PEEK_SIZE = 4096; 
+	
+	public static final int FORMAT_V1 = 1;
+	public static final int FORMAT_V2 = 2;
+	public static final int V2_HEADER_MAX_LEN = 64 * 1024; 
 }
\ No newline at end of file
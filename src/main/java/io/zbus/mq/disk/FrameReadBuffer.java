@@ -0,0 +1,230 @@
+package io.zbus.mq.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * ReadBuffer of a compressed block, positions are logical(as if the block were not compressed),
+ * so message offsets, sparse index and readers work the same as plain blocks.
+ *
+ * Block: magic(8) + frames, each frame holds the messages of one write
+ * Frame: codec id(1) + logical start(4) + raw length(4) + stored length(4) + stored data
+ *
+ * The frame being read is decompressed once and cached.
+ */
+class FrameReadBuffer implements ReadBuffer {
+	public static final long Magic = 0xFA627573C0DEC000L; //never a valid message offset(negative)
+	public static final int MagicSize = 8;
+	public static final int FrameHeaderSize = 1 + 4 + 4 + 4;
+	public static final int CodecNone = 0;
+
+	private final ReadBuffer raw;  //physical view of block file
+	private final List<Frame> frames = new ArrayList<Frame>(); //frames scanned, ordered by logical start
+	private int scanPosition = MagicSize; //physical position of next frame header to scan
+	private int scanLogical = 0;
+
+	private Frame current;
+	private byte[] data; //decompressed data of current frame
+	private int offset;  //read position in data
+
+	public FrameReadBuffer(ReadBuffer raw) {
+		this.raw = raw;
+	}
+
+	public static boolean isFramed(ReadBuffer raw) throws IOException{
+		raw.seek(0);
+		try{
+			return raw.readLong() == Magic;
+		} catch (IllegalStateException e) { //empty block
+			return false;
+		}
+	}
+
+	/**
+	 * Encode messages of one write to a frame
+	 * @param codec null to store without compression
+	 * @param data messages serialized
+	 * @param logicalStart logical offset of the first message
+	 * @param withMagic true for the first frame of the block
+	 * @return frame bytes, position at the end
+	 * @throws IOException if compress failed
+	 */
+	public static ByteBuffer encodeFrame(BlockCodec codec, byte[] data, int logicalStart, boolean withMagic) throws IOException{
+		return encodeFrame(codec, data, data.length, logicalStart, withMagic);
+	}
+	
+	/**
+	 * @param length bytes of data used, from 0
+	 */
+	public static ByteBuffer encodeFrame(BlockCodec codec, byte[] data, int length, int logicalStart, boolean withMagic) throws IOException{
+		int codecId = CodecNone;
+		byte[] stored = data;
+		int storedLength = length;
+		if(codec != null){
+			byte[] compressed = codec.compress(data, 0, length);
+			if(compressed.length < length){ //incompressible data stored as it is
+				codecId = codec.id();
+				stored = compressed;
+				storedLength = compressed.length;
+			}
+		}
+		int size = (withMagic? MagicSize : 0) + FrameHeaderSize + storedLength;
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		if(withMagic){
+			buf.putLong(Magic);
+		}
+		buf.put((byte)codecId);
+		buf.putInt(logicalStart);
+		buf.putInt(length);
+		buf.putInt(storedLength);
+		buf.put(stored, 0, storedLength);
+		return buf;
+	}
+
+	/**
+	 * @param logicalEnd logical end offset of the block
+	 * @return physical position after the frame ending at logicalEnd, where next frame is written
+	 * @throws IOException if read failed
+	 */
+	public int physicalEnd(int logicalEnd) throws IOException{
+		if(logicalEnd <= 0) return 0;
+		Frame frame = findFrame(logicalEnd-1);
+		return frame.dataPosition + frame.storedLength;
+	}
+
+	private Frame findFrame(long pos) throws IOException{
+		while(scanLogical <= pos){ //frames before endOffset are complete
+			raw.seek(scanPosition);
+			byte[] header = new byte[FrameHeaderSize];
+			if(raw.read(header) != FrameHeaderSize){
+				throw new IllegalStateException("Frame header missing, position=" + scanPosition);
+			}
+			ByteBuffer buf = ByteBuffer.wrap(header);
+			Frame frame = new Frame();
+			frame.codecId = buf.get();
+			frame.logicalStart = buf.getInt();
+			frame.rawLength = buf.getInt();
+			frame.storedLength = buf.getInt();
+			frame.dataPosition = scanPosition + FrameHeaderSize;
+			if(frame.logicalStart != scanLogical || frame.rawLength <= 0 || frame.storedLength < 0){
+				throw new IllegalStateException("Frame format error, position=" + scanPosition);
+			}
+			frames.add(frame);
+			scanPosition = frame.dataPosition + frame.storedLength;
+			scanLogical = frame.logicalStart + frame.rawLength;
+		}
+
+		int lo = 0, hi = frames.size()-1;
+		while(lo <= hi){
+			int mid = (lo+hi) >>> 1;
+			Frame frame = frames.get(mid);
+			if(pos < frame.logicalStart){
+				hi = mid - 1;
+			} else if(pos >= frame.logicalStart + frame.rawLength){
+				lo = mid + 1;
+			} else {
+				return frame;
+			}
+		}
+		throw new IllegalStateException("Frame not found, position=" + pos);
+	}
+
+	private void loadFrame(Frame frame) throws IOException{
+		byte[] stored = new byte[frame.storedLength];
+		raw.seek(frame.dataPosition);
+		if(raw.read(stored) != stored.length){
+			throw new IllegalStateException("Frame data missing, position=" + frame.dataPosition);
+		}
+		if(frame.codecId == CodecNone){
+			data = stored;
+		} else {
+			data = new byte[frame.rawLength];
+			try{
+				BlockCodecs.get(frame.codecId).decompress(stored, 0, stored.length, data);
+			} catch (IOException e) { //same as other format errors, torn frame after crash
+				throw new IllegalStateException("Frame data corrupted, position=" + frame.dataPosition, e);
+			}
+		}
+		current = frame;
+	}
+
+	@Override
+	public void seek(long pos) throws IOException {
+		if(current == null || pos < current.logicalStart || pos >= current.logicalStart + current.rawLength){
+			loadFrame(findFrame(pos));
+		}
+		offset = (int)(pos - current.logicalStart);
+	}
+
+	private int remaining() throws IOException{
+		if(current == null) return 0;
+		if(offset >= data.length){ //continue with next frame
+			seek(current.logicalStart + offset);
+		}
+		return data.length - offset;
+	}
+
+	@Override
+	public int skipBytes(int n) throws IOException {
+		if(n <= 0) return 0;
+		offset += n;
+		return n;
+	}
+
+	@Override
+	public boolean checksum(int size, long checksum) {
+		if(current == null || data.length - offset < size) return false; //message never spans frames
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, size);
+		return checksum == crc.getValue();
+	}
+
+	@Override
+	public int read(byte[] buf) throws IOException {
+		return read(buf, 0, buf.length);
+	}
+	
+	@Override
+	public int read(byte[] buf, int start, int length) throws IOException {
+		int n = 0;
+		while(n < length){
+			int remaining = remaining();
+			if(remaining <= 0) break;
+			int size = Math.min(remaining, length - n);
+			System.arraycopy(data, offset, buf, start + n, size);
+			offset += size;
+			n += size;
+		}
+		return n;
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		if(remaining() < 4){
+			throw new IllegalStateException("Not enought data");
+		}
+		byte[] b = data;
+		int i = offset;
+		offset += 4;
+		return ((b[i]&0xFF) << 24) | ((b[i+1]&0xFF) << 16) | ((b[i+2]&0xFF) << 8) | (b[i+3]&0xFF);
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		if(remaining() < 8){
+			throw new IllegalStateException("Not enought data");
+		}
+		return ((long)readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+	}
+
+	private static class Frame {
+		int codecId;
+		int logicalStart;
+		int rawLength;
+		int storedLength;
+		int dataPosition; //physical position of stored data
+	}
+}
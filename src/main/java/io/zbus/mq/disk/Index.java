@@ -2,21 +2,33 @@ package io.zbus.mq.disk;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.CountDownLatch;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
 
 import io.zbus.kit.FileKit;
+import io.zbus.kit.logging.Logger;
+import io.zbus.kit.logging.LoggerFactory;
  
 public class Index extends MappedFile {
-	public static final int IndexVersion  = 0x01;
+	private static final Logger log = LoggerFactory.getLogger(Index.class); 
+	private static final AtomicLong instanceCount = new AtomicLong(0);
+	public static final int IndexVersion  = 0x02; //0x02: rolling offset table, redo record of blocks removal
+	public static final int IndexVersion1 = 0x01;
 	public static final String IndexSuffix = ".idx";
 	public static final String ReaderSuffix = ".rdx";
 	public static final String NakSuffix = ".nak";
 	public static final String BlockSuffix = ".zbus";
+	public static final String BlockIndexSuffix = ".bdx";
 	public static final String BlockDir = "data";
 	public static final String ReaderDir = "reader"; 
-	public static final int BlockMaxCount = 10240;
+	public static final int BlockMaxCount = 10240; //slots of offset table, reused in ring by blockNumber
 	public static final long BlockMaxSize = 64 * 1024 * 1024; // default to 64M
 	
 
@@ -24,29 +36,196 @@ public class Index extends MappedFile {
 	private static final int IndexSize = HeadSize + BlockMaxCount * OffsetSize;
 
 	private static final int BlockCountPos = 4;  
+	private static final int BlockStartPos = 8;  
 	private static final int MessageCountPos = 16; 
+	private static final int PendingBlockStartPos = 24; //redo record of blocks removal, 0 if none
+	private static final int PendingBlockCountPos = 32; 
 	
 	private volatile int blockCount = 0;
 	private volatile long blockStart = 0; 
 	private volatile AtomicLong messageCount = new AtomicLong(0); 
 	
-	public final AtomicReference<CountDownLatch> newDataAvailable = new AtomicReference<CountDownLatch>(new CountDownLatch(1));;
-
 	private File indexDir; 
 	private final String name; 
+	private final DiskConfig config;
+	private final Map<Long, MappedBlock> mappedBlocks = new HashMap<Long, MappedBlock>();
+	private final List<File> evictedFiles = new ArrayList<File>(); //blocks rolled out of full offset table
+	private volatile ReaderFloor readerFloor; //blocks consumed by every group, evictable from full offset table
+	private final String cacheKey; //key of blocks in BlockCache, unique per instance, never hits data of a deleted topic
+	private final Object recoverLock = new Object();
+	private volatile boolean recovered = false; //recovery deferred to the first block opened
+	private boolean recovering = false;        //guarded by recoverLock
 
 	public Index(File dir) throws IOException {
+		this(dir, new DiskConfig());
+	}  
+	
+	public Index(File dir, DiskConfig config) throws IOException {
 		this.indexDir = dir;
 		this.name = indexDir.getName();
+		this.config = config == null? new DiskConfig() : config;
+		this.cacheKey = dir.getAbsolutePath() + "@" + instanceCount.incrementAndGet();
 		File file = new File(indexDir, this.indexDir.getName() + IndexSuffix);
 		load(file, IndexSize);
 	}  
 	
+	/**
+	 * Run crash recovery once, by DiskQueue when opened(topics loaded in parallel), at latest before any block is opened.
+	 * Only the tail of the active block is read, messageCount is exact afterwards.
+	 * 
+	 * @throws IOException if recovery failed
+	 */
+	public void checkRecovered() throws IOException {
+		if(recovered) return;
+		synchronized (recoverLock) {
+			if(recovered || recovering) return; //recovering: blocks opened by recover itself
+			recovering = true;
+			try{
+				recover();
+			} finally {
+				recovering = false;
+				recovered = true;
+			}
+		}
+	}
+	
+	/**
+	 * Crash recovery, validate the tail of the active block only: torn records after the last valid one are truncated,
+	 * endOffset and messageCount are fixed to match the data. Runs once per open, before the first block opened.
+	 * 
+	 * @throws IOException if read or truncate failed
+	 */
+	private void recover() throws IOException {
+		if(blockCount < 1) return;
+		long blockNumber = currentBlockNumber();
+		int endOffset = readOffset(blockNumber).endOffset;
+		Block block = createReadBlock(blockNumber);
+		try{
+			Block.Tail tail = block.scanTail();
+			if(tail.endOffset < endOffset){
+				log.warn("%s: block %d truncated from %d to %d, torn records dropped", name, blockNumber, endOffset, tail.endOffset);
+				block.truncate(tail.endOffset);
+				writeEndOffset(tail.endOffset);
+				BlockCache.shared().invalidate(cacheKey, Long.MAX_VALUE);
+			}
+			long lastMessageNumber = tail.lastMessageNumber;
+			if(lastMessageNumber < 0 && blockNumber > blockStart){ //active block empty, count ends with previous block
+				Block prev = createReadBlock(blockNumber-1);
+				try{
+					lastMessageNumber = prev.scanTail().lastMessageNumber;
+				} finally {
+					prev.close();
+				}
+			}
+			if(lastMessageNumber >= 0 && lastMessageNumber+1 != getMessageCount()){
+				log.warn("%s: messageCount fixed from %d to %d", name, getMessageCount(), lastMessageNumber+1);
+				setMessageCount(lastMessageNumber+1);
+			}
+		} finally {
+			block.close();
+		}
+	}
+	
 	public void delete() throws IOException {
 		super.delete(); 
 		FileKit.deleteFile(indexDir);
 	} 
 	
+	@Override
+	public void close() throws IOException {
+		synchronized (mappedBlocks) {
+			Iterator<MappedBlock> iter = mappedBlocks.values().iterator();
+			while(iter.hasNext()){
+				MappedBlock block = iter.next();
+				if(block.refCount > 0) continue; //still read, unmapped by the last releaseMappedBlock
+				iter.remove();
+				unmap(block.buffer);
+				ResourceManager.shared().unmapped(block.buffer.capacity());
+			}
+		}
+		BlockCache.shared().invalidate(cacheKey, Long.MAX_VALUE);
+		super.close();
+	}
+	
+	String getCacheKey() {
+		return cacheKey;
+	}
+	
+	public DiskConfig getConfig() {
+		return config;
+	}
+	
+	/**
+	 * @param readerFloor oldest block still required by consume groups, consumed blocks before it evicted when offset table full
+	 */
+	public void setReaderFloor(ReaderFloor readerFloor) {
+		this.readerFloor = readerFloor;
+	}
+	
+	/**
+	 * Get the mapping of block file, mapped once and shared by all Blocks of the same blockNumber
+	 * 
+	 * @param blockNumber block number
+	 * @param file block file
+	 * @return shared mapping, must be released by releaseMappedBlock
+	 * @throws IOException if mapping failed
+	 */
+	MappedBlock acquireMappedBlock(long blockNumber, File file) throws IOException {
+		synchronized (mappedBlocks) {
+			MappedBlock block = mappedBlocks.get(blockNumber);
+			if(block == null){
+				block = new MappedBlock(blockNumber, file, mapBlockFile(file, BlockMaxSize));
+				mappedBlocks.put(blockNumber, block);
+				ResourceManager.shared().mapped(block.buffer.capacity());
+			}
+			block.refCount++;
+			return block;
+		}
+	}
+	
+	/**
+	 * Remap block with larger capacity, only happens when the last batch of a block crosses BlockMaxSize.
+	 * The old mapping is left to GC since readers may still hold views of it.
+	 * 
+	 * @param block mapped block to grow
+	 * @param capacity required capacity
+	 * @throws IOException if mapping failed
+	 */
+	void growMappedBlock(MappedBlock block, long capacity) throws IOException {
+		synchronized (mappedBlocks) {
+			if(block.buffer.capacity() >= capacity) return;
+			long oldCapacity = block.buffer.capacity();
+			block.buffer = mapBlockFile(block.file, capacity);
+			ResourceManager.shared().mapped(block.buffer.capacity() - oldCapacity);
+		}
+	}
+	
+	void releaseMappedBlock(MappedBlock block){
+		synchronized (mappedBlocks) {
+			block.refCount--;
+			if(block.refCount > 0) return;
+			if(mappedBlocks.get(block.blockNumber) == block){
+				mappedBlocks.remove(block.blockNumber);
+				ResourceManager.shared().unmapped(block.buffer.capacity());
+			}
+			unmap(block.buffer);
+		}
+	}
+	
+	private static MappedByteBuffer mapBlockFile(File file, long capacity) throws IOException{
+		File dir = file.getParentFile();
+		if(dir != null && !dir.exists()){
+			dir.mkdirs();
+		}
+		RandomAccessFile diskFile = new RandomAccessFile(file, "rw");
+		try{
+			long size = Math.max(capacity, diskFile.length());
+			return diskFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			diskFile.close(); //mapping remains valid after channel closed
+		}
+	}
+	
 	public void writeEndOffset(int endOffset) throws IOException {
 		try {
 			lock.lock();
@@ -59,17 +238,33 @@ public class Index extends MappedFile {
 	} 
 
 	public Block createWriteBlock() throws IOException {
+		checkRecovered();
 		Offset offset = null; 
+		List<File> evicted = null;
+		long consumedBefore = -1;
+		ReaderFloor floor = readerFloor;
+		if(blockCount >= BlockMaxCount && floor != null){ //out of lock, readers lock index to search
+			consumedBefore = floor.minBlockNumber();
+		}
 		try {
 			lock.lock();
 			if (blockCount < 1 || isCurrentBlockFull()) { 
-				offset = addNewOffset();
+				offset = addNewOffset(consumedBefore);
 			} else { 
 				offset = readOffsetUnsafe(currentBlockNumber());
 			}
+			if(!evictedFiles.isEmpty()){
+				evicted = new ArrayList<File>(evictedFiles);
+				evictedFiles.clear();
+			}
 		} finally {
 			lock.unlock();
 		} 
+		if(evicted != null){ //out of lock, readers of evicted block forward to the oldest
+			for(File file : evicted){
+				file.delete();
+			}
+		}
 		Block block = new Block(this, blockFile(offset.baseOffset), currentBlockNumber(), offset.baseOffset);
 		return block;
 	}
@@ -79,6 +274,7 @@ public class Index extends MappedFile {
 			throw new IllegalStateException("No block to read");
 		}
 		checkBlockNumber(blockNumber);
+		checkRecovered();
 
 		Offset offset = readOffset(blockNumber);
 		Block block = new Block(this, blockFile(offset.baseOffset), blockNumber, offset.baseOffset);
@@ -95,6 +291,19 @@ public class Index extends MappedFile {
 		}
 	}
 
+	/**
+	 * End offset of the block only, checked for every record read, no Offset created
+	 */
+	public int readEndOffset(long blockNumber) throws IOException {
+		checkBlockNumber(blockNumber);
+		try {
+			lock.lock();
+			return buffer.getInt(blockPosition(blockNumber) + 16);
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	private Offset readOffsetUnsafe(long blockNumber) throws IOException {
 		buffer.position(blockPosition(blockNumber));
 
@@ -107,32 +316,64 @@ public class Index extends MappedFile {
 	}
 
 	public void checkBlockNumber(long blockNumber) {
-		if (blockNumber-blockStart >= blockCount) {
+		if (blockNumber < blockStart || blockNumber-blockStart >= blockCount) {
 			throw new IllegalArgumentException(
 					"blockNumber should >="+blockStart +" and <" + (blockStart+blockCount) + ", but was " + blockNumber);
 		}
 	}
  
+	/**
+	 * Binary search the block containing totalOffset, blocks are ordered by baseOffset
+	 * @param totalOffset offset across all blocks
+	 * @return block found, null if totalOffset not available
+	 * @throws IOException if read failed
+	 */
 	public BlockOffset searchBlock(long totalOffset) throws IOException {
-		for (int i = 0; i < blockCount; i++) {
-			long blockNumber = blockStart + i;
-			Offset offset = readOffset(blockNumber);
-			if (totalOffset >= offset.baseOffset && totalOffset < offset.baseOffset + offset.endOffset) {
-				return new BlockOffset(offset, blockNumber); 
+		try {
+			lock.lock();
+			long lo = blockStart, hi = blockStart + blockCount - 1;
+			while(lo <= hi){
+				long mid = (lo+hi) >>> 1;
+				Offset offset = readOffsetUnsafe(mid);
+				if(totalOffset < offset.baseOffset){
+					hi = mid - 1;
+				} else if(totalOffset >= offset.baseOffset + offset.endOffset){
+					lo = mid + 1;
+				} else {
+					return new BlockOffset(offset, mid);
+				}
 			}
+			return null;
+		} finally {
+			lock.unlock();
 		}
-		return null;
 	}
 	
+	/**
+	 * Binary search the first block updated not before timestamp, blocks are ordered by updatedTime
+	 * @param timestamp time to search
+	 * @return block found, null if all blocks updated before timestamp
+	 * @throws IOException if read failed
+	 */
 	public BlockOffset searchBlockByTime(long timestamp) throws IOException {
-		for (int i = 0; i < blockCount; i++) {
-			long blockNumber = blockStart + i;
-			Offset offset = readOffset(blockNumber);
-			if(offset.updatedTime<timestamp) continue;
-			
-			return new BlockOffset(offset, blockNumber); 
+		try {
+			lock.lock();
+			long lo = blockStart, hi = blockStart + blockCount - 1;
+			BlockOffset res = null;
+			while(lo <= hi){
+				long mid = (lo+hi) >>> 1;
+				Offset offset = readOffsetUnsafe(mid);
+				if(offset.updatedTime < timestamp){
+					lo = mid + 1;
+				} else {
+					res = new BlockOffset(offset, mid);
+					hi = mid - 1;
+				}
+			}
+			return res;
+		} finally {
+			lock.unlock();
 		}
-		return null;
 	}
 	
 	public long increaseMessageCount(){
@@ -147,6 +388,20 @@ public class Index extends MappedFile {
 		} 
 	}  
 	
+	/**
+	 * Message number of the next message written, only for an index rebuilt from another
+	 */
+	void setMessageCount(long count){
+		try {
+			lock.lock();
+			buffer.position(MessageCountPos); 
+			messageCount.set(count);
+			buffer.putLong(count);
+		} finally {
+			lock.unlock();
+		} 
+	}
+	
 	public long increaseMessageCount(int delta){
 		try {
 			lock.lock();
@@ -186,7 +441,7 @@ public class Index extends MappedFile {
 		return blockPosition(currentBlockNumber());
 	}
 	
-	private int blockPosition(long blockNumber){ 
+	private int blockPosition(long blockNumber){ //ring slot, blockNumber keeps growing for the whole topic life
 		return (int)(HeadSize + (blockNumber%BlockMaxCount)*OffsetSize);
 	}
 	
@@ -198,51 +453,66 @@ public class Index extends MappedFile {
 		return blockNumber>=(blockStart+blockCount);
 	}
 	
-	public long shrinkBySize(long targetSize) throws IOException{
-		if(targetSize <=0){
-			throw new IllegalArgumentException("targetSize should > 0, but = " + targetSize);
-		}
+	/**
+	 * Remove blocks before blockNumber from index, the current write block is never removed.
+	 * Header is updated through a redo record, blockStart and blockCount never mismatch after crash.
+	 * 
+	 * @param blockNumber blocks before it are removed
+	 * @return files of blocks removed, deleted by caller
+	 * @throws IOException if read failed
+	 */
+	public List<File> removeBlocksBefore(long blockNumber) throws IOException{
+		List<File> files = new ArrayList<File>();
 		try {
 			lock.lock();
-			int remainBlockCount = (int)(targetSize/BlockMaxSize);
-			if(remainBlockCount <= 0){
-				return Long.MAX_VALUE; //all deleted
-			}
-			if(remainBlockCount >= blockCount){
-				remainBlockCount = blockCount;
-			}
-			Offset offset = readOffsetUnsafe(blockStart+blockCount-remainBlockCount);
-			blockCount = remainBlockCount;
-			blockStart += (blockCount-remainBlockCount);
+			long newBlockStart = Math.min(blockNumber, currentBlockNumber());
+			if(newBlockStart <= blockStart) return files;
 			
-			return offset.baseOffset + offset.endOffset;
+			removeBlocksUnsafe(newBlockStart, files);
+			return files;
 		} finally {
 			lock.unlock();
 		}  
 	} 
 	
-	public long shrinkByTime(long startTime) throws IOException{ 
-		try {
-			lock.lock();
-			if(startTime >= System.currentTimeMillis()){
-				return Long.MAX_VALUE;
-			}
-			int remainBlockCount = blockCount;
-			for(long i=blockStart;i<blockStart+blockCount;i++){
-				Offset offset = readOffsetUnsafe(i);
-				if(startTime < offset.updatedTime) break;
-				remainBlockCount--;
-			}
-			
-			Offset offset = readOffsetUnsafe(blockStart+blockCount-remainBlockCount);
-			blockCount = remainBlockCount;
-			blockStart += (blockCount-remainBlockCount);
-			
-			return offset.baseOffset + offset.endOffset;
-		} finally {
-			lock.unlock();
-		}  
-	} 
+	private void removeBlocksUnsafe(long newBlockStart, List<File> files) throws IOException{
+		for(long i=blockStart; i<newBlockStart; i++){
+			File file = blockFile(readOffsetUnsafe(i).baseOffset);
+			files.add(file);
+			files.add(blockIndexFile(file));
+		}
+		int newBlockCount = (int)(blockStart + blockCount - newBlockStart);
+		buffer.position(PendingBlockCountPos);
+		buffer.putInt(newBlockCount);
+		buffer.position(PendingBlockStartPos);
+		buffer.putLong(newBlockStart); //redo record committed
+		
+		applyBlockStart(newBlockStart, newBlockCount); 
+		BlockCache.shared().invalidate(cacheKey, newBlockStart);
+	}
+	
+	private void applyBlockStart(long newBlockStart, int newBlockCount){
+		blockStart = newBlockStart;
+		blockCount = newBlockCount;
+		buffer.position(BlockStartPos);
+		buffer.putLong(blockStart);
+		writeBlockCount();
+		
+		buffer.position(PendingBlockStartPos);
+		buffer.putLong(0);
+	}
+	
+	/**
+	 * @param blockNumber block number
+	 * @return bytes of block on disk
+	 * @throws IOException if read failed
+	 */
+	public long blockSize(long blockNumber) throws IOException{
+		Offset offset = readOffset(blockNumber);
+		File file = blockFile(offset.baseOffset);
+		long size = Math.min(file.length(), offset.endOffset); //mmap block file preallocated
+		return size + blockIndexFile(file).length();
+	}
 	
 	private File blockFile(long baseOffset) {
 		String fileName = String.format("%020d%s", baseOffset, BlockSuffix);
@@ -250,6 +520,12 @@ public class Index extends MappedFile {
 		return new File(blockDir, fileName);
 	}
 
+	static File blockIndexFile(File blockFile){
+		String name = blockFile.getName();
+		name = name.substring(0, name.length()-BlockSuffix.length()) + BlockIndexSuffix;
+		return new File(blockFile.getParentFile(), name);
+	}
+
 	private void writeOffset(long blockNumber, Offset offset) {
 		buffer.position(blockPosition(blockNumber));
 
@@ -259,9 +535,19 @@ public class Index extends MappedFile {
 		buffer.putLong(offset.updatedTime);
 	} 
 	
-	private Offset addNewOffset() throws IOException {
-		if (blockCount >= BlockMaxCount) {
-			throw new IllegalStateException("Offset table full");
+	/**
+	 * @param consumedBefore blocks before it read by every consume group, -1 if unknown
+	 */
+	private Offset addNewOffset(long consumedBefore) throws IOException {
+		if (blockCount >= BlockMaxCount) { //roll out the oldest block, its slot is reused by the new one
+			if(config.isEvictUnconsumed()){
+				log.warn("%s: offset table full, block %d evicted, configure retention to avoid", name, blockStart);
+			} else if(consumedBefore > blockStart){
+				log.info("%s: offset table full, consumed block %d evicted", name, blockStart);
+			} else {
+				throw new IllegalStateException("Offset table full, oldest block not consumed, configure retention or evictUnconsumed");
+			}
+			removeBlocksUnsafe(blockStart+1, evictedFiles);
 		}
  
 		long baseOffset = 0;
@@ -301,12 +587,38 @@ public class Index extends MappedFile {
 	protected void loadDefaultData() throws IOException {
 		buffer.position(0);
 		int version = buffer.getInt();
-		if(version != IndexVersion){
+		if(version != IndexVersion && version != IndexVersion1){
 			throw new IllegalStateException("IndexVersion NOT matched");
 		} 
 		this.blockCount = buffer.getInt(); 
 		this.blockStart = buffer.getLong();  
 		this.messageCount.set(buffer.getLong()); 
+		
+		if(version == IndexVersion1){
+			upgradeVersion1();
+			return;
+		}
+		long pendingBlockStart = buffer.getLong();
+		if(pendingBlockStart > 0){ //crashed in blocks removal, redo
+			applyBlockStart(pendingBlockStart, buffer.getInt());
+		}
+	}
+	
+	/**
+	 * Version 1 shares the slot layout(blockNumber%BlockMaxCount), only header is checked and upgraded in place
+	 */
+	private void upgradeVersion1() throws IOException {
+		if(blockCount < 0 || blockCount > BlockMaxCount || blockStart < 0){
+			throw new IllegalStateException(String.format("%s: index header corrupted, blockStart=%d, blockCount=%d", 
+					name, blockStart, blockCount));
+		}
+		buffer.position(PendingBlockStartPos); //never written by version 1
+		buffer.putLong(0);
+		buffer.putInt(0);
+		
+		buffer.position(0);
+		buffer.putInt(IndexVersion);
+		log.info("%s: index upgraded from version %d to %d", name, IndexVersion1, IndexVersion);
 	}
 
 	@Override
@@ -342,4 +654,11 @@ public class Index extends MappedFile {
 			this.blockNumber = blockNumber;
 		}
 	}
+	
+	/**
+	 * Oldest block still required by any reader of the index
+	 */
+	public static interface ReaderFloor {
+		long minBlockNumber() throws IOException;
+	}
 }
@@ -0,0 +1,24 @@
+package io.zbus.mq.disk;
+
+import java.io.File;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Memory mapping of a block file shared by the writer and all readers of the same block.
+ * Reference counted by Index, unmapped when the last Block using it is closed.
+ */
+class MappedBlock {
+	final long blockNumber;
+	final File file;
+	/**
+	 * replaced when a batch crosses the mapped capacity, readers refresh their view on seek
+	 */
+	volatile MappedByteBuffer buffer;
+	int refCount;
+	
+	MappedBlock(long blockNumber, File file, MappedByteBuffer buffer) {
+		this.blockNumber = blockNumber;
+		this.file = file;
+		this.buffer = buffer;
+	}
+}
@@ -0,0 +1,85 @@
+package io.zbus.mq.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * ReadBuffer slicing a shared MappedBlock directly, no copy of block data into heap
+ */
+class MappedBlockReadBuffer implements ReadBuffer {
+	private final MappedBlock block;
+	private ByteBuffer mapped;  //the mapping this view is based on
+	private ByteBuffer buffer;  //private view(position) of the shared mapping
+	private byte[] checksumBuffer = new byte[DiskMessage.CHECKSUM_SIZE];
+	
+	public MappedBlockReadBuffer(MappedBlock block) {
+		this.block = block;
+		refresh();
+	}
+	
+	private void refresh(){
+		ByteBuffer current = block.buffer;
+		if(mapped == current) return;
+		int pos = buffer == null? 0 : buffer.position();
+		mapped = current;
+		buffer = mapped.duplicate();
+		buffer.position(pos);
+	}
+
+	@Override
+	public void seek(long pos) throws IOException {
+		refresh();
+		buffer.position((int)pos);
+	}
+
+	@Override
+	public int skipBytes(int n) throws IOException {
+		if(n <= 0) return 0;
+		buffer.position(buffer.position() + n);
+		return n;
+	}
+
+	@Override
+	public boolean checksum(int size, long checksum) {
+		if(buffer.remaining() < size) return false;
+		if(checksumBuffer.length < size){
+			checksumBuffer = new byte[size];
+		}
+		int pos = buffer.position();
+		buffer.get(checksumBuffer, 0, size);
+		buffer.position(pos);
+		
+		CRC32 crc = new CRC32();
+		crc.update(checksumBuffer, 0, size);
+		return checksum == crc.getValue();
+	}
+
+	@Override
+	public int read(byte[] data) throws IOException {
+		return read(data, 0, data.length);
+	}
+	
+	@Override
+	public int read(byte[] data, int offset, int length) throws IOException {
+		int n = Math.min(length, buffer.remaining());
+		buffer.get(data, offset, n);
+		return n;
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		if(buffer.remaining() < 4){
+			throw new IllegalStateException("Not enought data");
+		}
+		return buffer.getInt();
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		if(buffer.remaining() < 8){
+			throw new IllegalStateException("Not enought data");
+		}
+		return buffer.getLong();
+	}
+}
@@ -16,7 +16,7 @@ import io.zbus.kit.logging.Logger;
 import io.zbus.kit.logging.LoggerFactory;
  
 
-public class MappedFile implements Closeable {   
+public class MappedFile implements Closeable, ResourceManager.Resource {   
 	private static final Logger log = LoggerFactory.getLogger(MappedFile.class); 
 	
 	public static final int HeadSize = 1024; 
@@ -37,12 +37,13 @@ public class MappedFile implements Closeable {
 	protected static final int ExtOffset = HeadSize - ExtItemSize * ExtItemCount; 
 	protected String[] extentions = new String[ExtItemCount];
 	
-	protected MappedByteBuffer buffer;  
-	protected FileChannel fileChannel; 
+	protected MappedByteBuffer buffer; //null if released by ResourceManager, access by buffer() with lock held
 	protected Lock lock = new ReentrantLock();
 	
-	private RandomAccessFile randomAccessFile; 
 	private File diskFile;
+	private int fileSize;
+	private boolean closed = false;
+	private ResourceManager.Handle handle; //null if never released, see releasable()
 	
 	
 	protected void load(File file, int fileSize) throws IOException {
@@ -58,18 +59,24 @@ public class MappedFile implements Closeable {
 				}  
 			}  
 			this.diskFile = file;
-			randomAccessFile = new RandomAccessFile(diskFile, "rw");
-			fileChannel = randomAccessFile.getChannel();
-			buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize).load(); 
+			this.fileSize = fileSize;
+			RandomAccessFile randomAccessFile = new RandomAccessFile(diskFile, "rw");
+			try {
+				buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize).load(); 
+				ResourceManager.shared().mapped(fileSize);
+				if (fileExits) { 
+					long size = randomAccessFile.length();
+					if (size < fileSize) {
+						randomAccessFile.setLength(fileSize);
+						randomAccessFile.seek(size);
+						randomAccessFile.write(new byte[(int) (fileSize - size)]);
+					} 
+				}
+			} finally {
+				randomAccessFile.close(); //mapping stays valid, no descriptor held per mapped file
+			}
 			
 			if (fileExits) { 
-				long size = randomAccessFile.length();
-				if (size < fileSize) {
-					randomAccessFile.setLength(fileSize);
-					randomAccessFile.seek(size);
-					randomAccessFile.write(new byte[(int) (fileSize - size)]);
-				} 
-				
 				buffer.position(CreatorPos); 
 				byte len = buffer.get();
 				if(len <= 0){
@@ -112,6 +119,103 @@ public class MappedFile implements Closeable {
 		} 
 	}  
 	
+	/**
+	 * Let ResourceManager unmap the file when idle, called by subclass once constructed.
+	 * All accesses to the mapping afterwards must go through buffer() with lock held.
+	 */
+	protected void releasable() {
+		handle = new ResourceManager.Handle(this);
+		ResourceManager.shared().opened(handle);
+	}
+	
+	/**
+	 * @return mapping of the file, mapped again if released, requires lock held
+	 */
+	protected MappedByteBuffer buffer() {
+		if(buffer != null){
+			if(handle != null){
+				handle.touch();
+			}
+			return buffer;
+		}
+		if(closed){
+			throw new IllegalStateException(diskFile + " closed");
+		}
+		RandomAccessFile randomAccessFile = null;
+		try {
+			randomAccessFile = new RandomAccessFile(diskFile, "rw");
+			buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		} finally {
+			try {
+				if(randomAccessFile != null) randomAccessFile.close();
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+		ResourceManager.shared().mapped(fileSize);
+		if(handle != null){
+			ResourceManager.shared().opened(handle);
+		}
+		return buffer;
+	}
+	
+	/**
+	 * Unmap when idle, dirty pages of a shared mapping are written back by OS after unmapped
+	 */
+	@Override
+	public boolean release() {
+		if(handle == null || !lock.tryLock()) return false;
+		try {
+			unmapUnsafe();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Grow the file and map it again with the new size, requires lock held
+	 * @param fileSize new file size
+	 * @throws IOException if extend failed
+	 */
+	protected void resize(int fileSize) throws IOException {
+		if(fileSize <= this.fileSize) return;
+		unmapUnsafe();
+		RandomAccessFile randomAccessFile = new RandomAccessFile(diskFile, "rw");
+		try {
+			if(randomAccessFile.length() < fileSize){
+				randomAccessFile.setLength(fileSize); //zero filled
+			}
+		} finally {
+			randomAccessFile.close();
+		}
+		this.fileSize = fileSize;
+		buffer();
+	}
+
+	private void unmapUnsafe() {
+		if(buffer == null) return;
+		unmap(buffer);
+		buffer = null;
+		ResourceManager.shared().unmapped(fileSize);
+	}
+	
+	/**
+	 * Force the mapping to disk, nothing to do if closed or released(unmapped when idle)
+	 */
+	public void force() {
+		try {
+			lock.lock();
+			if(buffer != null){
+				buffer.force();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
 	protected void loadDefaultData() throws IOException{
 		
 	}
@@ -132,6 +236,23 @@ public class MappedFile implements Closeable {
 	
 	@Override
 	public void close() throws IOException { 
+		try {
+			lock.lock();
+			closed = true;
+			if(handle != null){
+				ResourceManager.shared().closed(handle);
+			}
+			unmapUnsafe();
+		} finally {
+			lock.unlock();
+		}
+	}  
+
+	/**
+	 * Release the mapping without waiting for GC, buffer must not be accessed afterwards
+	 * @param buffer mapped buffer to release
+	 */
+	protected static void unmap(final MappedByteBuffer buffer){
 		if(buffer == null) return;
 		try {
 			AccessController.doPrivileged(new PrivilegedAction<Object>() { 
@@ -153,14 +274,7 @@ public class MappedFile implements Closeable {
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		
-		try {	
-			fileChannel.close();
-			randomAccessFile.close();
-		} catch (IOException e) {
-			log.error(e.getMessage(), e);
-		}
-	}  
+	}
 
 	public int getMask() {
 		return mask;
@@ -170,6 +284,7 @@ public class MappedFile implements Closeable {
 		mask = value;
 		try {
 			lock.lock();
+			MappedByteBuffer buffer = buffer();
 			buffer.position(MaskPos);
 			buffer.putInt(mask);
 		} finally {
@@ -189,6 +304,7 @@ public class MappedFile implements Closeable {
 		updatedTime = value;
 		try {
 			lock.lock();
+			MappedByteBuffer buffer = buffer();
 			buffer.position(UpdatedTimePos);
 			buffer.putLong(updatedTime);
 		} finally {
@@ -207,9 +323,10 @@ public class MappedFile implements Closeable {
 		this.creator = value;
 		try {
 			lock.lock();
+			MappedByteBuffer buffer = buffer();
 			buffer.position(CreatorPos); 
 			if(creator == null){
-				this.buffer.put((byte)0);
+				buffer.put((byte)0);
 			} else {
 				buffer.put((byte)creator.length());
 				buffer.put(creator.getBytes());
@@ -232,7 +349,7 @@ public class MappedFile implements Closeable {
 	}
 
 	private void readExtByIndex(int idx) throws IOException {
-		this.buffer.position(ExtOffset + ExtItemSize * idx);
+		buffer.position(ExtOffset + ExtItemSize * idx);
 		int len = buffer.get();
 		if (len <= 0) {
 			this.extentions[idx] = null;
@@ -242,7 +359,7 @@ public class MappedFile implements Closeable {
 			throw new IOException("length of extension field invalid, too long");
 		}
 		byte[] bb = new byte[len];
-		this.buffer.get(bb);
+		buffer.get(bb);
 		this.extentions[idx] = new String(bb);
 	}
 
@@ -256,16 +373,17 @@ public class MappedFile implements Closeable {
 		try {
 			lock.lock();
 			this.extentions[idx] = value;
-			this.buffer.position(ExtOffset + ExtItemSize * idx);
+			MappedByteBuffer buffer = buffer();
+			buffer.position(ExtOffset + ExtItemSize * idx);
 			if (value == null) {
-				this.buffer.put((byte) 0);
+				buffer.put((byte) 0);
 				return;
 			}
 			if (value.length() > ExtItemSize - 1) {
 				throw new IllegalArgumentException(value + " too long");
 			}
-			this.buffer.put((byte) value.length());
-			this.buffer.put(value.getBytes());
+			buffer.put((byte) value.length());
+			buffer.put(value.getBytes());
 		} finally {
 			lock.unlock();
 		}
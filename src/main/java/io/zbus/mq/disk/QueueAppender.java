@@ -0,0 +1,277 @@
+package io.zbus.mq.disk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import io.zbus.kit.logging.Logger;
+import io.zbus.kit.logging.LoggerFactory;
+
+/**
+ * Append pipeline of a topic: producers publish messages into a preallocated ring without locks,
+ * one writer thread drains the ring in natural batches(whatever is published when it comes round) into the QueueWriter.
+ *
+ * A producer claims a sequence by one atomic increment, fills the slot and publishes the sequence, waiting only
+ * when the ring is full. The writer appends all consecutive published slots by one block write, so the block and
+ * index locks are taken once per batch by one thread and the end offset is published once per batch.
+ * The writer thread is started on demand and exits after idle, an idle topic holds no thread.
+ */
+public class QueueAppender implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(QueueAppender.class);
+	private static final int MaxBatchSize = 1024;
+	private static final long MaxBatchBytes = 4 * 1024 * 1024;
+	private static final long ParkNanos = 100 * 1000 * 1000;
+	private static final long IdleExitNanos = 10L * 1000 * 1000 * 1000;
+
+	private final QueueWriter writer;
+	private final AppendCallback batchCallback;
+	private final String name;
+	private final int mask;
+	private final DiskMessage[] messages;           //slots, filled by producer before sequence published
+	private final AppendCallback[] callbacks;
+	private final AtomicLongArray published;        //sequence published in each slot
+	private final AtomicLong claimed = new AtomicLong(-1);
+	private volatile long written = -1;             //last sequence appended, slots up to it free for reuse
+	private final DiskMessage[] batch;              //writer thread only
+	private final AtomicReference<Thread> worker = new AtomicReference<Thread>(); //null if no writer thread
+	private volatile boolean parked = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param writer writer of the topic
+	 * @param ringSize slots of the ring, rounded up to power of 2
+	 * @param name name of the writer thread
+	 * @param batchCallback invoked by the writer thread after each batch appended, after callbacks of its messages
+	 */
+	public QueueAppender(QueueWriter writer, int ringSize, String name, AppendCallback batchCallback) {
+		if(ringSize <= 0){
+			throw new IllegalArgumentException("ringSize(" + ringSize + ") should > 0");
+		}
+		int size = Integer.highestOneBit(ringSize);
+		if(size < ringSize) size <<= 1;
+		this.writer = writer;
+		this.name = name;
+		this.batchCallback = batchCallback;
+		this.mask = size - 1;
+		this.messages = new DiskMessage[size];
+		this.callbacks = new AppendCallback[size];
+		this.published = new AtomicLongArray(size);
+		for(int i=0;i<size;i++){
+			published.set(i, -1);
+		}
+		this.batch = new DiskMessage[Math.min(size, MaxBatchSize)];
+	}
+
+	/**
+	 * Publish message to be appended by the writer thread, waits only if the ring is full
+	 * @param data message to append
+	 * @param callback invoked by the writer thread once appended, null if not needed
+	 * @return sequence of the message, see await
+	 */
+	public long append(DiskMessage data, AppendCallback callback) {
+		if(closed){
+			throw new IllegalStateException("QueueAppender(" + name + ") closed");
+		}
+		long seq = claimed.incrementAndGet();
+		int spins = 0;
+		while(seq - messages.length > written){ //slot not appended yet by the previous round
+			signal();
+			spins = backoff(spins);
+		}
+		int i = (int)seq & mask;
+		messages[i] = data;
+		callbacks[i] = callback;
+		published.set(i, seq); //volatile write, pairs with the parked check in signal
+		signal();
+		return seq;
+	}
+
+	/**
+	 * Publish messages in order and wait until all appended, failures of other producers' batches not counted
+	 * @param data messages to append
+	 * @throws IOException if a batch holding any of them failed
+	 */
+	public void appendAndWait(DiskMessage... data) throws IOException {
+		if(data.length == 0) return;
+		AppendResult result = new AppendResult();
+		long last = -1;
+		for(DiskMessage msg : data){
+			last = append(msg, result);
+		}
+		await(last);
+		if(result.getError() != null){
+			throw result.getError();
+		}
+	}
+
+	/**
+	 * Wait until message of seq appended, callbacks of it invoked
+	 * @param seq sequence returned by append
+	 */
+	public void await(long seq) {
+		int spins = 0;
+		while(written < seq){
+			spins = backoff(spins);
+		}
+	}
+
+	private static int backoff(int spins){
+		if(spins < 100){
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(10 * 1000);
+		}
+		return spins+1;
+	}
+
+	private void signal(){
+		Thread thread = worker.get();
+		if(thread == null){
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drainLoop();
+				}
+			}, "QueueAppender-" + name);
+			thread.setDaemon(true);
+			if(worker.compareAndSet(null, thread)){
+				thread.start();
+			}
+		} else if(parked){
+			LockSupport.unpark(thread);
+		}
+	}
+
+	private boolean available(){
+		long next = written + 1;
+		return published.get((int)next & mask) == next;
+	}
+
+	private void drainLoop(){
+		long idleSince = System.nanoTime();
+		while(true){
+			if(drain() > 0){
+				idleSince = System.nanoTime();
+				continue;
+			}
+			if(closed) return;
+			parked = true;
+			if(!available()){
+				LockSupport.parkNanos(this, ParkNanos);
+			}
+			parked = false;
+			if(System.nanoTime() - idleSince >= IdleExitNanos && !available()){
+				worker.set(null);
+				//a producer missing the exit started another thread or left data for us
+				if(!available() || !worker.compareAndSet(null, Thread.currentThread())){
+					return;
+				}
+				idleSince = System.nanoTime();
+			}
+		}
+	}
+
+	/**
+	 * Append consecutive published slots by one write
+	 * @return messages appended
+	 */
+	private int drain(){
+		long next = written + 1;
+		int count = 0;
+		long bytes = 0;
+		while(count < batch.length && bytes < MaxBatchBytes){
+			long seq = next + count;
+			if(published.get((int)seq & mask) != seq) break;
+			DiskMessage data = messages[(int)seq & mask];
+			batch[count++] = data;
+			bytes += data.body == null? 0 : data.body.length;
+		}
+		if(count == 0) return 0;
+
+		long position = 0;
+		IOException error = null;
+		try{
+			position = writer.write(batch, count);
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+			error = e;
+		} catch (RuntimeException e) { //invalid message, fails the batch only
+			log.error(e.getMessage(), e);
+			error = new IOException(e.getMessage(), e);
+		}
+		long last = next + count - 1;
+		for(int k=0;k<count;k++){
+			int i = (int)(next + k) & mask;
+			AppendCallback callback = callbacks[i];
+			messages[i] = null;
+			callbacks[i] = null;
+			batch[k] = null;
+			if(callback == null) continue;
+			try{
+				callback.onAppended(position, error);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+		if(batchCallback != null){
+			try{
+				batchCallback.onAppended(position, error);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+		written = last; //slots released to producers
+		return count;
+	}
+
+	/**
+	 * Stop accepting messages, wait until all published are appended
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		long last = claimed.get();
+		signal();
+		int spins = 0;
+		while(written < last){
+			signal();
+			spins = backoff(spins);
+		}
+		Thread thread = worker.get();
+		if(thread != null){
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Error of any message it was passed to as callback, messages of one producer tracked together
+	 */
+	public static class AppendResult implements AppendCallback {
+		private volatile IOException error;
+
+		@Override
+		public void onAppended(long position, IOException error) {
+			if(error != null){
+				this.error = error;
+			}
+		}
+
+		/**
+		 * @return error of a failed batch, null if all appended
+		 */
+		public IOException getError() {
+			return error;
+		}
+	}
+
+	public static interface AppendCallback {
+		/**
+		 * @param position write position after the batch, for QueueWriter.sync
+		 * @param error null if appended successfully
+		 */
+		void onAppended(long position, IOException error);
+	}
+}
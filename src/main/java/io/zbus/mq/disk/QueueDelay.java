@@ -0,0 +1,425 @@
+package io.zbus.mq.disk;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.zbus.kit.FileKit;
+import io.zbus.kit.logging.Logger;
+import io.zbus.kit.logging.LoggerFactory;
+
+/**
+ * Delayed messages of a topic, waiting in time slot files under [topic]/delay until due.
+ *
+ * A message is appended to the file of the slot its deliver time falls in, a slot is released as a whole once it ends:
+ * records are streamed back in batches to the ReleaseHandler(the topic log) and the file deleted.
+ * Only slot numbers are held in memory, never messages, and one shared timer thread serves all topics.
+ * Messages are delivered no earlier than due, at most one slot late. Release is at least once, a crash during
+ * release delivers the released part of the slot again.
+ */
+public class QueueDelay implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(QueueDelay.class);
+	private static ScheduledExecutorService timerExecutor; //shared by all topics, no thread per topic
+
+	public static final String DelayDir = "delay";
+	public static final String DelaySuffix = ".dly";
+	private static final String ReleaseSuffix = ".rls"; //slot being released
+	private static final long TickMillis = 100;
+	private static final int MaxAppenders = 8;     //slot files kept open for append
+	private static final int ReleaseBatchSize = 1000;
+
+	private final File dir;
+	private final long slotMillis;
+	private final TreeSet<Long> slots = new TreeSet<Long>(); //start time of slots pending
+	private final Set<Long> unverified = new HashSet<Long>(); //slots loaded, tail checked before first append
+	private final List<File> releasing = new ArrayList<File>(); //left by crash during release
+	private final Map<Long, Appender> appenders = new LinkedHashMap<Long, Appender>(16, 0.75f, true); //LRU
+	private final Lock lock = new ReentrantLock();
+	private final Lock releaseLock = new ReentrantLock();
+	private final ReleaseHandler releaseHandler;
+	private final ScheduledFuture<?> timer;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param topicDir directory of the topic
+	 * @param slotMillis time span of a slot file in milliseconds
+	 * @param releaseHandler writes due messages into the topic
+	 */
+	public QueueDelay(File topicDir, long slotMillis, ReleaseHandler releaseHandler) {
+		if(slotMillis <= 0){
+			throw new IllegalArgumentException("slotMillis(" + slotMillis + ") invalid");
+		}
+		this.dir = new File(topicDir, DelayDir);
+		this.slotMillis = slotMillis;
+		this.releaseHandler = releaseHandler;
+		load();
+
+		timer = timerExecutor().scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					release(System.currentTimeMillis());
+				} catch (Exception e) {
+					log.error(e.getMessage(), e);
+				}
+			}
+		}, TickMillis, TickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param topicDir directory of the topic
+	 * @return true if delayed messages may be pending
+	 */
+	public static boolean exists(File topicDir){
+		return new File(topicDir, DelayDir).exists();
+	}
+
+	private void load() {
+		File[] files = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				String name = file.getName();
+				return name.endsWith(DelaySuffix) || name.endsWith(ReleaseSuffix);
+			}
+		});
+		if(files == null) return;
+		for(File file : files){
+			String name = file.getName();
+			if(name.endsWith(ReleaseSuffix)){
+				releasing.add(file);
+				continue;
+			}
+			try {
+				long slot = Long.valueOf(name.substring(0, name.length() - DelaySuffix.length()));
+				slots.add(slot);
+				unverified.add(slot);
+			} catch (NumberFormatException e) {
+				log.warn("Invalid delay file: " + file);
+			}
+		}
+	}
+
+	/**
+	 * Persist a message until deliverTime
+	 * @param data message to delay
+	 * @param deliverTime time in milliseconds to deliver
+	 * @throws IOException if append failed
+	 */
+	public void add(DiskMessage data, long deliverTime) throws IOException {
+		byte[] record = encode(data, deliverTime);
+		long slot = deliverTime - deliverTime % slotMillis;
+		try {
+			lock.lock();
+			if(closed){
+				throw new IOException(dir + " closed");
+			}
+			Appender appender = appender(slot);
+			appender.file.seek(appender.position);
+			appender.file.write(record);
+			appender.position += record.length;
+			appender.dirty = true;
+			slots.add(slot);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Force slot files appended since last flush to disk
+	 * @throws IOException if force failed
+	 */
+	public void flush() throws IOException {
+		try {
+			lock.lock();
+			for(Appender appender : appenders.values()){
+				if(!appender.dirty) continue;
+				appender.dirty = false;
+				appender.file.getChannel().force(false);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Appender appender(long slot) throws IOException {
+		Appender appender = appenders.get(slot);
+		if(appender != null) return appender;
+		if(appenders.size() >= MaxAppenders){
+			Iterator<Entry<Long, Appender>> iter = appenders.entrySet().iterator();
+			Appender eldest = iter.next().getValue();
+			iter.remove();
+			eldest.close();
+		}
+		if(!dir.exists()){
+			dir.mkdirs();
+		}
+		File file = new File(dir, slot + DelaySuffix);
+		if(unverified.remove(slot)){
+			truncateTornTail(file);
+		}
+		appender = new Appender(file);
+		appenders.put(slot, appender);
+		return appender;
+	}
+
+	/**
+	 * Cut a record partially written by crash, appends after it would be unreadable
+	 */
+	private static void truncateTornTail(File file) throws IOException {
+		long length = file.length();
+		long valid = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while(valid + 4 <= length){
+				int recordLength = in.readInt();
+				if(recordLength < 10 || valid + 4 + recordLength > length) break;
+				in.skipBytes(recordLength);
+				valid += 4 + recordLength;
+			}
+		} finally {
+			in.close();
+		}
+		if(valid < length){
+			log.warn("Truncate torn tail of %s: %d => %d", file, length, valid);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(valid);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+	
+	/**
+	 * Release slots ended before now, called by timer
+	 * @param now current time in milliseconds
+	 * @return count of messages released
+	 * @throws IOException if release failed, slot kept and retried next tick
+	 */
+	public int release(long now) throws IOException {
+		if(!releaseLock.tryLock()) return 0; //previous tick still releasing
+		try {
+			int count = 0;
+			while(!releasing.isEmpty() && !closed){
+				File file = releasing.get(0);
+				count += releaseFile(file);
+				releasing.remove(0);
+			}
+			while(!closed){
+				File file = takeDueSlot(now);
+				if(file == null) break;
+				try {
+					count += releaseFile(file);
+				} catch (IOException e) {
+					releasing.add(file); //retried next tick
+					throw e;
+				}
+			}
+			return count;
+		} finally {
+			releaseLock.unlock();
+		}
+	}
+
+	/**
+	 * Detach the first slot ended, appends to it afterwards go to a new file
+	 */
+	private File takeDueSlot(long now) throws IOException {
+		try {
+			lock.lock();
+			while(!slots.isEmpty()){
+				long slot = slots.first();
+				if(slot + slotMillis > now) return null;
+				slots.remove(slot);
+				unverified.remove(slot);
+				Appender appender = appenders.remove(slot);
+				if(appender != null){
+					appender.close();
+				}
+				File file = new File(dir, slot + DelaySuffix);
+				File releaseFile = new File(dir, slot + "-" + now + ReleaseSuffix); //unique if slot appended after released
+				if(!file.renameTo(releaseFile)){
+					if(!file.exists()) continue; //removed outside
+					throw new IOException("Rename " + file + " failed");
+				}
+				return releaseFile;
+			}
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int releaseFile(File file) throws IOException {
+		int count = 0;
+		long remaining = file.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			List<DiskMessage> batch = new ArrayList<DiskMessage>(ReleaseBatchSize);
+			while(remaining >= 4){
+				int length = in.readInt();
+				if(length < 10 || length > remaining - 4) break; //torn tail of crash, slot ends here
+				byte[] record = new byte[length];
+				in.readFully(record);
+				remaining -= 4 + length;
+				batch.add(decode(record));
+				if(batch.size() >= ReleaseBatchSize){
+					count += flushBatch(batch);
+				}
+			}
+			count += flushBatch(batch);
+		} finally {
+			in.close();
+		}
+		file.delete();
+		return count;
+	}
+
+	private int flushBatch(List<DiskMessage> batch) throws IOException {
+		int count = batch.size();
+		if(count == 0) return 0;
+		releaseHandler.onRelease(batch.toArray(new DiskMessage[count]));
+		batch.clear();
+		return count;
+	}
+
+	/**
+	 * Record: [length:int][deliverTime:long][idLen:varint][id][tagLen:varint][tag][body]
+	 * Lengths below 128 take one byte, the same as slot files written with byte lengths.
+	 */
+	private static byte[] encode(DiskMessage data, long deliverTime){
+		byte[] id = data.id == null? new byte[0] : data.id.getBytes();
+		byte[] tag = data.tag == null? new byte[0] : data.tag.getBytes();
+		byte[] body = data.body == null? new byte[0] : data.body;
+		int length = 8 + Varint.sizeOf(id.length) + id.length + Varint.sizeOf(tag.length) + tag.length + body.length;
+		ByteBuffer buf = ByteBuffer.allocate(4 + length);
+		buf.putInt(length);
+		buf.putLong(deliverTime);
+		Varint.write(buf, id.length);
+		buf.put(id);
+		Varint.write(buf, tag.length);
+		buf.put(tag);
+		buf.put(body);
+		return buf.array();
+	}
+
+	private static DiskMessage decode(byte[] record) {
+		ByteBuffer buf = ByteBuffer.wrap(record);
+		buf.getLong(); //deliverTime
+		DiskMessage data = new DiskMessage();
+		int len = Varint.readInt(buf);
+		if(len > 0){
+			data.id = new String(record, buf.position(), len);
+			buf.position(buf.position() + len);
+		}
+		len = Varint.readInt(buf);
+		if(len > 0){
+			data.tag = new String(record, buf.position(), len);
+			buf.position(buf.position() + len);
+		}
+		data.body = new byte[buf.remaining()];
+		buf.get(data.body);
+		return data;
+	}
+
+	/**
+	 * @return slot files pending, messages are not counted in memory
+	 */
+	public int slotCount() {
+		try {
+			lock.lock();
+			return slots.size() + releasing.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		timer.cancel(false);
+		try {
+			lock.lock();
+			closed = true;
+			for(Appender appender : appenders.values()){
+				appender.close();
+			}
+			appenders.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void delete() throws IOException {
+		close();
+		try {
+			releaseLock.lock(); //wait for release in progress
+			FileKit.deleteFile(dir);
+		} finally {
+			releaseLock.unlock();
+		}
+	}
+
+	private static synchronized ScheduledExecutorService timerExecutor(){
+		if(timerExecutor == null){
+			timerExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DelayTimer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return timerExecutor;
+	}
+
+	private static class Appender {
+		final RandomAccessFile file;
+		long position;
+		boolean dirty = false;
+
+		Appender(File diskFile) throws IOException {
+			file = new RandomAccessFile(diskFile, "rw");
+			position = file.length();
+			ResourceManager.shared().fileOpened();
+		}
+
+		void close() {
+			try {
+				file.close();
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+			}
+			ResourceManager.shared().fileClosed();
+		}
+	}
+
+	/**
+	 * Receives due messages of a slot in batches, in order of arrival
+	 */
+	public static interface ReleaseHandler {
+		void onRelease(DiskMessage[] data) throws IOException;
+	}
+}
@@ -2,243 +2,426 @@ package io.zbus.mq.disk;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Comparator;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.PriorityQueue;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
- 
-public class QueueNak extends MappedFile { 
-	private static final int MaxWindowCount = 1000;   
-	private static final int FileSize = HeadSize + MaxWindowCount * NakRecord.Size;  
-	private static final int WindowPos = 0;  
-	private static final int TimeoutPos = 4;  
-	
-	private int window = 100; 
-	private long timeout = TimeUnit.SECONDS.toMillis(10); //default to 10s 
-	
-	private Queue<NakRecord> queue = new PriorityQueue<NakRecord>(window, new NakRecordComparator());
-	private Queue<Integer> availableEntries = new PriorityQueue<Integer>(); 
-	
-	
-	
+
+import io.zbus.kit.logging.Logger;
+import io.zbus.kit.logging.LoggerFactory;
+
+/**
+ * Messages delivered but not acked yet of a consume group, persisted in [group].nak.
+ *
+ * Records are indexed by message offset, ack and lookup are O(1). Timeouts are tracked by a hashed timer wheel, cancelled on ack,
+ * advanced by a shared timer thread, timed out records are queued for redelivery and the TimeoutListener is notified,
+ * so redelivery does not wait for the next produce or consume.
+ * The file grows with the window, up to MaxWindowCount records.
+ */
+public class QueueNak extends MappedFile {
+	private static final Logger log = LoggerFactory.getLogger(QueueNak.class);
+	private static ScheduledExecutorService timerExecutor; //shared by all NAK files, no thread per group
+
+	public static final int MaxWindowCount = 1024*1024;
+	private static final int InitWindowCount = 1000;
+	private static final int FileSize = HeadSize + InitWindowCount * NakRecord.Size;
+	private static final int WindowPos = 0;
+	private static final int TimeoutPos = 4;
+	private static final int MaxRetryPos = 12;
+	private static final long TickMillis = 100;
+	private static final int WheelSize = 512;
+
+	private int window = 100;
+	private long timeout = TimeUnit.SECONDS.toMillis(10); //default to 10s
+	private int maxRetry = 0; //0 for unlimited
+	private int capacity; //records the file holds
+
+	private final Map<Long, NakRecord> naks = new HashMap<Long, NakRecord>(); //offset => record
+	private final BitSet usedEntries = new BitSet();
+	private int freeHint = 0; //no free entry before it
+	private final TimerWheel<NakRecord> wheel = new TimerWheel<NakRecord>(TickMillis, WheelSize);
+	private final Queue<NakRecord> timeoutQueue = new ArrayDeque<NakRecord>(); //timed out, waiting to redeliver
+	private final ScheduledFuture<?> timer;
+	private volatile TimeoutListener timeoutListener;
+
 	private final QueueReader queueReader;
-	
-	public QueueNak(QueueReader queueReader) throws IOException{ 
-		this.queueReader = queueReader; 
+
+	public QueueNak(QueueReader queueReader) throws IOException{
+		this.queueReader = queueReader;
 		File nakFile = new File(queueReader.getReaderDir(), queueReader.getGroupName() + Index.NakSuffix);
-		load(nakFile, FileSize); 
-	}   
-	
+		int fileSize = (int)Math.max(FileSize, nakFile.length()); //grown by window
+		this.capacity = (fileSize - HeadSize) / NakRecord.Size;
+		load(nakFile, fileSize);
+		releasable();
+
+		timer = timerExecutor().scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkTimeout();
+				} catch (Exception e) {
+					log.error(e.getMessage(), e);
+				}
+			}
+		}, TickMillis, TickMillis, TimeUnit.MILLISECONDS);
+	}
+
 	public int size() {
-		return queue.size();
+		try {
+			lock.lock();
+			return naks.size();
+		} finally {
+			lock.unlock();
+		}
 	}
-	
+
 	public int remaining() {
 		return window - size();
 	}
-	
+
 	public int getWindow() {
 		return this.window;
 	}
-	
+
 	public void setWindow(int value) {
-		if(value < 0 || value>=MaxWindowCount) {
+		if(value < 0 || value > MaxWindowCount) {
 			throw new IllegalArgumentException("nakLimit(" + value + ") invalid");
 		}
 		this.window = value;
 		try {
-			lock.lock(); 
+			lock.lock();
+			MappedByteBuffer buffer = buffer();
 			buffer.position(WindowPos);
 			buffer.putInt(this.window);
 		} finally {
 			lock.unlock();
 		}
 	}
-	
+
 	public long getTimeout() {
 		return this.timeout;
 	}
-	
-	public void setTimeout(long value) { 
+
+	/**
+	 * @param value timeout in milliseconds, records added before keep their deadline unless it is extended
+	 */
+	public void setTimeout(long value) {
 		this.timeout = value;
 		try {
-			lock.lock(); 
+			lock.lock();
+			MappedByteBuffer buffer = buffer();
 			buffer.position(TimeoutPos);
 			buffer.putLong(this.timeout);
 		} finally {
 			lock.unlock();
 		}
 	}
+
+	public int getMaxRetry() {
+		return this.maxRetry;
+	}
 	
-	public Iterator<NakRecord> iterator(){
-		return queue.iterator();
+	/**
+	 * @param value redeliveries allowed before the message is given up as dead letter, 0 for unlimited
+	 */
+	public void setMaxRetry(int value) {
+		if(value < 0) {
+			throw new IllegalArgumentException("maxRetry(" + value + ") invalid");
+		}
+		this.maxRetry = value;
+		try {
+			lock.lock();
+			MappedByteBuffer buffer = buffer();
+			buffer.position(MaxRetryPos);
+			buffer.putInt(this.maxRetry);
+		} finally {
+			lock.unlock();
+		}
 	}
 	
+	/**
+	 * @param nak record timed out
+	 * @return true if redelivered more than maxRetry times
+	 */
+	public boolean isRetryExceeded(NakRecord nak) {
+		return maxRetry > 0 && nak.retryCount > maxRetry;
+	}
+	
+	public void setTimeoutListener(TimeoutListener timeoutListener) {
+		this.timeoutListener = timeoutListener;
+	}
+
+	/**
+	 * @return iterator of a snapshot of records
+	 */
+	public Iterator<NakRecord> iterator(){
+		try {
+			lock.lock();
+			return new ArrayList<NakRecord>(naks.values()).iterator();
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	public void clear() {
-		buffer.position(HeadSize);
-		buffer.put(new byte[NakRecord.Size*MaxWindowCount]);
-		queue.clear(); 
-		
-		for(int i=0;i<MaxWindowCount;i++) {
-			availableEntries.add(i);
+		try {
+			lock.lock();
+			MappedByteBuffer buffer = buffer();
+			buffer.position(HeadSize);
+			buffer.put(new byte[NakRecord.Size*capacity]);
+			naks.clear();
+			usedEntries.clear();
+			freeHint = 0;
+			wheel.clear();
+			timeoutQueue.clear();
+		} finally {
+			lock.unlock();
 		}
-	} 
-	
-	public NakRecord getNak(long offset) {
-		Iterator<NakRecord> iter = iterator();
-		while(iter.hasNext()) {
-			NakRecord nak = iter.next();
-			if(nak.offset == offset) {
-				return nak;
+	}
+
+	/**
+	 * @return the smallest offset not acked yet, -1 if none
+	 */
+	public long minOffset() {
+		try {
+			lock.lock();
+			long min = -1;
+			for(NakRecord nak : naks.values()) {
+				if(min < 0 || nak.offset < min) {
+					min = nak.offset;
+				}
 			}
+			return min;
+		} finally {
+			lock.unlock();
 		}
-		return null;
-	} 
-	
+	}
+
+	public NakRecord getNak(long offset) {
+		try {
+			lock.lock();
+			return naks.get(offset);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return record timed out and removed, its message to be redelivered, null if none
+	 */
 	public NakRecord pollTimeoutNak() {
-		synchronized(queue) {
-			NakRecord nak = queue.peek();
-			if(nak == null) return null;
-			if(System.currentTimeMillis() >= (nak.updatedTime+timeout)) {
-				removeNak(nak);
-				return queue.poll();
-			} 
-		} 
-		return null;
+		try {
+			lock.lock();
+			NakRecord nak;
+			while((nak = timeoutQueue.poll()) != null){
+				if(naks.get(nak.offset) == nak) { //acked after timed out otherwise
+					removeNakUnsafe(nak);
+					return nak;
+				}
+			}
+			return null;
+		} finally {
+			lock.unlock();
+		}
 	}
-	
+
 	public TimeoutMessage pollTimeoutMessage() throws IOException {
 		NakRecord nak = pollTimeoutNak();
 		if(nak == null) return null;
- 
-		DiskMessage msg = queueReader.read(nak.offset); 
+
+		DiskMessage msg = queueReader.read(nak.offset);
 		return new TimeoutMessage(msg, nak);
 	}
-	
+
+	/**
+	 * Advance the timer wheel, records reaching timeout are queued for redelivery, listener notified out of lock
+	 */
+	private void checkTimeout() {
+		boolean timedOut = false;
+		try {
+			lock.lock();
+			if(wheel.size() == 0) return;
+			long now = System.currentTimeMillis();
+			List<NakRecord> expired = new ArrayList<NakRecord>();
+			wheel.advance(now, expired);
+			for(NakRecord nak : expired) {
+				nak.timer = null;
+				long deadline = nak.updatedTime + timeout;
+				if(deadline > now) { //resent or timeout extended
+					nak.timer = wheel.add(nak, deadline);
+					continue;
+				}
+				timeoutQueue.add(nak);
+				timedOut = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+		TimeoutListener listener = timeoutListener;
+		if(timedOut && listener != null) {
+			listener.onTimeout(this);
+		}
+	}
+
 	public static class TimeoutMessage{
 		public DiskMessage diskMessage;
 		public NakRecord nakRecord;
-		
+
 		public TimeoutMessage(DiskMessage diskMessage, NakRecord nakRecord){
 			this.diskMessage = diskMessage;
 			this.nakRecord = nakRecord;
 		}
 	}
-	
+
+	public static interface TimeoutListener {
+		void onTimeout(QueueNak queueNak);
+	}
+
 	public void addNak(long offset, Integer retry) {
 		try {
-			lock.lock();  
-			
-			NakRecord nak = getNak(offset);
-			if(nak != null) { 
-				nak.updatedTime = System.currentTimeMillis();
+			lock.lock();
+
+			NakRecord nak = naks.get(offset);
+			if(nak != null) {
+				nak.updatedTime = System.currentTimeMillis(); //deadline moved when its tick comes
 				writeNakUnsafe(nak);
 				return;
 			}
-			
-			if(queue.size() > window) {
+
+			if(naks.size() > window) {
 				throw new IllegalStateException("NAK queue full");
 			}
-			nak = new NakRecord(); 
-			Integer entryNumber = availableEntries.poll();
-			if(entryNumber == null) {
-				throw new IllegalStateException("NAK entry full");
+			int entryNumber = usedEntries.nextClearBit(freeHint);
+			if(entryNumber >= capacity) {
+				grow(entryNumber+1);
 			}
+			nak = new NakRecord();
 			nak.entryNumber = entryNumber;
-			nak.offset = offset; 
+			nak.offset = offset;
 			nak.status = 1;
 			nak.retryCount = retry==null? 1 : retry+1;
-			
-			queue.add(nak);
-			
+
+			naks.put(offset, nak);
+			usedEntries.set(entryNumber);
+			freeHint = entryNumber + 1;
+			nak.timer = wheel.add(nak, nak.updatedTime + timeout);
+
 			writeNakUnsafe(nak);
 		} finally {
 			lock.unlock();
 		}
 	}
-	
-	public void removeNak(long offset) { 
-		NakRecord nak = null;
-		Iterator<NakRecord> iter = iterator();
-		while(iter.hasNext()) {
-			NakRecord t = iter.next();
-			if(t.offset == offset) { 
-				nak = t;
-				break;
-			}
+
+	private void grow(int minCapacity) {
+		if(minCapacity > MaxWindowCount) {
+			throw new IllegalStateException("NAK entry full");
 		}
-		if(nak == null) return;
-		
-		removeNak(nak);
-		iter.remove(); 
+		int newCapacity = (int)Math.min(Math.max(capacity*2L, minCapacity), MaxWindowCount);
+		try {
+			resize(HeadSize + newCapacity * NakRecord.Size);
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+		capacity = newCapacity;
 	}
-	
+
+	public void removeNak(long offset) {
+		try {
+			lock.lock();
+			NakRecord nak = naks.get(offset);
+			if(nak == null) return;
+			removeNakUnsafe(nak);
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	public void removeNak(NakRecord nak) {
 		try {
-			lock.lock();  
-			nak.status = 0;
-			availableEntries.add(nak.entryNumber);
-			writeNakUnsafe(nak);
+			lock.lock();
+			if(naks.get(nak.offset) != nak) return;
+			removeNakUnsafe(nak);
 		} finally {
 			lock.unlock();
 		}
 	}
 
+	private void removeNakUnsafe(NakRecord nak) {
+		naks.remove(nak.offset);
+		wheel.cancel(nak.timer);
+		nak.timer = null;
+		usedEntries.clear(nak.entryNumber);
+		freeHint = Math.min(freeHint, nak.entryNumber);
+		nak.status = 0;
+		writeNakUnsafe(nak);
+	}
+
 	@Override
-	protected void loadDefaultData() throws IOException {  
+	protected void loadDefaultData() throws IOException {
 		buffer.position(WindowPos);
 		this.window = buffer.getInt();
 		this.timeout = buffer.getLong();
-		
-		for(int i=0; i< MaxWindowCount; i++) {
+		this.maxRetry = buffer.getInt(); //zero in files created before
+
+		for(int i=0; i< capacity; i++) {
 			NakRecord nak = readNakUnsafe(i);
 			if(nak.status != 1) {
-				availableEntries.add(i);
 				continue;
 			}
-			queue.add(nak); 
+			naks.put(nak.offset, nak);
+			usedEntries.set(i);
+			nak.timer = wheel.add(nak, nak.updatedTime + timeout);
 		}
 	}
 
 	@Override
-	protected void writeDefaultData() throws IOException { 
+	protected void writeDefaultData() throws IOException {
 		buffer.position(WindowPos);
 		buffer.putInt(this.window);
 		buffer.putLong(this.timeout);
-		
-		for(int i=0;i<MaxWindowCount;i++) {
-			availableEntries.add(i);
-		}
-	}   
-	
+		buffer.putInt(this.maxRetry);
+	}
+
 	private int nakPosition(int entryNumber) {
 		return HeadSize + entryNumber*NakRecord.Size;
 	}
-	
+
 	private void writeNakUnsafe(NakRecord nak) {
 		int pos = nakPosition(nak.entryNumber);
-		buffer.position(pos); 
+		MappedByteBuffer buffer = buffer();
+		buffer.position(pos);
 		buffer.put(nak.status);
-		buffer.putLong(nak.offset); 
+		buffer.putLong(nak.offset);
 		buffer.putInt(nak.retryCount);
-		buffer.putLong(nak.updatedTime); 
-	} 
-	
-	private NakRecord readNakUnsafe(int entryNumber) throws IOException { 
+		buffer.putLong(nak.updatedTime);
+	}
+
+	private NakRecord readNakUnsafe(int entryNumber) throws IOException {
 		NakRecord nak = new NakRecord();
 		nak.entryNumber = entryNumber;
-	
+
 		int pos = nakPosition(entryNumber);
-		buffer.position(pos);  
-		nak.offset = buffer.getLong(); 
+		MappedByteBuffer buffer = buffer();
+		buffer.position(pos);
+		nak.status = buffer.get();
+		nak.offset = buffer.getLong();
 		nak.retryCount = buffer.getInt();
-		nak.updatedTime = buffer.getLong(); 
-		
+		nak.updatedTime = buffer.getLong();
+
 		return nak;
 	}
 
-	public NakRecord readNak(int entryNumber) throws IOException { 
+	public NakRecord readNak(int entryNumber) throws IOException {
 		try {
 			lock.lock();
 			return readNakUnsafe(entryNumber);
@@ -246,26 +429,42 @@ public class QueueNak extends MappedFile {
 			lock.unlock();
 		}
 	}
-	
+
+	@Override
+	public void close() throws IOException {
+		timer.cancel(false);
+		super.close();
+	}
+
+	@Override
+	public void delete() throws IOException {
+		timer.cancel(false);
+		super.delete();
+	}
+
+	private static synchronized ScheduledExecutorService timerExecutor(){
+		if(timerExecutor == null){
+			timerExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "NakTimer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return timerExecutor;
+	}
+
 	public static class NakRecord {
 		public byte status;     //1   0 - invalid, 1 - valid
-		public long offset;	    //8 
-		public int retryCount;  
-		public long updatedTime = System.currentTimeMillis(); 
-		
+		public long offset;	    //8
+		public int retryCount;
+		public long updatedTime = System.currentTimeMillis();
+
 		public int entryNumber; //entry number, offset from 0, not persisted
+		TimerWheel.Timeout<NakRecord> timer; //null if timed out or acked
 
 		public final static int Size = 1 + 8 + 4 + 8; //21
 	}
-	
-	private static class NakRecordComparator implements Comparator<NakRecord>{
-
-		@Override
-		public int compare(NakRecord o1, NakRecord o2) {  
-			if(o1.updatedTime > o2.updatedTime) return 1;
-			if(o1.updatedTime == o2.updatedTime) return 0;
-			return -1;
-		}
-		
-	}
 }
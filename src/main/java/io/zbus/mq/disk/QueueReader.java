@@ -2,6 +2,7 @@ package io.zbus.mq.disk;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -18,7 +19,10 @@ public class QueueReader extends MappedFile implements Comparable<QueueReader> {
 	private static final int READER_FILE_SIZE = 1024;  
 	private static final int FILTER_POS = 12;  
 	private static final int FILTER_MAX_LENGTH = 127;  
-	private Block block;  
+	private static final int MESSAGE_NUMBER_POS = 140; //after filter: mark, messageNumber
+	private static final int MESSAGE_NUMBER_MARK = 0x7A627573; //reader files written before have 0
+	private Block block;  //opened on first access, see block()
+	private boolean messageNumberLoaded = false; //messageNumber of position persisted in reader file
 	private final Index index;  
 	private final String readerGroup; 
 	 
@@ -30,6 +34,7 @@ public class QueueReader extends MappedFile implements Comparable<QueueReader> {
 	private long messageNumber = -1; //the last messageNumber read, the next message number to read is messageNumber+1
 	
 	private Block randomAccessBlock;
+	private int bodyLimit = Integer.MAX_VALUE; //larger bodies left on disk, see DiskMessage.file
 	
 	public QueueReader(Index index, String readerGroup) throws IOException{
 		this.index = index; 
@@ -40,15 +45,20 @@ public class QueueReader extends MappedFile implements Comparable<QueueReader> {
 		if(this.blockNumber < index.getBlockStart()){ //forward to oldest available
 			this.blockNumber = index.getBlockStart();
 			this.offset = 0;
-			writeOffset();
+			this.messageNumberLoaded = false;
 		}
 		if(index.overflow(this.blockNumber)){ //backward to latest available
+			index.checkRecovered(); //write offset fixed by recovery
 			this.blockNumber = index.currentBlockNumber(); 
 			this.offset = index.currentWriteOffset();
+			this.messageNumber = index.getMessageCount()-1;
+			this.messageNumberLoaded = true;
 		}
-		 
-		block = this.index.createReadBlock(this.blockNumber);
-		readMessageNumber();
+		if(!messageNumberLoaded){
+			readMessageNumber();
+		}
+		writeOffset();
+		releasable();
 	}   
 	
 	public QueueReader(QueueReader copy, String readerGroup) throws IOException{
@@ -64,17 +74,30 @@ public class QueueReader extends MappedFile implements Comparable<QueueReader> {
 		if(this.blockNumber < index.getBlockStart()){ //forward to oldest available
 			this.blockNumber = index.getBlockStart();
 			this.offset = 0; 
+			readMessageNumber();
 		}
 		if(index.overflow(this.blockNumber)){ //backward to latest available
+			index.checkRecovered();
 			this.blockNumber = index.currentBlockNumber(); 
 			this.offset = index.currentWriteOffset();
+			this.messageNumber = index.getMessageCount()-1;
 		}
 		
 		writeOffset();  
-		 
-		block = this.index.createReadBlock(this.blockNumber);
+		releasable();
 	}  
 	
+	/**
+	 * Block of current position, opened on first access so that loading a topic does not open block files.
+	 * Requires lock held.
+	 */
+	private Block block() throws IOException {
+		if(block == null){
+			block = this.index.createReadBlock(this.blockNumber);
+		}
+		return block;
+	}
+	
 	public Index getIndex() {
 		return this.index;
 	}
@@ -101,72 +124,84 @@ public class QueueReader extends MappedFile implements Comparable<QueueReader> {
 		Offset offset = res.offset;
 		
 		int offsetInside = (int)(totalOffset - offset.baseOffset);
-		Block b = null;
-		if(blockNo == this.blockNumber) {
-			b = this.block; 
-		} else {
-			b = index.createReadBlock(blockNo);
-		}
-		DiskMessage msg = b.readHead(offsetInside);
-		if(!msgid.equals(msg.id)) {
-			if(b != this.block) {
-				b.close();
+		lock.lock();
+		try{
+			block();
+			Block b = null;
+			if(blockNo == this.blockNumber) {
+				b = this.block; 
+			} else {
+				b = index.createReadBlock(blockNo);
 			}
-			return false;
-		}
-		
-		this.blockNumber = blockNo;
-		this.offset = offsetInside;
-		if(b != this.block) {
-			this.block.close();
+			DiskMessage msg = b.readHead(offsetInside);
+			if(!msgid.equals(msg.id)) {
+				if(b != this.block) {
+					b.close();
+				}
+				return false;
+			}
+			
+			moveTo(b, offsetInside, msg.messageNumber-1);
+			return true;
+		} finally {
+			lock.unlock();
 		}
-		this.block = b; 
-		this.messageNumber = msg.messageNumber;
-		
-		return true;
 	}   
 	
 	public boolean seek(long time) throws IOException{ 
-		BlockOffset res = index.searchBlock(offset);
+		BlockOffset res = index.searchBlockByTime(time);
 		if(res == null) {
 			return false;
 		}
 		long blockNo = res.blockNumber;
-		Offset offset = res.offset;
-		 
-		Block b = null;
-		if(blockNo == this.blockNumber) {
-			b = this.block; 
-		} else {
-			b = index.createReadBlock(blockNo);
-		}
 		
-		int pos = 0;
-		
-		DiskMessage msg = null;
-		while(pos < offset.endOffset) {
-			msg = block.readFully(pos);
-			pos += msg.bytesScanned;
-			if(msg.timestamp<time) continue; 
+		lock.lock();
+		try{
+			block();
+			Block b = null;
+			if(blockNo == this.blockNumber) {
+				b = this.block; 
+			} else {
+				b = index.createReadBlock(blockNo);
+			}
+			int pos = b.searchByTime(time);
+			if(!b.isEndOfBlock(pos)){
+				moveTo(b, pos, b.readHead(pos).messageNumber-1);
+				return true;
+			}
+			if(!index.overflow(blockNo+1) && index.readOffset(blockNo+1).endOffset > 0){ 
+				if(b != this.block) {
+					b.close();
+				}
+				b = index.createReadBlock(blockNo+1); //all messages of the block before time, next block starts right after
+				moveTo(b, 0, b.readHead(0).messageNumber-1);
+				return true;
+			}
+			moveTo(b, pos, index.getMessageCount()-1);
+			return true;
+		} finally {
+			lock.unlock();
 		}
+	}   
+	
+	private void moveTo(Block b, int offset, long lastMessageNumber) throws IOException{
 		if(b != this.block) {
 			this.block.close();
 		}
-		
-		if(msg == null) return false;
-		
-		this.blockNumber = blockNo;
-		this.offset = pos; 
-		this.block = b; 
-		this.messageNumber = msg.messageNumber;
-		
-		return true;
-	}   
+		this.block = b;
+		this.blockNumber = b.getBlockNumber();
+		this.offset = offset;
+		this.messageNumber = lastMessageNumber;
+		writeOffset();
+	}
 	
 	public boolean isEOF() throws IOException{
 		lock.lock();
 		try{  
-			if(block.isEndOfBlock(this.offset)){  
+			if(this.blockNumber < index.getBlockStart()){ //block removed by retention, read forwards
+				return false;
+			}
+			if(block().isEndOfBlock(this.offset)){  
 				if(index.overflow(blockNumber+1)){
 					return true;
 				} 
@@ -177,32 +212,54 @@ public class QueueReader extends MappedFile implements Comparable<QueueReader> {
 		} 
 	} 
 	
+	/**
+	 * Message number of position not persisted(reader file written before, or forwarded by retention),
+	 * read from head of the block once. The block is closed after, info queries never open blocks.
+	 */
 	private void readMessageNumber() throws IOException{
-		if(block.isEndOfBlock(this.offset)){  
-			if(index.overflow(blockNumber+1)){
-				this.messageNumber = index.getMessageCount()-1;
-				return;
+		if(this.blockNumber == 0 && this.offset == 0){ //start of topic
+			this.messageNumber = -1;
+			return;
+		}
+		Block b = index.createReadBlock(this.blockNumber);
+		try{
+			if(b.isEndOfBlock(this.offset)){  
+				if(index.overflow(blockNumber+1)){
+					this.messageNumber = index.getMessageCount()-1;
+					return;
+				}
+				b.close();
+				b = index.createReadBlock(blockNumber+1);
+				this.blockNumber = b.getBlockNumber();
+				this.offset = 0;
 			}
-			this.blockNumber++;
+			DiskMessage data = b.readHead(offset); 
+			this.messageNumber = data.messageNumber - 1;  
+		} finally {
+			b.close();
+		}
+	}
+	
+	private void moveToBlock(long blockNumber) throws IOException{
+		if(block != null){
 			block.close();
-			block = this.index.createReadBlock(this.blockNumber);
-			this.offset = 0;
 		}
-		DiskMessage data = block.readHead(offset); 
-		this.messageNumber = data.messageNumber - 1;  
+		this.blockNumber = Math.max(blockNumber, index.getBlockStart()); //blocks before removed by retention
+		this.offset = 0;
+		block = this.index.createReadBlock(this.blockNumber);
 	}
 	
 	private DiskMessage readUnsafe(List<String[]> filterParts) throws IOException{
-		if(block.isEndOfBlock(this.offset)){  
+		if(this.blockNumber < index.getBlockStart()){ //block removed by retention, forward to oldest available
+			moveToBlock(index.getBlockStart());
+		}
+		if(block().isEndOfBlock(this.offset)){  
 			if(index.overflow(blockNumber+1)){
 				return null;
 			}
-			this.blockNumber++;
-			block.close();
-			block = this.index.createReadBlock(this.blockNumber);
-			this.offset = 0;
+			moveToBlock(blockNumber+1);
 		} 
-		DiskMessage data = block.readByFilter(offset, filterParts);
+		DiskMessage data = block.readByFilter(offset, filterParts, bodyLimit);
 		this.offset += data.bytesScanned;
 		this.messageNumber = data.messageNumber == null? -1 : data.messageNumber; 
 		
@@ -238,7 +295,7 @@ public class QueueReader extends MappedFile implements Comparable<QueueReader> {
 				this.randomAccessBlock = index.createReadBlock(blockOffset.blockNumber);
 			}
 			int offsetInside = (int)(offset - blockOffset.offset.baseOffset);
-			return randomAccessBlock.readFully(offsetInside);  
+			return randomAccessBlock.readFully(offsetInside, bodyLimit);  
 		} finally {
 			lock.unlock();
 		} 
@@ -258,6 +315,12 @@ public class QueueReader extends MappedFile implements Comparable<QueueReader> {
 			this.filter = new String(tag, 1, tagLen);
 			calcFilter(this.filter); 
 		}
+		
+		buffer.position(MESSAGE_NUMBER_POS);
+		if(buffer.getInt() == MESSAGE_NUMBER_MARK){
+			this.messageNumber = buffer.getLong();
+			this.messageNumberLoaded = true;
+		}
 	}
 	
 	@Override
@@ -272,10 +335,27 @@ public class QueueReader extends MappedFile implements Comparable<QueueReader> {
 		buffer.put((byte)0); //tag default to null
 	}   
 	 
+	public long getBlockNumber() {
+		return blockNumber;
+	}
+	
 	public int getOffset() {
 		return offset;
 	}  
 
+	public int getBodyLimit() {
+		return bodyLimit;
+	}
+	
+	/**
+	 * Message bodies larger than bodyLimit are not read into memory, DiskMessage returned
+	 * refers to the body region in block file instead.
+	 * @param bodyLimit max body size read into memory
+	 */
+	public void setBodyLimit(int bodyLimit) {
+		this.bodyLimit = bodyLimit;
+	}
+	
 	public String getFilter() {
 		return filter;
 	} 
@@ -288,6 +368,7 @@ public class QueueReader extends MappedFile implements Comparable<QueueReader> {
 		lock.lock();
 		try{  
 			this.filter = filter;
+			MappedByteBuffer buffer = buffer();
 			int len = 0;
 			if(StrKit.isEmpty(filter)){ //clear
 				buffer.position(FILTER_POS);
@@ -320,14 +401,21 @@ public class QueueReader extends MappedFile implements Comparable<QueueReader> {
 		return messageNumber;
 	}
 	
+	/**
+	 * @return messages not read yet, from index and reader file only, no block opened
+	 */
 	public long getMessageCount(){
-		return index.getMessageCount() - messageNumber-1;
+		return Math.max(0, index.getMessageCount() - messageNumber - 1);
 	}
 
 	private void writeOffset(){
+		MappedByteBuffer buffer = buffer();
 		buffer.position(0); 
 		buffer.putLong(blockNumber); 
 		buffer.putInt(offset);
+		buffer.position(MESSAGE_NUMBER_POS);
+		buffer.putInt(MESSAGE_NUMBER_MARK);
+		buffer.putLong(messageNumber);
 	} 
 
 	@Override
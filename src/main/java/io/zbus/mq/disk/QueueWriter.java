@@ -2,40 +2,223 @@ package io.zbus.mq.disk;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
- 
-public class QueueWriter implements Closeable{ 
+
+import io.zbus.kit.logging.Logger;
+import io.zbus.kit.logging.LoggerFactory;
+import io.zbus.mq.disk.DiskConfig.FlushMode;
+
+public class QueueWriter implements Closeable{
+	private static final Logger log = LoggerFactory.getLogger(QueueWriter.class);
+	private static ScheduledExecutorService flushExecutor; //shared by all writers, no thread per topic
+
 	private final Index index;
 	private Block writeBlock;
-	private final Lock writeLock = new ReentrantLock();  
-	
+	private final Lock writeLock = new ReentrantLock();
+
+	private final FlushMode flushMode;
+	private long writePosition = 0;           //bytes written by this writer, guarded by writeLock
+	private volatile long flushedPosition = 0;
+	private final Lock flushLock = new ReentrantLock();
+	private final List<FlushCallback> pendingFlushes = new ArrayList<FlushCallback>();
+	private boolean flushScheduled = false;   //guarded by pendingFlushes
+	private ScheduledFuture<?> intervalFlush;
+
 	public QueueWriter(Index index) throws IOException {
 		this.index = index;
 		writeBlock = index.createWriteBlock();
+
+		DiskConfig config = index.getConfig();
+		this.flushMode = config.getFlushMode();
+		if(flushMode == FlushMode.INTERVAL){
+			long interval = config.getFlushInterval();
+			intervalFlush = flushExecutor().scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch (IOException e) {
+						log.error(e.getMessage(), e);
+					}
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Append messages to the active block
+	 * @param data messages to write
+	 * @return write position after the messages appended, used to wait for the flush covering them
+	 * @throws IOException if write failed
+	 */
+	public long write(DiskMessage... data) throws IOException{
+		return write(data, data.length);
 	}
-	 
-	public void write(DiskMessage... data) throws IOException{
-		if(data.length == 0) return;
-		
+
+	/**
+	 * Append the first count messages of data, array reused by caller
+	 * @return write position after the messages appended
+	 * @throws IOException if write failed
+	 */
+	public long write(DiskMessage[] data, int count) throws IOException{
+		if(count == 0) return writePosition;
+
+		long position;
 		writeLock.lock();
-		try{ 
-			int count = writeBlock.write(data);
-			if(count <= 0){
+		try{
+			int bytes = writeBlock.write(data, count);
+			if(bytes <= 0){
+				if(flushMode != FlushMode.NONE){
+					writeBlock.force(); //sealed block must be durable before switched
+				}
 				writeBlock.close();
-				writeBlock = index.createWriteBlock(); 
-				writeBlock.write(data);
+				writeBlock = index.createWriteBlock();
+				bytes = writeBlock.write(data, count);
 			}
+			writePosition += bytes;
+			position = writePosition;
 		}
 		finally {
 			writeLock.unlock();
 		}
-	} 
-	
+
+		if(flushMode == FlushMode.BYTES && position - flushedPosition >= index.getConfig().getFlushBytes()){
+			scheduleFlush(null);
+		}
+		return position;
+	}
+
+	/**
+	 * Invoke callback once data written up to position is forced to disk.
+	 * All requests pending at the same time are completed by one force(group commit).
+	 *
+	 * @param position write position returned by write
+	 * @param callback invoked in flush thread, or in caller thread if already flushed
+	 */
+	public void sync(long position, FlushCallback callback){
+		if(flushedPosition >= position){
+			callback.onFlushed(null);
+			return;
+		}
+		scheduleFlush(callback);
+	}
+
+	/**
+	 * Force all written data to disk
+	 * @throws IOException if force failed
+	 */
+	public void flush() throws IOException{
+		flushLock.lock();
+		try{
+			long position;
+			Block block;
+			writeLock.lock();
+			try{
+				position = writePosition;
+				block = writeBlock;
+			} finally {
+				writeLock.unlock();
+			}
+			if(position <= flushedPosition) return;
+
+			block.force(); //blocks switched before were forced in write
+			index.force(); //endOffset and messageCount of forced data, recovery validates records up to endOffset only
+			flushedPosition = position;
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	public long getFlushedPosition() {
+		return flushedPosition;
+	}
+
+	private void scheduleFlush(FlushCallback callback){
+		synchronized (pendingFlushes) {
+			if(callback != null){
+				pendingFlushes.add(callback);
+			}
+			if(flushScheduled) return;
+			flushScheduled = true;
+		}
+		flushExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				groupFlush();
+			}
+		});
+	}
+
+	private void groupFlush(){
+		while(true){
+			List<FlushCallback> batch;
+			synchronized (pendingFlushes) {
+				batch = new ArrayList<FlushCallback>(pendingFlushes);
+				pendingFlushes.clear();
+			}
+			IOException error = null;
+			try {
+				flush(); //covers all requests in batch, their positions were written before
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+				error = e;
+			}
+			for(FlushCallback callback : batch){
+				try{
+					callback.onFlushed(error);
+				} catch (Exception e) {
+					log.error(e.getMessage(), e);
+				}
+			}
+			synchronized (pendingFlushes) {
+				if(pendingFlushes.isEmpty()){
+					flushScheduled = false;
+					return;
+				}
+			}
+		}
+	}
+
+	private static synchronized ScheduledExecutorService flushExecutor(){
+		if(flushExecutor == null){
+			int threadCount = Runtime.getRuntime().availableProcessors();
+			flushExecutor = Executors.newScheduledThreadPool(threadCount, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DiskFlusher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return flushExecutor;
+	}
+
 	@Override
-	public void close() throws IOException {  
+	public void close() throws IOException {
+		if(intervalFlush != null){
+			intervalFlush.cancel(false);
+		}
+		if(flushMode != FlushMode.NONE){
+			groupFlush();
+		}
 		if(writeBlock != null){
 			writeBlock.close();
 		}
 	}
+
+	public static interface FlushCallback {
+		/**
+		 * @param error null if flushed successfully
+		 */
+		void onFlushed(IOException error);
+	}
 }
@@ -0,0 +1,27 @@
+package io.zbus.mq.disk;
+
+import java.io.IOException;
+
+/**
+ * Sequential read view over a block's data, implemented by file backed and mmap backed buffers
+ */
+interface ReadBuffer {
+	
+	void seek(long pos) throws IOException;
+	
+	int skipBytes(int n) throws IOException;
+	
+	boolean checksum(int size, long checksum);
+	
+	int read(byte[] data) throws IOException;
+	
+	/**
+	 * Read into part of data, for buffers reused across records
+	 * @return bytes read, less than length only at end of data
+	 */
+	int read(byte[] data, int offset, int length) throws IOException;
+	
+	int readInt() throws IOException;
+	
+	long readLong() throws IOException;
+}
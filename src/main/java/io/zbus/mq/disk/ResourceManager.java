@@ -0,0 +1,204 @@
+package io.zbus.mq.disk;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-wide budget of file descriptors and mapped bytes held by disk topics.
+ *
+ * All open descriptors and mappings are counted. Blocks, readers and NAK files are releasable resources:
+ * when a budget is exceeded the least recently used idle ones are closed or unmapped, and reopened transparently
+ * on next access. Recency is tracked by a second chance clock, an access only sets the referenced flag of the handle.
+ * Index files and resources in use(locked) are never released.
+ */
+public class ResourceManager {
+	private static final ResourceManager shared = new ResourceManager();
+
+	private final LinkedHashSet<Handle> handles = new LinkedHashSet<Handle>(); //open releasable resources, oldest first
+	private volatile long maxOpenFiles = 0;   //0 for unlimited
+	private volatile long maxMappedBytes = 0; //0 for unlimited
+
+	private final AtomicLong openFiles = new AtomicLong(0);
+	private final AtomicLong mappedBytes = new AtomicLong(0);
+	private final AtomicLong releaseCount = new AtomicLong(0);
+	private final AtomicLong reopenCount = new AtomicLong(0);
+
+	/**
+	 * @return manager shared by all disk topics of the process
+	 */
+	public static ResourceManager shared(){
+		return shared;
+	}
+
+	/**
+	 * Resource closed by the manager when idle, reopened by itself on next access.
+	 */
+	interface Resource {
+		/**
+		 * Close descriptors and mappings if not in use, never blocks on the resource lock
+		 * @return true if released, false if busy
+		 */
+		boolean release();
+	}
+
+	/**
+	 * Handle of a releasable resource, touched on every access
+	 */
+	static class Handle {
+		final Resource resource;
+		volatile boolean referenced = true;
+		boolean open = false;   //guarded by manager
+		boolean opened = false; //opened once at least, guarded by manager
+
+		Handle(Resource resource) {
+			this.resource = resource;
+		}
+
+		void touch(){
+			referenced = true;
+		}
+	}
+
+	/**
+	 * Resource (re)opened, released ones may be released to keep budgets
+	 * @param handle handle of resource opened
+	 */
+	void opened(Handle handle){
+		handle.touch();
+		synchronized (this) {
+			if(!handle.open){
+				handle.open = true;
+				handles.add(handle);
+				if(handle.opened){
+					reopenCount.incrementAndGet();
+				}
+				handle.opened = true;
+			}
+		}
+		checkBudget(handle);
+	}
+
+	/**
+	 * Resource closed by its owner, no longer released by the manager
+	 * @param handle handle of resource closed
+	 */
+	synchronized void closed(Handle handle){
+		handle.open = false;
+		handles.remove(handle);
+	}
+
+	void fileOpened(){
+		openFiles.incrementAndGet();
+	}
+
+	void fileClosed(){
+		openFiles.decrementAndGet();
+	}
+
+	void mapped(long bytes){
+		mappedBytes.addAndGet(bytes);
+	}
+
+	void unmapped(long bytes){
+		mappedBytes.addAndGet(-bytes);
+	}
+
+	private boolean overBudget(){
+		return (maxOpenFiles > 0 && openFiles.get() > maxOpenFiles)
+				|| (maxMappedBytes > 0 && mappedBytes.get() > maxMappedBytes);
+	}
+
+	/**
+	 * Release idle resources until within budgets, at most two rounds of the clock.
+	 * Victims are released out of the manager lock, owners notify the manager when closing.
+	 * @param keep resource just accessed, never released
+	 */
+	private void checkBudget(Handle keep){
+		if(!overBudget()) return;
+		int rounds = 0;
+		synchronized (this) {
+			rounds = handles.size()*2;
+		}
+		List<Handle> busy = new ArrayList<Handle>();
+		while(overBudget() && rounds-- > 0){
+			Handle victim = null;
+			synchronized (this) {
+				Iterator<Handle> iter = handles.iterator();
+				if(!iter.hasNext()) break;
+				Handle h = iter.next();
+				iter.remove();
+				if(h == keep || h.referenced){ //second chance
+					h.referenced = false;
+					handles.add(h);
+				} else {
+					h.open = false;
+					victim = h;
+				}
+			}
+			if(victim == null) continue;
+			if(victim.resource.release()){
+				releaseCount.incrementAndGet();
+			} else {
+				busy.add(victim);
+			}
+		}
+		if(busy.isEmpty()) return;
+		synchronized (this) {
+			for(Handle h : busy){
+				h.open = true;
+				handles.add(h);
+			}
+		}
+	}
+
+	public long getMaxOpenFiles() {
+		return maxOpenFiles;
+	}
+
+	/**
+	 * @param maxOpenFiles file descriptors budget, 0 for unlimited
+	 */
+	public void setMaxOpenFiles(long maxOpenFiles) {
+		this.maxOpenFiles = maxOpenFiles;
+	}
+
+	public long getMaxMappedBytes() {
+		return maxMappedBytes;
+	}
+
+	/**
+	 * @param maxMappedBytes mapped bytes budget, 0 for unlimited
+	 */
+	public void setMaxMappedBytes(long maxMappedBytes) {
+		this.maxMappedBytes = maxMappedBytes;
+	}
+
+	public long getOpenFiles() {
+		return openFiles.get();
+	}
+
+	public long getMappedBytes() {
+		return mappedBytes.get();
+	}
+
+	public synchronized int getHandleCount() {
+		return handles.size();
+	}
+
+	public long getReleaseCount() {
+		return releaseCount.get();
+	}
+
+	public long getReopenCount() {
+		return reopenCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ResourceManager(files=%d/%d, mapped=%d/%d, handles=%d, released=%d, reopened=%d)",
+				getOpenFiles(), maxOpenFiles, getMappedBytes(), maxMappedBytes, getHandleCount(), getReleaseCount(), getReopenCount());
+	}
+}
@@ -0,0 +1,117 @@
+package io.zbus.mq.disk;
+
+import java.util.List;
+
+/**
+ * Bloom filter summarizing the tags of a chunk of messages.
+ * 
+ * Each tag adds one token per dot separated part (part with its position) and one token
+ * for its part count, a filter may match some tag of the chunk only if all tokens it
+ * requires are present, so chunks failing the check are skipped without reading.
+ */
+class TagBloomFilter {
+	public static final int Size = 64; //bytes
+	private static final int Bits = Size * 8;
+	private static final int HashCount = 3;
+	
+	private final byte[] bits;
+	
+	public TagBloomFilter(){
+		this(new byte[Size]);
+	}
+	
+	public TagBloomFilter(byte[] bits){
+		this.bits = bits;
+	}
+	
+	public byte[] getBits() {
+		return bits;
+	}
+	
+	public void clear(){
+		for(int i=0;i<bits.length;i++) bits[i] = 0;
+	}
+	
+	/**
+	 * Parts hashed in place, same tokens as splitting by dot(trailing empty parts dropped) without creating Strings
+	 */
+	public void add(String tag){
+		if(tag == null) return;
+		int end = tag.length();
+		while(end > 0 && tag.charAt(end-1) == '.') end--;
+		if(end == 0 && tag.length() > 0){ //dots only, no part
+			addToken(lengthToken(0));
+			return;
+		}
+		int count = 0;
+		int hash = 0; //String.hashCode of the part
+		for(int i=0;i<=end;i++){
+			if(i == end || tag.charAt(i) == '.'){
+				addToken(partToken(count++, hash));
+				hash = 0;
+			} else {
+				hash = 31*hash + tag.charAt(i);
+			}
+		}
+		addToken(lengthToken(count));
+	}
+	
+	/**
+	 * @param filterParts filter groups, each split by dot, same as QueueReader's filter
+	 * @return false if no tag added could match any of the filter groups
+	 */
+	public boolean mayMatch(List<String[]> filterParts){
+		for(String[] parts : filterParts){
+			if(mayMatch(parts)) return true;
+		}
+		return false;
+	}
+	
+	private boolean mayMatch(String[] parts){
+		for(int i=0;i<parts.length;i++){
+			String part = parts[i];
+			if("#".equals(part)) return true; //any length from here
+			if("*".equals(part)) continue;
+			if(!containsToken(partToken(i, part))) return false;
+		}
+		return containsToken(lengthToken(parts.length));
+	}
+	
+	private static int partToken(int position, String part){
+		return partToken(position, part.hashCode());
+	}
+	
+	private static int partToken(int position, int partHash){
+		return partHash*31 + position;
+	}
+	
+	private static int lengthToken(int length){
+		return -1 - length;
+	}
+	
+	private void addToken(int token){
+		int h = mix(token);
+		for(int i=0;i<HashCount;i++){
+			int bit = (h >>> (i*10)) & (Bits-1);
+			bits[bit>>>3] |= (1<<(bit&7));
+		}
+	}
+	
+	private boolean containsToken(int token){
+		int h = mix(token);
+		for(int i=0;i<HashCount;i++){
+			int bit = (h >>> (i*10)) & (Bits-1);
+			if((bits[bit>>>3] & (1<<(bit&7))) == 0) return false;
+		}
+		return true;
+	}
+	
+	private static int mix(int h){ //murmur3 finalizer
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,104 @@
+package io.zbus.mq.disk;
+
+import java.util.List;
+
+/**
+ * Hashed timer wheel, O(1) to schedule and cancel, each tick only visits the bucket due.
+ * Buckets are doubly linked lists of timeouts, timeouts beyond one revolution stay in their bucket until their round comes.
+ * Not thread safe, guarded by the owner.
+ */
+class TimerWheel<T> {
+	private final long tickMillis;
+	private final Timeout<T>[] buckets; //head of each bucket
+	private long currentTick; //ticks before it are expired
+	private int size = 0;
+
+	@SuppressWarnings("unchecked")
+	public TimerWheel(long tickMillis, int wheelSize) {
+		this.tickMillis = tickMillis;
+		this.buckets = (Timeout<T>[]) new Timeout<?>[wheelSize];
+		this.currentTick = System.currentTimeMillis()/tickMillis;
+	}
+
+	/**
+	 * @param item item to schedule
+	 * @param deadline time in milliseconds the item expires, expired on next advance if already passed
+	 * @return timeout to cancel
+	 */
+	public Timeout<T> add(T item, long deadline){
+		long tick = Math.max(deadline/tickMillis, currentTick);
+		Timeout<T> t = new Timeout<T>(item, deadline);
+		t.bucket = (int)(tick % buckets.length);
+		t.next = buckets[t.bucket];
+		if(t.next != null){
+			t.next.prev = t;
+		}
+		buckets[t.bucket] = t;
+		size++;
+		return t;
+	}
+
+	/**
+	 * @param t timeout to remove, ignored if expired or cancelled already
+	 */
+	public void cancel(Timeout<T> t){
+		if(t == null || t.bucket < 0) return;
+		if(t.prev == null){
+			buckets[t.bucket] = t.next;
+		} else {
+			t.prev.next = t.next;
+		}
+		if(t.next != null){
+			t.next.prev = t.prev;
+		}
+		t.prev = t.next = null;
+		t.bucket = -1;
+		size--;
+	}
+
+	/**
+	 * Move the wheel to now
+	 * @param now current time in milliseconds
+	 * @param expired items with deadline reached, added in order of ticks
+	 */
+	public void advance(long now, List<T> expired){
+		long nowTick = now/tickMillis;
+		long end = Math.min(nowTick, currentTick + buckets.length - 1); //one revolution visits every bucket
+		for(long tick=currentTick; tick<=end && size>0; tick++){
+			Timeout<T> t = buckets[(int)(tick % buckets.length)];
+			while(t != null){
+				Timeout<T> next = t.next;
+				if(t.deadline <= now){ //later rounds kept
+					cancel(t);
+					expired.add(t.item);
+				}
+				t = next;
+			}
+		}
+		currentTick = nowTick;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public void clear(){
+		for(int i=0;i<buckets.length;i++){
+			buckets[i] = null;
+		}
+		size = 0;
+	}
+
+	static class Timeout<T> {
+		final T item;
+		final long deadline;
+		int bucket = -1; //-1 if not scheduled
+		Timeout<T> prev;
+		Timeout<T> next;
+
+		Timeout(T item, long deadline) {
+			this.item = item;
+			this.deadline = deadline;
+		}
+	}
+}
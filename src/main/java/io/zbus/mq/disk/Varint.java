@@ -0,0 +1,44 @@
+package io.zbus.mq.disk;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Unsigned LEB128 varint, 7 bits per byte with the high bit set on all bytes but the last
+ */
+class Varint {
+
+	public static int sizeOf(long value){
+		int size = 1;
+		while((value & ~0x7FL) != 0){
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	public static void write(ByteBuffer buf, long value){
+		while((value & ~0x7FL) != 0){
+			buf.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte)value);
+	}
+
+	public static long readLong(ByteBuffer buf){
+		long value = 0;
+		for(int shift=0; shift<64; shift+=7){
+			byte b = buf.get();
+			value |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0) return value;
+		}
+		throw new IllegalStateException("Varint too long");
+	}
+
+	public static int readInt(ByteBuffer buf){
+		long value = readLong(buf);
+		if(value > Integer.MAX_VALUE){
+			throw new IllegalStateException("Varint overflow: " + value);
+		}
+		return (int)value;
+	}
+}
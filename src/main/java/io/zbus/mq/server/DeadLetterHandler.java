@@ -0,0 +1,12 @@
+package io.zbus.mq.server;
+
+import java.io.IOException;
+
+import io.zbus.mq.Message;
+
+/**
+ * Receives messages exceeding max retry of their consume group, topic of message set to the dead letter topic.
+ */
+public interface DeadLetterHandler { 
+	void handle(Message message) throws IOException;
+}
@@ -5,12 +5,24 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.zbus.kit.JsonKit;
 import io.zbus.kit.StrKit;
@@ -19,10 +31,12 @@ import io.zbus.kit.HttpKit.UrlInfo;
 import io.zbus.kit.logging.Logger;
 import io.zbus.kit.logging.LoggerFactory;
 import io.zbus.mq.ConsumeGroup;
+import io.zbus.mq.DedupWindow;
 import io.zbus.mq.DiskQueue;
 import io.zbus.mq.MemoryQueue;
 import io.zbus.mq.Message;
 import io.zbus.mq.MessageQueue;
+import io.zbus.mq.MqException;
 import io.zbus.mq.Protocol;
 import io.zbus.mq.Protocol.ConsumeGroupInfo;
 import io.zbus.mq.Protocol.ServerEvent;
@@ -33,6 +47,7 @@ import io.zbus.mq.server.auth.AuthProvider;
 import io.zbus.mq.server.auth.Token;
 import io.zbus.rpc.Request;
 import io.zbus.transport.MessageHandler;
+import io.zbus.transport.ResultCallback;
 import io.zbus.transport.ServerAdaptor;
 import io.zbus.transport.Session; 
 
@@ -44,11 +59,13 @@ public class MqAdaptor extends ServerAdaptor implements Closeable {
 	private final MqServer mqServer;
 	private final MqServerConfig config;    
 	private final Tracker tracker; 
+	private final TopicExecutor topicExecutor; //null if topics handled in event loop
 	private AuthProvider authProvider;
 	private MessageLogger messageLogger;
 	
 	private ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(16);
 	private Set<String> groupOptionalCommands = new HashSet<String>();  
+	private Set<String> topicCommands = new HashSet<String>(); //run on worker of the topic
 	
 	private MonitorAdaptor monitorAdaptor;
  
@@ -61,6 +78,7 @@ public class MqAdaptor extends ServerAdaptor implements Closeable {
 		this.mqServer = mqServer;  
 		this.mqTable = mqServer.getMqTable();  
 		this.tracker = mqServer.getTracker(); 
+		this.topicExecutor = mqServer.getTopicExecutor();
 		
 		this.monitorAdaptor = monitorAdaptor; //if null, no monitor embedded
 		 
@@ -70,11 +88,22 @@ public class MqAdaptor extends ServerAdaptor implements Closeable {
 		groupOptionalCommands.add(Protocol.REMOVE); 
 		groupOptionalCommands.add(Protocol.EMPTY); 
 		
+		topicCommands.add(Protocol.PRODUCE);
+		topicCommands.add(Protocol.PRODUCE_BATCH);
+		topicCommands.add(Protocol.CONSUME);
+		topicCommands.add(Protocol.UNCONSUME);
+		topicCommands.add(Protocol.SUBSCRIBE);
+		topicCommands.add(Protocol.ACK);
+		topicCommands.add(Protocol.DECLARE);
+		topicCommands.add(Protocol.REMOVE);
+		
 		
 		//Produce/Consume
 		registerHandler(Protocol.PRODUCE, produceHandler); 
+		registerHandler(Protocol.PRODUCE_BATCH, produceBatchHandler); 
 		registerHandler(Protocol.CONSUME, consumeHandler);   
 		registerHandler(Protocol.UNCONSUME, unconsumeHandler); 
+		registerHandler(Protocol.SUBSCRIBE, subscribeHandler); 
 		registerHandler(Protocol.ROUTE, routeHandler);  
 		registerHandler(Protocol.ACK, ackHandler); 
 		
@@ -113,14 +142,190 @@ public class MqAdaptor extends ServerAdaptor implements Closeable {
 			msg.removeHeader(Protocol.COMMAND);
 			msg.removeHeader(Protocol.ACK);  
 			msg.removeHeader(Protocol.TOKEN);
-			mq.produce(msg);  
 			
-			if(ack){
-				ReplyKit.reply200(msg, sess);
+			final ResultCallback<Boolean> reply = produceReply(msg, sess, ack);
+			final DedupWindow dedup = mq.getDedupWindow();
+			final String id = msg.getId();
+			if(dedup != null){
+				int state = dedup.begin(id, reply);
+				if(state == DedupWindow.STORED){ //retried by producer, stored already
+					reply.onReturn(true);
+					return;
+				}
+				if(state == DedupWindow.PENDING) return; //replied as the first attempt completes
+			}
+			
+			boolean produced = false;
+			try {
+				mq.produce(msg, new ResultCallback<Boolean>() { //ACK held until flushed if topic in sync flush mode
+					@Override
+					public void onReturn(Boolean result) {
+						if(dedup != null) dedup.end(id, result); //id recorded only if stored
+						reply.onReturn(result);
+					}
+				});  
+				produced = true;
+			} finally {
+				if(!produced && dedup != null) dedup.end(id, false);
 			}
 		}
 	};  
 	
+	private MessageHandler<Message> produceBatchHandler = new MessageHandler<Message>() { 
+		@Override
+		public void handle(final Message msg, final Session sess) throws IOException {  
+			final MessageQueue mq = findMQ(msg, sess);
+			if(mq == null) return; 
+			
+			int mask = mq.getMask() & (Protocol.MASK_RPC | Protocol.MASK_PROXY);  
+			boolean ack = msg.isAck();  
+			if(mask != 0){
+				ack = false;
+			} 
+			
+			List<Message> messages;
+			try {
+				messages = Message.decodeBatch(msg.getBody());
+			} catch (IllegalArgumentException e) {
+				if(ack) ReplyKit.reply400(msg, sess, e.getMessage());
+				return;
+			}
+			for(Message data : messages){ //whole batch rejected if any invalid
+				data.setTopic(mq.topic());
+				if(!validateMessage(data, sess, ack ? msg : null)) return;
+				data.removeHeader(Protocol.COMMAND);
+				data.removeHeader(Protocol.ACK);  
+				data.removeHeader(Protocol.TOKEN);
+			}
+			final ResultCallback<Boolean> reply = produceReply(msg, sess, ack);
+			final DedupWindow dedup = mq.getDedupWindow();
+			if(dedup == null){
+				mq.produce(messages, reply);
+				return;
+			}
+			
+			//replied once the batch and first attempts of its retried messages in flight complete
+			final AtomicInteger remaining = new AtomicInteger(1);
+			final AtomicBoolean failed = new AtomicBoolean(false);
+			final ResultCallback<Boolean> part = new ResultCallback<Boolean>() {
+				@Override
+				public void onReturn(Boolean result) {
+					if(!result) failed.set(true);
+					if(remaining.decrementAndGet() == 0){
+						reply.onReturn(!failed.get());
+					}
+				}
+			};
+			final List<String> ids = new ArrayList<String>(messages.size());
+			Iterator<Message> iter = messages.iterator();
+			while(iter.hasNext()){
+				Message data = iter.next();
+				remaining.incrementAndGet(); //before begin, the waiter may be called at once by another thread
+				int state = dedup.begin(data.getId(), part);
+				if(state != DedupWindow.PENDING) remaining.decrementAndGet();
+				if(state == DedupWindow.NEW){
+					ids.add(data.getId());
+				} else { //batch retried by producer
+					iter.remove();
+				}
+			}
+			
+			boolean produced = false;
+			try {
+				mq.produce(messages, new ResultCallback<Boolean>() { 
+					@Override
+					public void onReturn(Boolean result) {
+						for(String id : ids){
+							dedup.end(id, result);
+						}
+						part.onReturn(result);
+					}
+				});  
+				produced = true;
+			} finally {
+				if(!produced){
+					for(String id : ids){
+						dedup.end(id, false);
+					}
+				}
+			}
+		}
+	};  
+	
+	/**
+	 * Reply of produce once stored, none if ack not required
+	 */
+	private ResultCallback<Boolean> produceReply(final Message msg, final Session sess, final boolean ack) {
+		return new ResultCallback<Boolean>() {
+			@Override
+			public void onReturn(Boolean result) {
+				if(!ack) return;
+				try {
+					if(result){
+						ReplyKit.reply200(msg, sess);
+					} else {
+						ReplyKit.reply500(msg, sess, new MqException("Message store failed(flush to disk failed or memory topic full)"));
+					}
+				} catch (IOException e) {
+					log.error(e.getMessage(), e);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Dead letters produced to their dead letter topic, declared on first use.
+	 * Produced on worker of the dead letter topic, never blocking worker of the source topic.
+	 */
+	private DeadLetterHandler deadLetterHandler = new DeadLetterHandler() {
+		@Override
+		public void handle(final Message message) throws IOException {
+			if(topicExecutor == null){
+				produce(message);
+				return;
+			}
+			execute(message.getTopic(), new Runnable() {
+				@Override
+				public void run() {
+					try {
+						produce(message);
+					} catch (Exception e) {
+						log.error(e.getMessage(), e);
+					}
+				}
+			});
+		}
+		
+		private void produce(final Message message) throws IOException {
+			final String topic = message.getTopic();
+			MessageQueue mq = null;
+			boolean created = false;
+			synchronized (mqTable) {
+				mq = mqTable.get(topic);  
+				if(mq == null){ 
+					mq = new DiskQueue(new File(config.getMqPath(), topic), config.getDiskConfig(topic));  
+					mq.setMessageLogger(messageLogger);
+					mq.setDeadLetterHandler(this);
+					mq.setExecutor(executor(topic));
+					mqTable.put(topic, mq);
+					created = true;
+					log.info("MQ Created: %s", mq);
+				}
+			}
+			mq.produce(message, new ResultCallback<Boolean>() {
+				@Override
+				public void onReturn(Boolean result) {
+					if(!result){
+						log.error("Dead letter(origin offset=%s) store to %s failed", message.getHeader(Protocol.ORIGIN_OFFSET), topic);
+					}
+				}
+			});
+			if(created){
+				tracker.myServerChanged();
+			}
+		}
+	};
+	
 	private MessageHandler<Message> consumeHandler = new MessageHandler<Message>() { 
 		@Override
 		public void handle(Message msg, Session sess) throws IOException {  
@@ -137,6 +342,22 @@ public class MqAdaptor extends ServerAdaptor implements Closeable {
 		}
 	}; 
 	
+	private MessageHandler<Message> subscribeHandler = new MessageHandler<Message>() { 
+		@Override
+		public void handle(Message msg, Session sess) throws IOException {  
+			MessageQueue mq = findMQ(msg, sess);
+			if(mq == null) return; 
+			
+			mq.subscribe(msg, sess);  
+			String topic = sess.attr(Protocol.TOPIC);
+			if(!msg.getTopic().equalsIgnoreCase(topic)){
+				sess.attr(Protocol.TOPIC, mq.topic()); //mark
+				
+				tracker.myServerChanged(); 
+			} 
+		}
+	}; 
+	
 	private MessageHandler<Message> unconsumeHandler = new MessageHandler<Message>() { 
 		@Override
 		public void handle(Message msg, Session sess) throws IOException {  
@@ -221,12 +442,14 @@ public class MqAdaptor extends ServerAdaptor implements Closeable {
     			mq = mqTable.get(topic);  
     			if(mq == null){ 
     				if(topicMask != null && (topicMask&Protocol.MASK_MEMORY) != 0){
-    					mq = new MemoryQueue(topic);
+    					mq = new MemoryQueue(topic, config.getMemoryQueueCapacity(), config.getMemoryQueueOverflow());
     				} else {
-    					mq = new DiskQueue(new File(config.getMqPath(), topic));  
+    					mq = new DiskQueue(new File(config.getMqPath(), topic), config.getDiskConfig(topic));  
     				} 
 	    			mq.setCreator(msg.getToken()); 
 	    			mq.setMessageLogger(messageLogger);
+	    			mq.setDeadLetterHandler(deadLetterHandler);
+	    			mq.setExecutor(executor(topic));
 	    			mqTable.put(topic, mq);
 	    			log.info("MQ Created: %s", mq);
     			}
@@ -430,9 +653,19 @@ public class MqAdaptor extends ServerAdaptor implements Closeable {
 		
 		String topic = sess.attr(Protocol.TOPIC);
 		if(topic != null){
-			MessageQueue mq = mqTable.get(topic); 
+			final MessageQueue mq = mqTable.get(topic); 
 			if(mq != null){
-				mq.cleanSession(sess); 
+				if(topicExecutor == null){
+					mq.cleanSession(sess); 
+				} else {
+					final Session session = sess;
+					execute(topic, new Runnable() { 
+						@Override
+						public void run() {
+							mq.cleanSession(session);
+						}
+					});
+				}
 				tracker.myServerChanged();
 			}
 		}
@@ -451,14 +684,41 @@ public class MqAdaptor extends ServerAdaptor implements Closeable {
 			}
 		});
 		
-		if (mqDirs != null && mqDirs.length > 0) {
-			for (File mqDir : mqDirs) {
-				MessageQueue mq = new DiskQueue(mqDir);
-				mq.setMessageLogger(messageLogger);
-				mqTable.put(mqDir.getName(), mq);
-				log.info("Topic = %s loaded", mqDir.getName()); 
+		if (mqDirs == null || mqDirs.length == 0) return;
+		
+		//topics opened and tail recovered in parallel, other blocks opened on first produce/consume
+		long start = System.currentTimeMillis();
+		int threadCount = Math.min(mqDirs.length, Runtime.getRuntime().availableProcessors()*2);
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (final File mqDir : mqDirs) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						MessageQueue mq = new DiskQueue(mqDir, config.getDiskConfig(mqDir.getName()));
+						mq.setMessageLogger(messageLogger);
+						mq.setDeadLetterHandler(deadLetterHandler);
+						mq.setExecutor(executor(mqDir.getName()));
+						mqTable.put(mqDir.getName(), mq);
+						log.info("Topic = %s loaded", mqDir.getName()); 
+						return null;
+					}
+				}));
 			}
-		}   
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			log.info("%d topics loaded in %d ms", mqDirs.length, System.currentTimeMillis()-start);
+		} catch (InterruptedException e) {
+			throw new IOException(e.getMessage(), e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException)cause;
+			throw new IOException(cause.getMessage(), cause);
+		} finally {
+			executor.shutdown();
+		}
 	}
     
     public void close() throws IOException {     
@@ -573,7 +833,12 @@ public class MqAdaptor extends ServerAdaptor implements Closeable {
     	if(cmd != null){
     		MessageHandler<Message> handler = handlerMap.get(cmd);
 	    	if(handler != null){
-	    		handler.handle(msg, sess);
+	    		String topic = msg.getTopic();
+	    		if(topicExecutor != null && topic != null && topicCommands.contains(cmd)){
+	    			handleInTopic(topic, handler, msg, sess);
+	    		} else {
+	    			handler.handle(msg, sess);
+	    		}
 	    		return;
 	    	}
     	}
@@ -598,6 +863,46 @@ public class MqAdaptor extends ServerAdaptor implements Closeable {
     	} 
     }  
 	
+    /**
+     * Handler run on worker of the topic, serialized with other commands and dispatch of the topic
+     */
+    private void handleInTopic(String topic, final MessageHandler<Message> handler, final Message msg, final Session sess) throws IOException {
+    	Runnable command = new Runnable() { 
+			@Override
+			public void run() {
+				try {
+					handler.handle(msg, sess);
+				} catch (Exception e) { //as thrown in event loop
+					try {
+						onError(e, sess);
+					} catch (Exception ex) {
+						log.error(ex.getMessage(), ex);
+					}
+				}
+			}
+		};
+    	try {
+    		if(!topicExecutor.offer(topic, command)){ //retried by client, produce deduplicated if enabled
+    			ReplyKit.reply503(msg, sess, String.format("Topic(%s) has %d commands waiting", topic, topicExecutor.getQueueCapacity()));
+    		}
+    	} catch (RejectedExecutionException e) {
+    		log.warn("Server closing, command of Topic(%s) dropped", topic);
+    	}
+    }
+    
+    private void execute(String topic, Runnable task) {
+    	try {
+    		topicExecutor.execute(topic, task);
+    	} catch (RejectedExecutionException e) {
+    		log.warn("Server closing, task of Topic(%s) dropped", topic);
+    	}
+    }
+    
+    private Executor executor(String topic) {
+    	if(topicExecutor == null) return null;
+    	return topicExecutor.executor(topic);
+    }
+    
     private MessageQueue findMQ(Message msg, Session sess) throws IOException{
 		String topic = msg.getTopic();
 		boolean isAck = msg.isAck();
@@ -615,15 +920,21 @@ public class MqAdaptor extends ServerAdaptor implements Closeable {
 	}
 
 	private boolean validateMessage(Message msg, Session session) throws IOException{
-		final boolean ack = msg.isAck();  
+		return validateMessage(msg, session, msg.isAck()? msg : null);
+	}
+	
+	/**
+	 * @param reply message replied with 400 if invalid, null if no reply
+	 */
+	private boolean validateMessage(Message msg, Session session, Message reply) throws IOException{
 		String id = msg.getId();
 		String tag = msg.getTag();
 		if(id != null && id.length()>DiskMessage.ID_MAX_LEN){ 
-			if(ack) ReplyKit.reply400(msg, session, "Message.Id length should <= "+DiskMessage.ID_MAX_LEN);
+			if(reply != null) ReplyKit.reply400(reply, session, "Message.Id length should <= "+DiskMessage.ID_MAX_LEN);
 			return false;
 		}
 		if(tag != null && tag.length()>DiskMessage.TAG_MAX_LEN){ 
-			if(ack) ReplyKit.reply400(msg, session, "Message.Tag length should <= "+DiskMessage.TAG_MAX_LEN);
+			if(reply != null) ReplyKit.reply400(reply, session, "Message.Tag length should <= "+DiskMessage.TAG_MAX_LEN);
 			return false;
 		}
 		return true;
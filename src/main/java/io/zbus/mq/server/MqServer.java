@@ -27,6 +27,10 @@ import io.zbus.kit.logging.LoggerFactory;
 import io.zbus.mq.Broker;
 import io.zbus.mq.Message;
 import io.zbus.mq.MessageQueue;
+import io.zbus.mq.disk.BlockCache;
+import io.zbus.mq.disk.ResourceManager;
+import io.zbus.mq.Protocol.BlockCacheInfo;
+import io.zbus.mq.Protocol.ResourceInfo;
 import io.zbus.mq.Protocol.ServerInfo;
 import io.zbus.mq.Protocol.TopicInfo;
 import io.zbus.proxy.http.HttpProxy;
@@ -54,6 +58,8 @@ public class MqServer extends TcpServer {
 	 
 	private MqAdaptor mqAdaptor;  
 	private Tracker tracker; 
+	private RetentionService retentionService;
+	private TopicExecutor topicExecutor; //null if topics handled in event loop
 	private HttpProxy httpProxy;
 	private TcpProxy tcpProxy;
 	
@@ -61,6 +67,8 @@ public class MqServer extends TcpServer {
 	private MonitorAdaptor monitorAdaptor = null;
 	
 	private AtomicLong infoVersion = new AtomicLong(System.currentTimeMillis());
+	private long loadTime;    //milliseconds of topics loading
+	private long startupTime; //milliseconds of loading and start
 	
 	public MqServer(){
 		this(new MqServerConfig());
@@ -120,13 +128,29 @@ public class MqServer extends TcpServer {
 				Iterator<Entry<String, MessageQueue>> iter = mqTable.entrySet().iterator();
 		    	while(iter.hasNext()){
 		    		Entry<String, MessageQueue> e = iter.next();
-		    		MessageQueue mq = e.getValue(); 
-		    		mq.cleanSession(null); //null to clean all inactive sessions
+		    		final MessageQueue mq = e.getValue(); 
+		    		if(topicExecutor == null){
+		    			mq.cleanSession(null); //null to clean all inactive sessions
+		    			continue;
+		    		}
+		    		topicExecutor.execute(mq.topic(), new Runnable() { 
+						@Override
+						public void run() {
+							mq.cleanSession(null);
+						}
+					});
 		    	}
 			}
 		}, 1000, config.getCleanMqInterval(), TimeUnit.MILLISECONDS);   
 		
+		BlockCache.shared().setCapacity(config.getBlockCacheSize());
+		ResourceManager.shared().setMaxOpenFiles(config.getMaxOpenFiles());
+		ResourceManager.shared().setMaxMappedBytes(config.getMaxMappedBytes());
+		if(config.getTopicThreadCount() > 0){
+			topicExecutor = new TopicExecutor(config.getTopicThreadCount(), config.getTopicQueueCapacity());
+		}
 		tracker = new Tracker(this); 
+		retentionService = new RetentionService(this);
 		
 		if(config.isMonitorEnabled()){
 			Integer monitorPort = config.getMonitorPort();
@@ -166,11 +190,13 @@ public class MqServer extends TcpServer {
 			mqAdaptor.setMessageLogger(config.getMessageLogger());
 		}
 		
+		long loadStart = System.currentTimeMillis();
 		try {
 			mqAdaptor.loadDiskQueue();
 		} catch (IOException e) {
 			log.error("Load Message Queue Error: " + e);
 		}   
+		loadTime = System.currentTimeMillis() - loadStart;
 		
 		loadHttpProxy(config.getHttpProxyConfig());
 		loadTcpProxy(config.getTcpProxyConfig());
@@ -213,7 +239,8 @@ public class MqServer extends TcpServer {
 		tracker.joinTracker(config.getTrackerList());   
 		 
 		long end = System.currentTimeMillis();
-		log.info("Zbus(%s) started sucessfully in %d ms", serverAddress, (end-start)); 
+		startupTime = loadTime + (end-start);
+		log.info("Zbus(%s) started sucessfully in %d ms, topics loaded in %d ms", serverAddress, startupTime, loadTime); 
 	}
 	 
 	@Override
@@ -227,6 +254,10 @@ public class MqServer extends TcpServer {
 			monitorAdaptor.close();
 		}
 		tracker.close();
+		retentionService.close();
+		if(topicExecutor != null){
+			topicExecutor.close();
+		}
 		if(httpProxy != null){
 			httpProxy.close();
 		}
@@ -256,6 +287,13 @@ public class MqServer extends TcpServer {
 		return tracker;
 	} 
 	
+	/**
+	 * @return workers topics pinned to, null if topics handled in event loop
+	 */
+	public TopicExecutor getTopicExecutor() {
+		return topicExecutor;
+	}
+	
 	public ServerInfo serverInfo() {
 		Map<String, TopicInfo> table = new HashMap<String, TopicInfo>();
 		for (Map.Entry<String, MessageQueue> e : this.mqTable.entrySet()) {
@@ -268,6 +306,25 @@ public class MqServer extends TcpServer {
 		info.serverAddress = serverAddress;
 		info.trackerList = this.tracker.trackerList();
 		info.topicTable = table; 
+		info.startupTime = startupTime;
+		
+		BlockCache cache = BlockCache.shared();
+		info.blockCache = new BlockCacheInfo();
+		info.blockCache.capacity = cache.getCapacity();
+		info.blockCache.size = cache.getSize();
+		info.blockCache.hitCount = cache.getHitCount();
+		info.blockCache.missCount = cache.getMissCount();
+		info.blockCache.evictionCount = cache.getEvictionCount();
+		
+		ResourceManager resources = ResourceManager.shared();
+		info.resources = new ResourceInfo();
+		info.resources.openFiles = resources.getOpenFiles();
+		info.resources.maxOpenFiles = resources.getMaxOpenFiles();
+		info.resources.mappedBytes = resources.getMappedBytes();
+		info.resources.maxMappedBytes = resources.getMaxMappedBytes();
+		info.resources.handleCount = resources.getHandleCount();
+		info.resources.releaseCount = resources.getReleaseCount();
+		info.resources.reopenCount = resources.getReopenCount();
  
 		return info;
 	}
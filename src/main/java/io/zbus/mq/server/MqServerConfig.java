@@ -6,6 +6,8 @@ import static io.zbus.kit.ConfigKit.valueOf;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
@@ -20,6 +22,9 @@ import io.zbus.kit.ConfigKit.XmlConfig;
 import io.zbus.kit.StrKit;
 import io.zbus.kit.logging.Logger;
 import io.zbus.kit.logging.LoggerFactory;
+import io.zbus.mq.MemoryQueue.OverflowPolicy;
+import io.zbus.mq.disk.BlockCache;
+import io.zbus.mq.disk.DiskConfig;
 import io.zbus.mq.server.auth.AuthProvider;
 import io.zbus.mq.server.auth.Token;
 import io.zbus.mq.server.auth.Token.TopicResource;
@@ -49,6 +54,14 @@ public class MqServerConfig extends XmlConfig implements Cloneable  {
 	
 	private long cleanMqInterval = 3000;           //3 seconds
 	private long reportToTrackerInterval = 30000;  //30 seconds  
+	private long retentionInterval = 60000;        //60 seconds
+	private long blockCacheSize = BlockCache.DefaultCapacity; //bytes of block chunks shared by all disk readers, 0 to disable
+	private long maxOpenFiles = 0;   //file descriptors of disk topics, idle ones closed beyond, 0 for unlimited
+	private long maxMappedBytes = 0; //mapped bytes of disk topics, idle ones unmapped beyond, 0 for unlimited
+	private int topicThreadCount = Runtime.getRuntime().availableProcessors(); //workers topics pinned to, 0 to handle in event loop
+	private int topicQueueCapacity = 10240; //commands of clients waiting on each topic worker, replied 503 beyond
+	private int memoryQueueCapacity = 1024; //messages kept by each memory topic, rounded up to power of 2
+	private OverflowPolicy memoryQueueOverflow = OverflowPolicy.DROP_OLDEST; //memory topic full, slowest group capacity behind
 	
 	private AuthProvider authProvider = new XmlAuthProvider();  
 	private MessageLogger messageLogger;
@@ -56,6 +69,9 @@ public class MqServerConfig extends XmlConfig implements Cloneable  {
 	private HttpProxyConfig httpProxyConfig;
 	private TcpProxyConfig tcpProxyConfig;
 	
+	private DiskConfig diskConfig = new DiskConfig(); //default for all disk topics
+	private Map<String, DiskConfig> topicDiskConfigTable = new ConcurrentSkipListMap<String, DiskConfig>(String.CASE_INSENSITIVE_ORDER);
+	
 	public MqServerConfig(){ 
 		
 	}
@@ -86,6 +102,34 @@ public class MqServerConfig extends XmlConfig implements Cloneable  {
 		
 		this.cleanMqInterval = valueOf(xpath.evaluate("/zbus/cleanMqInterval", doc), 3000);
 		this.reportToTrackerInterval = valueOf(xpath.evaluate("/zbus/reportToTrackerInterval", doc), 30000);
+		this.retentionInterval = valueOf(xpath.evaluate("/zbus/retentionInterval", doc), 60000);
+		this.blockCacheSize = valueOf(xpath.evaluate("/zbus/blockCacheSize", doc), BlockCache.DefaultCapacity);
+		this.maxOpenFiles = valueOf(xpath.evaluate("/zbus/maxOpenFiles", doc), 0L);
+		this.maxMappedBytes = valueOf(xpath.evaluate("/zbus/maxMappedBytes", doc), 0L);
+		this.topicThreadCount = valueOf(xpath.evaluate("/zbus/topicThreadCount", doc), Runtime.getRuntime().availableProcessors());
+		this.topicQueueCapacity = valueOf(xpath.evaluate("/zbus/topicQueueCapacity", doc), 10240);
+		this.memoryQueueCapacity = valueOf(xpath.evaluate("/zbus/memoryQueue/capacity", doc), 1024);
+		String overflow = xpath.evaluate("/zbus/memoryQueue/overflow", doc);
+		if(!StrKit.isEmpty(overflow)){
+			this.memoryQueueOverflow = OverflowPolicy.valueOf(overflow.trim().toUpperCase());
+		}
+		 
+		Node diskNode = (Node) xpath.compile("/zbus/diskQueue").evaluate(doc, XPathConstants.NODE);
+		if(diskNode != null){
+			this.diskConfig.loadFromXml(xpath, diskNode);
+		}
+		NodeList diskList = (NodeList) xpath.compile("/zbus/diskQueueList/*").evaluate(doc, XPathConstants.NODESET);
+		if(diskList != null && diskList.getLength()> 0){ 
+			for (int i = 0; i < diskList.getLength(); i++) {
+			    Node node = diskList.item(i);    
+			    String topic = xpath.evaluate("@topic", node); 
+			    if(StrKit.isEmpty(topic)) continue; 
+			    
+			    DiskConfig topicConfig = this.diskConfig.clone(); //inherit defaults
+			    topicConfig.loadFromXml(xpath, node);
+			    topicDiskConfigTable.put(topic.trim(), topicConfig); 
+			}
+		} 
 		 
 		NodeList list = (NodeList) xpath.compile("/zbus/trackerList/*").evaluate(doc, XPathConstants.NODESET);
 		if(list != null && list.getLength()> 0){ 
@@ -285,6 +329,70 @@ public class MqServerConfig extends XmlConfig implements Cloneable  {
 	public void setReportToTrackerInterval(long reportToTrackerInterval) {
 		this.reportToTrackerInterval = reportToTrackerInterval;
 	}
+	
+	public long getRetentionInterval() {
+		return retentionInterval;
+	}
+
+	public void setRetentionInterval(long retentionInterval) {
+		this.retentionInterval = retentionInterval;
+	}
+	
+	public long getBlockCacheSize() {
+		return blockCacheSize;
+	}
+
+	public void setBlockCacheSize(long blockCacheSize) {
+		this.blockCacheSize = blockCacheSize;
+	}
+	
+	public long getMaxOpenFiles() {
+		return maxOpenFiles;
+	}
+
+	public void setMaxOpenFiles(long maxOpenFiles) {
+		this.maxOpenFiles = maxOpenFiles;
+	}
+	
+	public long getMaxMappedBytes() {
+		return maxMappedBytes;
+	}
+
+	public void setMaxMappedBytes(long maxMappedBytes) {
+		this.maxMappedBytes = maxMappedBytes;
+	}
+
+	public int getTopicThreadCount() {
+		return topicThreadCount;
+	}
+
+	public void setTopicThreadCount(int topicThreadCount) {
+		this.topicThreadCount = topicThreadCount;
+	}
+
+	public int getTopicQueueCapacity() {
+		return topicQueueCapacity;
+	}
+
+	public void setTopicQueueCapacity(int topicQueueCapacity) {
+		this.topicQueueCapacity = topicQueueCapacity;
+	}
+
+	public int getMemoryQueueCapacity() {
+		return memoryQueueCapacity;
+	}
+
+	public void setMemoryQueueCapacity(int memoryQueueCapacity) {
+		this.memoryQueueCapacity = memoryQueueCapacity;
+	}
+
+	public OverflowPolicy getMemoryQueueOverflow() {
+		return memoryQueueOverflow;
+	}
+
+	public void setMemoryQueueOverflow(OverflowPolicy memoryQueueOverflow) {
+		this.memoryQueueOverflow = memoryQueueOverflow;
+	}
 
 	public AuthProvider getAuthProvider() {
 		return authProvider;
@@ -327,6 +435,28 @@ public class MqServerConfig extends XmlConfig implements Cloneable  {
 		this.tcpProxyConfig = tcpProxyConfig;
 	}
 
+	public DiskConfig getDiskConfig() {
+		return diskConfig;
+	}
+
+	public void setDiskConfig(DiskConfig diskConfig) {
+		this.diskConfig = diskConfig;
+	}
+	
+	/**
+	 * @param topic topic name
+	 * @return DiskConfig of the topic, default DiskConfig if not configured specifically
+	 */
+	public DiskConfig getDiskConfig(String topic) {
+		DiskConfig topicConfig = topicDiskConfigTable.get(topic);
+		if(topicConfig != null) return topicConfig;
+		return diskConfig;
+	}
+	
+	public void setDiskConfig(String topic, DiskConfig topicConfig) {
+		topicDiskConfigTable.put(topic, topicConfig);
+	}
+
 	public MessageLogger getMessageLogger() {
 		return messageLogger;
 	}
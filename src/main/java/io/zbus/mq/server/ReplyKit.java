@@ -130,6 +130,15 @@ public class ReplyKit {
 		session.write(res);
 	}
 	
+	public static void reply503(Message msg, Session session, String hint) throws IOException {
+		Message res = new Message();
+		res.setId(msg.getId());
+		res.setStatus(503);
+		res.setTopic(msg.getTopic());
+		res.setBody(String.format("503: Server Busy, %s", hint));
+		session.write(res);
+	}
+	
 	public static void reply500(Message msg, Session session, Exception ex) throws IOException {
 		Message res = new Message();
 		res.setId(msg.getId());
@@ -0,0 +1,83 @@
+package io.zbus.mq.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.zbus.kit.logging.Logger;
+import io.zbus.kit.logging.LoggerFactory;
+import io.zbus.mq.DiskQueue;
+import io.zbus.mq.MessageQueue;
+import io.zbus.mq.disk.DiskConfig;
+
+/**
+ * Delete block files of disk topics out of retention(bytes/time/consumed), configured per topic.
+ *
+ * Blocks are removed from index first, files are deleted afterwards out of the index lock,
+ * files failed to delete(still opened on some platforms) are retried in next round.
+ */
+public class RetentionService implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(RetentionService.class);
+
+	private final MqServer mqServer;
+	private final List<File> pendingFiles = new ArrayList<File>();
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Retention");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public RetentionService(MqServer mqServer){
+		this.mqServer = mqServer;
+		long interval = mqServer.getConfig().getRetentionInterval();
+		if(interval <= 0) return;
+
+		executor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try{
+					retain();
+				} catch (Exception e) {
+					log.error(e.getMessage(), e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	public void retain(){
+		for(MessageQueue mq : mqServer.getMqTable().values()){
+			if(!(mq instanceof DiskQueue)) continue;
+			DiskQueue queue = (DiskQueue)mq;
+			DiskConfig config = mqServer.getConfig().getDiskConfig(queue.topic());
+			if(!config.isRetentionEnabled()) continue;
+			try{
+				pendingFiles.addAll(queue.retain());
+			} catch (Exception e) {
+				log.error(queue.topic() + " retention error: " + e.getMessage(), e);
+			}
+		}
+
+		Iterator<File> iter = pendingFiles.iterator();
+		while(iter.hasNext()){
+			File file = iter.next();
+			if(!file.exists() || file.delete()){
+				log.info("%s deleted", file.getPath());
+				iter.remove();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		executor.shutdown();
+	}
+}
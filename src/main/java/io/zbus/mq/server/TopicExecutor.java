@@ -0,0 +1,137 @@
+package io.zbus.mq.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Workers topics are pinned to, each topic's commands(produce, consume, ack, declare...) and its dispatch
+ * run serialized on one worker: disk reads and writes never block Netty event loops, which only decode and encode,
+ * and a slow topic delays only the topics sharing its worker.
+ *
+ * A topic is pinned by hash of its name(case insensitive as topic table), so its worker is known before
+ * the topic is created and kept for the life of the server.
+ *
+ * Commands of clients waiting on a worker are bounded by queueCapacity, beyond rejected by offer, so a stalled
+ * worker(slow disk) can not pile up requests without limit. Tasks of the server itself(dispatch, store callbacks,
+ * session cleaning) are few per command and never rejected.
+ */
+public class TopicExecutor implements Closeable {
+	private final ExecutorService[] workers;
+	private final AtomicInteger[] waiting; //commands offered to each worker, not started yet
+	private final int queueCapacity;
+
+	/**
+	 * @param threadCount workers, each a single thread
+	 */
+	public TopicExecutor(int threadCount) {
+		this(threadCount, 10240);
+	}
+
+	/**
+	 * @param threadCount workers, each a single thread
+	 * @param queueCapacity commands of clients waiting on each worker at most
+	 */
+	public TopicExecutor(int threadCount, int queueCapacity) {
+		if(threadCount <= 0){
+			throw new IllegalArgumentException("threadCount(" + threadCount + ") should > 0");
+		}
+		if(queueCapacity <= 0){
+			throw new IllegalArgumentException("queueCapacity(" + queueCapacity + ") should > 0");
+		}
+		this.queueCapacity = queueCapacity;
+		workers = new ExecutorService[threadCount];
+		waiting = new AtomicInteger[threadCount];
+		for(int i=0;i<threadCount;i++){
+			waiting[i] = new AtomicInteger();
+			final String name = "Topic-" + i;
+			workers[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	/**
+	 * @param topic topic name
+	 * @return worker of the topic, tasks executed in submission order
+	 */
+	public Executor executor(String topic) {
+		return workers[index(topic)];
+	}
+
+	/**
+	 * Run task on worker of the topic
+	 * @throws RejectedExecutionException if closed
+	 */
+	public void execute(String topic, Runnable task) {
+		executor(topic).execute(task);
+	}
+
+	/**
+	 * Run command of a client on worker of the topic, unless queueCapacity commands are waiting there
+	 * @return false if worker full, command not run
+	 * @throws RejectedExecutionException if closed
+	 */
+	public boolean offer(String topic, final Runnable command) {
+		int i = index(topic);
+		final AtomicInteger count = waiting[i];
+		if(count.incrementAndGet() > queueCapacity){
+			count.decrementAndGet();
+			return false;
+		}
+		try {
+			workers[i].execute(new Runnable() {
+				@Override
+				public void run() {
+					count.decrementAndGet();
+					command.run();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			count.decrementAndGet();
+			throw e;
+		}
+		return true;
+	}
+
+	public int getThreadCount() {
+		return workers.length;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	private int index(String topic) {
+		return (hash(topic) & 0x7fffffff) % workers.length;
+	}
+
+	private static int hash(String topic) {
+		topic = topic.trim();
+		int h = 0;
+		for(int i=0;i<topic.length();i++){
+			h = 31*h + Character.toLowerCase(topic.charAt(i));
+		}
+		return h;
+	}
+
+	/**
+	 * Tasks submitted already are still executed, new ones rejected
+	 */
+	@Override
+	public void close() throws IOException {
+		for(ExecutorService worker : workers){
+			worker.shutdown();
+		}
+	}
+}
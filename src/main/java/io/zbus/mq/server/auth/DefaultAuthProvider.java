@@ -96,9 +96,11 @@ public class DefaultAuthProvider implements AuthProvider {
 	
 	protected boolean needCheckConsumeGroup(String cmd){
 		if(Protocol.PRODUCE.equals(cmd)) return false; //shortcut
+		if(Protocol.PRODUCE_BATCH.equals(cmd)) return false;
 		
 		if(Protocol.CONSUME.equals(cmd)) return true;
 		if(Protocol.UNCONSUME.equals(cmd)) return true;
+		if(Protocol.SUBSCRIBE.equals(cmd)) return true;
 		if(Protocol.DECLARE.equals(cmd)) return true;
 		if(Protocol.REMOVE.equals(cmd)) return true;
 		if(Protocol.EMPTY.equals(cmd)) return true;
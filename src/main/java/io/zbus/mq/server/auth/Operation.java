@@ -37,8 +37,10 @@ public enum Operation {
 	static {
 		table.put("admin", Operation.ADMIN);
 		table.put(Protocol.PRODUCE, Operation.PRODUCE); 
+		table.put(Protocol.PRODUCE_BATCH, Operation.PRODUCE); 
 		table.put(Protocol.CONSUME, Operation.CONSUME);
 		table.put(Protocol.UNCONSUME, Operation.UNCONSUME);
+		table.put(Protocol.SUBSCRIBE, Operation.CONSUME);
 		table.put(Protocol.ROUTE, Operation.ROUTE);
 		table.put(Protocol.QUERY, Operation.QUERY);
 		table.put(Protocol.DECLARE, Operation.DECLARE);
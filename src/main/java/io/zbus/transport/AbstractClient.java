@@ -204,9 +204,13 @@ public abstract class AbstractClient<REQ extends Id, RES extends Id> extends Att
 	}
 	 
 	public RES invokeSync(REQ req, long timeout) throws IOException, InterruptedException {
+		return invokeSync(req, timeout, false);
+	}
+	
+	public RES invokeSync(REQ req, long timeout, boolean keepId) throws IOException, InterruptedException {
 		Ticket<REQ, RES> ticket = null;
 		try { 
-			ticket = sync.createTicket(req, timeout);
+			ticket = sync.createTicket(req, timeout, null, keepId);
 			sendMessage(req);   
 			if (!ticket.await(timeout, TimeUnit.MILLISECONDS)) {
 				return null;
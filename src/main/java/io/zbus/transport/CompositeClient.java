@@ -19,6 +19,11 @@ public class CompositeClient<REQ extends Id, RES extends Id> implements Client<R
 		return support.invokeSync(req, timeout);
 	} 
 	
+	@Override
+	public RES invokeSync(REQ req, long timeout, boolean keepId) throws IOException, InterruptedException { 
+		return support.invokeSync(req, timeout, keepId);
+	} 
+	
 
 	@Override
 	public RES invokeSync(REQ req) throws IOException, InterruptedException { 
@@ -25,6 +25,18 @@ public interface Invoker<REQ extends Id, RES extends Id> {
 	 */
 	RES invokeSync(REQ req, long timeout) throws IOException, InterruptedException;
 	
+	/**
+	 * invoke synchronously with a timeout specified, keeping id set on the request if required
+	 * 
+	 * @param req request message/object
+	 * @param timeout waiting timeout in milliseconds
+	 * @param keepId true to keep id already set on the request(retry of it), fresh id otherwise
+	 * @return response message/object
+	 * @throws IOException if network failure happens
+	 * @throws InterruptedException if invocation is interrupted
+	 */
+	RES invokeSync(REQ req, long timeout, boolean keepId) throws IOException, InterruptedException;
+	
 	/**
 	 * invoke synchronously 
 	 * 
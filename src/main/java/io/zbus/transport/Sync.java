@@ -42,7 +42,15 @@ public class Sync<REQ extends Id, RES extends Id> {
 	} 
 	
 	public Ticket<REQ, RES> createTicket(REQ req, long timeout, ResultCallback<RES> callback) {
-		Ticket<REQ, RES> ticket = new Ticket<REQ, RES>(req, timeout);
+		return createTicket(req, timeout, callback, false);
+	}
+	
+	/**
+	 * @param keepId true to keep id already set on the request, retry of a request carries the id of the first attempt
+	 * @throws IllegalArgumentException if a request of the same id still waits for reply
+	 */
+	public Ticket<REQ, RES> createTicket(REQ req, long timeout, ResultCallback<RES> callback, boolean keepId) {
+		Ticket<REQ, RES> ticket = new Ticket<REQ, RES>(req, timeout, keepId);
 		ticket.setCallback(callback);
 
 		if (tickets.putIfAbsent(ticket.getId(), ticket) != null) {
@@ -86,10 +94,18 @@ public class Sync<REQ extends Id, RES extends Id> {
 		private final long startTime = System.currentTimeMillis();  
 		
 		public Ticket(REQ request, long timeout) {  
-			this.id = nextId();
-			if(request != null){
-				request.setId(id);
-			}  
+			this(request, timeout, false);
+		}  
+		
+		public Ticket(REQ request, long timeout, boolean keepId) {  
+			if(keepId && request != null && request.getId() != null){  
+				this.id = request.getId();
+			} else {
+				this.id = nextId();
+				if(request != null){
+					request.setId(id);
+				}
+			}
 			
 			this.request = request; 
 			this.timeout = timeout;
@@ -24,12 +24,13 @@ package io.zbus.transport.http;
  
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -70,6 +71,7 @@ public class Message implements Id {
 	protected byte[] body; 
 	
 	protected FileForm fileForm;  //Only populated when uploading files
+	protected FileBody fileBody;  //Body left in file, written to socket directly if possible
 	
 	public Message(){
 		setBody((byte[])null);
@@ -84,6 +86,7 @@ public class Message implements Id {
 		this.headers = other.headers;
 		this.body = other.body;
 		this.fileForm = other.fileForm;
+		this.fileBody = other.fileBody;
 	}
 	
 	public Message(String body){
@@ -108,6 +111,7 @@ public class Message implements Id {
 		res.headers = new ConcurrentHashMap<String, String>(msg.headers);
 		res.body = msg.body;
 		res.fileForm = msg.fileForm;
+		res.fileBody = msg.fileBody;
 		return res;
 	}
 	 
@@ -170,6 +174,9 @@ public class Message implements Id {
 	}
 	
 	public byte[] getBody() {
+		if(body == null && fileBody != null){ //loaded only if required
+			body = fileBody.read();
+		}
 		byte[] b = body;
 		String bodyOfHead = getHeader("body");
 		if(b == null && bodyOfHead != null){
@@ -185,6 +192,7 @@ public class Message implements Id {
 		}
 		this.setHeader(CONTENT_LENGTH, ""+len); 
 		this.body = body;
+		this.fileBody = null;
 		return this;
 	}
 	
@@ -223,6 +231,17 @@ public class Message implements Id {
 		return this;
 	}
 	
+	public FileBody getFileBody() {
+		return fileBody;
+	}
+	
+	public Message setFileBody(FileBody fileBody) {
+		this.setHeader(CONTENT_LENGTH, ""+fileBody.length); 
+		this.body = null;
+		this.fileBody = fileBody;
+		return this;
+	}
+	
 	public String getBodyString() {
 		if (this.getBody() == null) return null;
 		String encoding = this.getEncoding();
@@ -308,12 +327,42 @@ public class Message implements Id {
 		}
 	}
 	
+	/**
+	 * Decode head lines directly from bytes, no reader and char buffer allocated per message
+	 * @param data bytes of message
+	 * @param offset start of head
+	 * @param size length of head
+	 */
 	public void decodeHeaders(byte[] data, int offset, int size){
-		ByteArrayInputStream in = new ByteArrayInputStream(data, offset, size);
-		decodeHeaders(in);
-		if(in != null){
-			try { in.close(); } catch (IOException e) {}
-		} 
+		int end = offset + size;
+		int lineStart = offset;
+		boolean meta = true;
+		while(lineStart < end){
+			int lineEnd = lineStart;
+			while(lineEnd < end && data[lineEnd] != '\r' && data[lineEnd] != '\n') lineEnd++;
+			String line = new String(data, lineStart, lineEnd-lineStart);
+			lineStart = lineEnd;
+			if(lineStart < end && data[lineStart] == '\r') lineStart++;
+			if(lineStart < end && data[lineStart] == '\n') lineStart++;
+			
+			if(meta){
+				meta = false;
+				StringTokenizer st = new StringTokenizer(line);
+				String start = st.nextToken();
+				if(start.toUpperCase().startsWith("HTTP")){ //As response
+					this.status = Integer.valueOf(st.nextToken()); 
+				} else {
+					this.method = start;  
+					this.url = st.nextToken();
+				}
+				continue;
+			}
+			if(line.trim().length() == 0) break;
+			int p = line.indexOf(':');
+			if (p >= 0){ 
+				headers.put(line.substring(0, p).trim().toLowerCase(), line.substring(p + 1).trim());
+			} 
+		}
 	}
 	 
 	
@@ -412,6 +461,38 @@ public class Message implements Id {
 		return msg; 
 	}
 	
+	/**
+	 * Parse message with body left in file, data holds the head and maybe part of the body
+	 * 
+	 * @param data bytes starting with the message head
+	 * @param file file containing the whole message
+	 * @param position position of data in file
+	 * @return message with body in file region, null if head not complete in data
+	 */
+	public static Message parse(byte[] data, File file, long position){
+		int idx = findHeaderEnd(data);
+		if(idx == -1){
+			return null;
+		}
+		int headLen = idx + 1;
+		Message msg = new Message();
+		msg.decodeHeaders(data, 0, headLen);
+		String contentLength = msg.getHeader(Message.CONTENT_LENGTH);
+		if(contentLength == null){ //just head 
+			return msg;
+		}
+		
+		int bodyLen = Integer.valueOf(contentLength);   
+		if(data.length >= headLen + bodyLen) { //whole body read already
+			byte[] body = new byte[bodyLen];
+			System.arraycopy(data, headLen, body, 0, bodyLen);
+			msg.setBody(body); 
+		} else {
+			msg.setFileBody(new FileBody(file, position + headLen, bodyLen));
+		}
+		return msg; 
+	}
+	
 	private final static byte[] BLANK = " ".getBytes();
 	private final static byte[] PREFIX = "HTTP/1.1 ".getBytes();
 	private final static byte[] SUFFIX = " HTTP/1.1".getBytes(); 
@@ -463,6 +544,10 @@ public class Message implements Id {
 			out.write(CLCR);
 		}
 		out.write(CLCR);
+		byte[] body = this.body;
+		if(body == null && fileBody != null){
+			body = fileBody.read();
+		}
 		if(body != null){
 			out.write(body);
 		}
@@ -478,6 +563,35 @@ public class Message implements Id {
 		public byte[] data;
 	}
 	
+	public static class FileBody {
+		public final File file;
+		public final long position;
+		public final int length;
+		
+		public FileBody(File file, long position, int length) {
+			this.file = file;
+			this.position = position;
+			this.length = length;
+		}
+		
+		public byte[] read() {
+			byte[] data = new byte[length];
+			RandomAccessFile in = null;
+			try {
+				in = new RandomAccessFile(file, "r");
+				in.seek(position);
+				in.readFully(data);
+			} catch (IOException e) {
+				throw new IllegalStateException(e.getMessage(), e);
+			} finally {
+				if(in != null){
+					try { in.close(); } catch (IOException e) {}
+				}
+			}
+			return data;
+		}
+	}
+	
 	public static class FileForm {
 		public Map<String, String> attributes = new HashMap<String, String>();
 		public Map<String, List<FileUpload>> files = new HashMap<String, List<FileUpload>>();
@@ -9,9 +9,12 @@ import java.util.Map.Entry;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
 import io.netty.handler.codec.MessageToMessageCodec;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpMessage;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpContent;
@@ -44,6 +47,7 @@ import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
 import io.netty.handler.ssl.SslHandler;
 import io.zbus.kit.logging.Logger;
 import io.zbus.kit.logging.LoggerFactory;
+import io.zbus.transport.http.Message.FileBody;
 import io.zbus.transport.http.Message.FileForm; 
 
 
@@ -74,7 +78,24 @@ public class MessageCodec extends MessageToMessageCodec<Object, Message> {
 			return;
 		}
 		
-		//2) HTTP mode
+		//2) HTTP mode, body in file: head then file region(sendfile), SSL requires body copied through heap
+		FileBody fileBody = msg.getFileBody();
+		if(fileBody != null && ctx.pipeline().get(SslHandler.class) == null){
+			HttpMessage httpMsg = null;
+			if (msg.getStatus() == null) {
+				httpMsg = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.valueOf(msg.getMethod()), msg.getUrl());
+			} else {
+				httpMsg = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+						HttpResponseStatus.valueOf(Integer.valueOf(msg.getStatus())));
+			}
+			encodeHeaders(msg, httpMsg);
+			out.add(httpMsg);
+			out.add(new DefaultFileRegion(fileBody.file, fileBody.position, fileBody.length));
+			out.add(LastHttpContent.EMPTY_LAST_CONTENT);
+			return;
+		}
+		
+		//3) HTTP mode
 		FullHttpMessage httpMsg = null;
 		if (msg.getStatus() == null) {// as request
 			httpMsg = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.valueOf(msg.getMethod()),
@@ -83,6 +104,15 @@ public class MessageCodec extends MessageToMessageCodec<Object, Message> {
 			httpMsg = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
 					HttpResponseStatus.valueOf(Integer.valueOf(msg.getStatus())));
 		}
+		encodeHeaders(msg, httpMsg);
+		if (msg.getBody() != null) {
+			httpMsg.content().writeBytes(msg.getBody());
+		}
+
+		out.add(httpMsg);
+	}
+	
+	private void encodeHeaders(Message msg, HttpMessage httpMsg){
 		//content-type and encoding
 		String contentType = msg.getHeader(Message.CONTENT_TYPE); 
 		String encoding = msg.getHeader(Message.ENCODING);
@@ -103,11 +133,6 @@ public class MessageCodec extends MessageToMessageCodec<Object, Message> {
 			
 			httpMsg.headers().add(e.getKey().toLowerCase(), e.getValue());
 		}
-		if (msg.getBody() != null) {
-			httpMsg.content().writeBytes(msg.getBody());
-		}
-
-		out.add(httpMsg);
 	}
 
 	private Message decodeHeaders(HttpMessage httpMsg){
@@ -63,6 +63,7 @@ function showServerTable(serverInfoTable, filterServerList, trackerAddress){
             	</td>\
 				<td>" + serverInfo.serverVersion + "</td>\
 				<td>" + serverInfo.infoVersion + "</td>\
+				<td>" + serverInfo.startupTime + "</td>\
 				<td>\
 	                <span class='badge'>" + hashSize(serverInfo.topicTable) + "</span>" + topicList + "\
 	           	</td>\
@@ -0,0 +1,57 @@
+package io.zbus.performance;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.zbus.kit.ConfigKit;
+import io.zbus.mq.Broker;
+import io.zbus.mq.Consumer;
+import io.zbus.mq.ConsumerConfig;
+import io.zbus.mq.Message;
+import io.zbus.mq.MessageHandler;
+import io.zbus.mq.MqClient;
+
+/**
+ *
+ * Consume rate of a topic filled by ProducerPerf/ProducerBatchPerf, -window messages delivered per pull,
+ * or pushed with -credit messages in flight if given.
+ */
+public class ConsumerPerf {
+	public static void main(String[] args) throws Exception{
+		final String serverAddress = ConfigKit.option(args, "-b", "127.0.0.1:15555");
+		final int window = ConfigKit.option(args, "-window", 100);
+		final int credit = ConfigKit.option(args, "-credit", 0);
+		final int logCount = ConfigKit.option(args, "-log", 100000);
+		final boolean ack = ConfigKit.option(args, "-ack", false);
+		final String topic = ConfigKit.option(args, "-topic", "MyTopic");
+		final String group = ConfigKit.option(args, "-group", "ConsumerPerf");
+
+		Broker broker = new Broker(serverAddress);
+
+		final AtomicLong counter = new AtomicLong();
+		final long start = System.currentTimeMillis();
+		ConsumerConfig config = new ConsumerConfig(broker);
+		config.setTopic(topic);
+		config.setConsumeGroup(group);
+		config.setConsumeWindow(window);
+		if(credit > 0){
+			config.setCredit(credit);
+		}
+		config.setMessageHandler(new MessageHandler() {
+			@Override
+			public void handle(Message msg, MqClient client) throws IOException {
+				if(ack){
+					client.ack(msg);
+				}
+				long count = counter.incrementAndGet();
+				if(count % logCount == 0){
+					long time = System.currentTimeMillis() - start;
+					System.out.format("consumed: %d, QPS: %.0f\n", count, count*1000.0/Math.max(time, 1));
+				}
+			}
+		});
+
+		Consumer consumer = new Consumer(config);
+		consumer.start();
+	}
+}
@@ -0,0 +1,49 @@
+package io.zbus.performance;
+
+import io.zbus.mq.ConsumeGroup;
+import io.zbus.mq.MemoryQueue;
+import io.zbus.mq.Message;
+import io.zbus.transport.ResultCallback;
+
+/**
+ * Produce and consume cost of a memory topic with a standing backlog, per group count.
+ * Every group should read all messages(about 1 per message per group), cost linear in reads only.
+ */
+public class MemoryQueueBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final int count = 2000000;
+		ResultCallback<Boolean> callback = new ResultCallback<Boolean>() {
+			@Override
+			public void onReturn(Boolean result) {
+			}
+		};
+		byte[] body = new byte[100];
+		for(int round=0;round<2;round++){ //first round warm up
+			for(int groupCount : new int[]{1, 4, 16}){
+				MemoryQueue q = new MemoryQueue("MemoryQueueBenchmark");
+				String[] groups = new String[groupCount];
+				for(int i=0;i<groupCount;i++){
+					groups[i] = "Group" + i;
+					q.declareGroup(new ConsumeGroup(groups[i]));
+				}
+				long consumed = 0;
+				long start = System.nanoTime();
+				for(int i=0;i<count;i++){
+					Message msg = new Message();
+					msg.setBody(body);
+					q.produce(msg, callback);
+					if(i < 1000) continue; //keep a backlog
+					for(String group : groups){
+						if(q.consume(group) != null) consumed++;
+					}
+					q.messageDepth();
+				}
+				long time = System.nanoTime() - start;
+				if(round == 0) continue;
+				System.out.format("groups=%-3d produced=%d consumed=%d(%.2f per message) %.0f ns/message\n",
+						groupCount, count, consumed, consumed*1.0/count, time*1.0/count);
+			}
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package io.zbus.performance;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.zbus.kit.ConfigKit;
+import io.zbus.mq.Broker;
+import io.zbus.mq.BrokerConfig;
+import io.zbus.mq.Message;
+import io.zbus.mq.Producer;
+import io.zbus.mq.ProducerConfig;
+
+/**
+ *
+ * Batch produce, each task publishes one batch, messages per second = QPS * batch size.
+ */
+public class ProducerBatchPerf {
+	public static void main(String[] args) throws Exception{
+		final String serverAddress = ConfigKit.option(args, "-b", "127.0.0.1:15555");
+		final int threadCount = ConfigKit.option(args, "-c", 4);
+		final int loopCount = ConfigKit.option(args, "-loop", 10000);
+		final int logCount = ConfigKit.option(args, "-log", 1000);
+		final int batchSize = ConfigKit.option(args, "-batch", 100);
+		final String topic = ConfigKit.option(args, "-topic", "MyTopic");
+
+		BrokerConfig brokerConfig = new BrokerConfig();
+		brokerConfig.setTrackerList(serverAddress);
+		brokerConfig.setClientPoolSize(threadCount);
+		Broker broker = new Broker(brokerConfig);
+
+		final ProducerConfig config = new ProducerConfig();
+		config.setBroker(broker);
+
+		Perf perf = new Perf(){
+
+			@Override
+			public TaskInThread buildTaskInThread() {
+				return new TaskInThread(){
+					Producer producer = new Producer(config);
+
+					@Override
+					public void initTask() throws Exception {
+						producer.declareTopic(topic);
+					}
+
+					@Override
+					public void doTask() throws Exception {
+						List<Message> msgs = new ArrayList<Message>(batchSize);
+						for(int i=0;i<batchSize;i++){
+							Message msg = new Message();
+							msg.setBody("hello world");
+							msgs.add(msg);
+						}
+						producer.publishBatch(topic, msgs);
+					}
+				};
+			}
+		};
+
+		perf.loopCount = loopCount;
+		perf.threadCount = threadCount;
+		perf.logInterval = logCount;
+		perf.run();
+
+		perf.close();
+		broker.close();
+	}
+}
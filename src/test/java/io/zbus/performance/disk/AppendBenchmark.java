@@ -0,0 +1,74 @@
+package io.zbus.performance.disk;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.zbus.kit.FileKit;
+import io.zbus.mq.DiskQueue;
+import io.zbus.mq.Message;
+import io.zbus.mq.disk.DiskConfig;
+import io.zbus.transport.ResultCallback;
+
+/**
+ * Concurrent producers of one topic, written in producer threads(appendRing=0) vs drained by the append ring writer
+ */
+public class AppendBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final int count = 2000000;
+		for(int threadCount : new int[]{1, 4, 16}){
+			for(int ringSize : new int[]{0, 8192}){
+				run(threadCount, ringSize, count);
+			}
+		}
+	}
+
+	static void run(int threadCount, int ringSize, final int count) throws Exception {
+		File dir = new File("/tmp/AppendBenchmark");
+		FileKit.deleteFile(dir);
+		DiskConfig config = new DiskConfig();
+		config.setAppendRing(ringSize);
+		final DiskQueue q = new DiskQueue(dir, config);
+
+		final AtomicLong acked = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(1);
+		final ResultCallback<Boolean> callback = new ResultCallback<Boolean>() {
+			@Override
+			public void onReturn(Boolean result) {
+				if(acked.incrementAndGet() == count){
+					done.countDown();
+				}
+			}
+		};
+		final int perThread = count / threadCount;
+		final byte[] body = new byte[100];
+		Thread[] threads = new Thread[threadCount];
+		long start = System.currentTimeMillis();
+		for(int t=0;t<threadCount;t++){
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try{
+						for(int i=0;i<perThread;i++){
+							Message msg = new Message();
+							msg.setBody(body);
+							q.produce(msg, callback);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for(Thread thread : threads){
+			thread.join();
+		}
+		done.await();
+		long time = System.currentTimeMillis() - start;
+		System.out.format("threads=%d appendRing=%d: %d in %d ms, %.0f msg/s\n",
+				threadCount, ringSize, count, time, count*1000.0/Math.max(time, 1));
+		q.destroy();
+	}
+}
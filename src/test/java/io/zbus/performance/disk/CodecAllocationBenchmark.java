@@ -0,0 +1,84 @@
+package io.zbus.performance.disk;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import io.zbus.kit.FileKit;
+import io.zbus.mq.disk.BlockCache;
+import io.zbus.mq.disk.DiskConfig;
+import io.zbus.mq.disk.DiskMessage;
+import io.zbus.mq.disk.Index;
+import io.zbus.mq.disk.QueueReader;
+import io.zbus.mq.disk.QueueWriter;
+
+/**
+ * Heap bytes allocated per message by record encode, full read and filtered scan, both record formats.
+ * Measured by the allocation counter of the current thread(HotSpot), after a warm up round.
+ */
+public class CodecAllocationBenchmark {
+	static final int Count = 500000;
+	static final int BatchSize = 100;
+
+	public static void main(String[] args) throws Exception {
+		BlockCache.shared().setCapacity(0); //read through the reused file buffer, chunks cached are data not codec garbage
+		for(int format : new int[]{DiskMessage.FORMAT_V1, DiskMessage.FORMAT_V2}){
+			run(format, false); //warm up
+			run(format, true);
+		}
+	}
+
+	static void run(int format, boolean print) throws Exception {
+		File dir = new File("/tmp/CodecAllocationBenchmark");
+		FileKit.deleteFile(dir);
+		DiskConfig config = new DiskConfig();
+		config.setRecordFormat(format);
+		config.setTagIndexEnabled(false); //every record scanned by the filter
+		Index index = new Index(dir, config);
+		QueueWriter writer = new QueueWriter(index);
+
+		DiskMessage[] batch = new DiskMessage[BatchSize];
+		for(int i=0;i<BatchSize;i++){
+			batch[i] = new DiskMessage();
+			batch[i].id = "9c3b2a1e-5d4f-4e8a-b7c6-0123456789ab";
+			batch[i].tag = "order.created.eu";
+			batch[i].body = new byte[100];
+		}
+		long start = allocated();
+		long time = System.currentTimeMillis();
+		for(int i=0;i<Count/BatchSize;i++){
+			writer.write(batch);
+		}
+		report(print, format, "write", start, time);
+
+		QueueReader reader = new QueueReader(index, "all");
+		start = allocated();
+		time = System.currentTimeMillis();
+		while(reader.read() != null);
+		report(print, format, "read", start, time);
+
+		QueueReader filtered = new QueueReader(index, "filtered");
+		filtered.setFilter("order.cancelled.*"); //matches none, every record rejected
+		start = allocated();
+		time = System.currentTimeMillis();
+		filtered.read();
+		report(print, format, "filter scan", start, time);
+
+		reader.close();
+		filtered.close();
+		writer.close();
+		index.close();
+	}
+
+	static void report(boolean print, int format, String name, long startBytes, long startTime){
+		long bytes = allocated() - startBytes;
+		long time = System.currentTimeMillis() - startTime;
+		if(!print) return;
+		System.out.format("format %d %-12s %8.1f bytes/msg %10.0f msg/s\n",
+				format, name, bytes*1.0/Count, Count*1000.0/Math.max(time, 1));
+	}
+
+	static long allocated(){
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
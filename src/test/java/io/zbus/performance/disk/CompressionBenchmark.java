@@ -0,0 +1,88 @@
+package io.zbus.performance.disk;
+
+import java.io.File;
+
+import io.zbus.kit.FileKit;
+import io.zbus.mq.disk.DiskConfig;
+import io.zbus.mq.disk.DiskMessage;
+import io.zbus.mq.disk.Index;
+import io.zbus.mq.disk.QueueReader;
+import io.zbus.mq.disk.QueueWriter;
+
+/**
+ * Write/read throughput and disk footprint of block compression, JSON bodies
+ */
+public class CompressionBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int messageCount = 200000;
+		String[] codecs = {"none", "deflate"};
+		int[] batchSizes = {1, 32};
+
+		for(int batchSize : batchSizes){
+			for(String codec : codecs){
+				run(codec, batchSize, messageCount);
+			}
+		}
+	}
+
+	private static void run(String codec, int batchSize, int messageCount) throws Exception{
+		File dir = new File("/tmp/CompressionBenchmark");
+		FileKit.deleteFile(dir);
+
+		DiskConfig config = new DiskConfig();
+		config.setCompression(codec);
+		Index index = new Index(dir, config);
+
+		QueueWriter writer = new QueueWriter(index);
+		long rawBytes = 0;
+		long start = System.currentTimeMillis();
+		DiskMessage[] batch = new DiskMessage[batchSize];
+		for(int i=0;i<messageCount;i+=batchSize){
+			for(int j=0;j<batchSize;j++){
+				DiskMessage data = new DiskMessage();
+				data.id = "" + (i+j);
+				data.body = jsonBody(i+j);
+				rawBytes += data.size();
+				batch[j] = data;
+			}
+			writer.write(batch);
+		}
+		writer.close();
+		long writeTime = System.currentTimeMillis() - start;
+
+		QueueReader reader = new QueueReader(index, "Reader");
+		start = System.currentTimeMillis();
+		int count = 0;
+		while(reader.read() != null){
+			count++;
+		}
+		long readTime = System.currentTimeMillis() - start;
+		reader.close();
+		index.close();
+
+		long diskBytes = 0;
+		File[] files = new File(dir, "data").listFiles();
+		for(File file : files){
+			if(file.getName().endsWith(Index.BlockSuffix)){
+				diskBytes += file.length();
+			}
+		}
+
+		System.out.format("%-8s batch=%-3d write: %.0f msg/s, read(%d): %.0f msg/s, raw=%.2fM, disk=%.2fM, ratio=%.2f\n",
+				codec, batchSize, messageCount*1000.0/Math.max(writeTime, 1), count, count*1000.0/Math.max(readTime, 1),
+				rawBytes/1024.0/1024, diskBytes/1024.0/1024, rawBytes*1.0/diskBytes);
+	}
+
+	private static byte[] jsonBody(int i){
+		StringBuilder sb = new StringBuilder();
+		sb.append("POST /order HTTP/1.1\r\ncontent-type: application/json\r\n\r\n");
+		sb.append("{\"orderId\":").append(i).append(",\"user\":\"user").append(i%1000).append("\",\"items\":[");
+		for(int k=0; k<8; k++){
+			sb.append("{\"sku\":\"SKU-").append((i+k)%5000).append("\",\"quantity\":").append(k+1)
+				.append(",\"price\":").append(((i*k)%10000)/100.0).append("},");
+		}
+		sb.append("],\"status\":\"CREATED\",\"timestamp\":").append(System.currentTimeMillis()).append("}");
+		return sb.toString().getBytes();
+	}
+}
@@ -0,0 +1,52 @@
+package io.zbus.performance.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.zbus.kit.FileKit;
+import io.zbus.mq.disk.DiskMessage;
+import io.zbus.mq.disk.QueueDelay;
+
+/**
+ * Millions of delayed messages pending, heap should stay flat and release should keep up
+ */
+public class DelayBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int count = 2000000;
+		int slotCount = 600; //delays spread over 10 minutes of 1s slots
+
+		File dir = new File("/tmp/DelayBenchmark");
+		FileKit.deleteFile(dir);
+		final AtomicLong released = new AtomicLong();
+		QueueDelay delay = new QueueDelay(dir, 1000, new QueueDelay.ReleaseHandler() {
+			@Override
+			public void onRelease(DiskMessage[] data) throws IOException {
+				released.addAndGet(data.length);
+			}
+		});
+
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+
+		long start = System.currentTimeMillis();
+		DiskMessage data = new DiskMessage();
+		data.body = new byte[100];
+		for(int i=0;i<count;i++){
+			delay.add(data, start + 60000 + (i%slotCount)*1000L);
+		}
+		long time = System.currentTimeMillis() - start;
+		System.gc();
+		long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+		System.out.format("%d delayed in %d ms, %.0f msg/s, %d slots, heap delta %d KB\n",
+				count, time, count*1000.0/Math.max(time, 1), delay.slotCount(), (heapAfter-heapBefore)/1024);
+
+		start = System.currentTimeMillis();
+		delay.release(Long.MAX_VALUE); //all due
+		time = System.currentTimeMillis() - start;
+		System.out.format("%d released in %d ms, %.0f msg/s\n", released.get(), time, released.get()*1000.0/Math.max(time, 1));
+		delay.delete();
+	}
+}
@@ -0,0 +1,71 @@
+package io.zbus.performance.disk;
+
+import java.io.File;
+
+import io.zbus.kit.FileKit;
+import io.zbus.mq.disk.BlockCache;
+import io.zbus.mq.disk.DiskMessage;
+import io.zbus.mq.disk.Index;
+import io.zbus.mq.disk.QueueReader;
+import io.zbus.mq.disk.QueueWriter;
+
+/**
+ * Many consume groups reading the same topic, with and without the shared block cache
+ */
+public class FanOutReadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int messageCount = 200000;
+		int groupCount = 20;
+
+		File dir = new File("/tmp/FanOutReadBenchmark");
+		FileKit.deleteFile(dir);
+		Index index = new Index(dir);
+		QueueWriter writer = new QueueWriter(index);
+		for(int i=0;i<messageCount;i++){
+			DiskMessage data = new DiskMessage();
+			data.id = "" + i;
+			data.body = new byte[256];
+			writer.write(data);
+		}
+		writer.close();
+
+		long capacity = BlockCache.shared().getCapacity();
+		for(int round=0; round<3; round++){ //first round warms up
+			BlockCache.shared().setCapacity(0);
+			run(index, groupCount, "no-cache");
+			BlockCache.shared().setCapacity(capacity);
+			run(index, groupCount, "cache");
+			System.out.println(BlockCache.shared());
+		}
+		index.close();
+	}
+
+	private static void run(final Index index, int groupCount, final String name) throws Exception{
+		Thread[] threads = new Thread[groupCount];
+		final long[] counts = new long[groupCount];
+		for(int i=0;i<groupCount;i++){
+			final int g = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						QueueReader reader = new QueueReader(index, name + "-" + System.nanoTime() + "-" + g);
+						while(reader.read() != null){
+							counts[g]++;
+						}
+						reader.close();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		long start = System.currentTimeMillis();
+		for(Thread t : threads) t.start();
+		for(Thread t : threads) t.join();
+		long time = System.currentTimeMillis() - start;
+		long total = 0;
+		for(long c : counts) total += c;
+		System.out.format("%-8s groups=%d, read %d in %d ms, %.0f msg/s\n", name, groupCount, total, time, total*1000.0/Math.max(time, 1));
+	}
+}
@@ -0,0 +1,57 @@
+package io.zbus.performance.disk;
+
+import java.io.File;
+
+import io.zbus.mq.disk.DiskConfig;
+import io.zbus.mq.disk.DiskMessage;
+import io.zbus.mq.disk.Index;
+import io.zbus.mq.disk.QueueReader;
+import io.zbus.mq.disk.QueueWriter;
+
+/**
+ * Filtered read with rare matching tags, tag bloom index disabled vs enabled
+ */
+public class FilterReadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		File dir = new File("/tmp/FilterReadBenchmark");
+		int messageCount = 1000000;
+		int matchEvery = 10000; //1 in 10000 messages matches the filter
+
+		DiskConfig config = new DiskConfig();
+		Index index = new Index(dir, config);
+		if(index.getMessageCount() < messageCount){
+			QueueWriter writer = new QueueWriter(index);
+			byte[] body = new byte[100];
+			for(int i=0;i<messageCount;i++){
+				DiskMessage data = new DiskMessage();
+				data.id = "" + i;
+				data.tag = (i%matchEvery == 0)? "order.rare" : "order.common" + (i%16);
+				data.body = body;
+				writer.write(data);
+			}
+			writer.close();
+		}
+
+		for(int round=0; round<3; round++){
+			config.setTagIndexEnabled(false);
+			run(index, "NoTagIndex" + round);
+			config.setTagIndexEnabled(true);
+			run(index, "TagIndex" + round);
+		}
+		index.close();
+	}
+
+	private static void run(Index index, String name) throws Exception{
+		QueueReader qr = new QueueReader(index, name);
+		qr.setFilter("order.rare");
+		long start = System.currentTimeMillis();
+		int matched = 0;
+		while(qr.read() != null){
+			matched++;
+		}
+		long end = System.currentTimeMillis();
+		System.out.format("%s: matched=%d, time=%dms\n", name, matched, end-start);
+		qr.close();
+	}
+}
@@ -0,0 +1,39 @@
+package io.zbus.performance.disk;
+
+import java.io.File;
+
+import io.zbus.kit.FileKit;
+import io.zbus.mq.ConsumeGroup;
+import io.zbus.mq.DiskQueue;
+import io.zbus.mq.Message;
+import io.zbus.mq.disk.DiskConfig;
+
+/**
+ * Produce rate of a topic with growing number of consume groups none consuming, should stay flat
+ */
+public class IdleGroupBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int count = 200000;
+		for(int groupCount : new int[]{1, 100, 1000, 5000}){
+			File dir = new File("/tmp/IdleGroupBenchmark");
+			FileKit.deleteFile(dir);
+			DiskConfig config = new DiskConfig();
+			config.setAppendRing(0); //dispatched in the producer thread
+			DiskQueue q = new DiskQueue(dir, config);
+			for(int i=0;i<groupCount;i++){
+				q.declareGroup(new ConsumeGroup("Group" + i));
+			}
+			byte[] body = new byte[100];
+			long start = System.currentTimeMillis();
+			for(int i=0;i<count;i++){
+				Message msg = new Message();
+				msg.setBody(body);
+				q.produce(msg);
+			}
+			long time = System.currentTimeMillis() - start;
+			System.out.format("groups=%-5d %d produced in %d ms, %.0f msg/s\n", groupCount, count, time, count*1000.0/Math.max(time, 1));
+			q.destroy();
+		}
+	}
+}
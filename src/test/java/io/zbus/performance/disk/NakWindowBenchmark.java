@@ -0,0 +1,50 @@
+package io.zbus.performance.disk;
+
+import java.io.File;
+
+import io.zbus.kit.FileKit;
+import io.zbus.mq.disk.DiskMessage;
+import io.zbus.mq.disk.Index;
+import io.zbus.mq.disk.QueueNak;
+import io.zbus.mq.disk.QueueReader;
+import io.zbus.mq.disk.QueueWriter;
+
+/**
+ * Deliver/ack throughput of an ack-enabled group with growing in-flight windows, should stay flat
+ */
+public class NakWindowBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int[] windows = {1000, 10000, 100000, 500000};
+		int opCount = 1000000;
+
+		File dir = new File("/tmp/NakWindowBenchmark");
+		FileKit.deleteFile(dir);
+		Index index = new Index(dir);
+		QueueWriter writer = new QueueWriter(index);
+		DiskMessage data = new DiskMessage();
+		data.body = new byte[16];
+		writer.write(data);
+		writer.close();
+
+		for(int window : windows){
+			QueueReader reader = new QueueReader(index, "Group" + window);
+			QueueNak nak = new QueueNak(reader);
+			nak.setWindow(window);
+			long offset = 0;
+			for(; offset<window; offset++){ //in-flight messages
+				nak.addNak(offset, null);
+			}
+			long start = System.currentTimeMillis();
+			for(int i=0;i<opCount;i++){ //ack the oldest, deliver the next
+				nak.removeNak(offset - window);
+				nak.addNak(offset++, null);
+			}
+			long time = System.currentTimeMillis() - start;
+			System.out.format("window=%-7d %d ack+deliver in %d ms, %.0f op/s\n", window, opCount, time, opCount*1000.0/Math.max(time, 1));
+			nak.delete();
+			reader.delete();
+		}
+		index.close();
+	}
+}
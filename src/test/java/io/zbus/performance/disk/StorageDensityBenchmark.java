@@ -0,0 +1,70 @@
+package io.zbus.performance.disk;
+
+import java.io.File;
+
+import io.zbus.kit.FileKit;
+import io.zbus.mq.disk.DiskConfig;
+import io.zbus.mq.disk.DiskMessage;
+import io.zbus.mq.disk.Index;
+import io.zbus.mq.disk.QueueReader;
+import io.zbus.mq.disk.QueueWriter;
+
+/**
+ * Disk bytes per message and throughput of record format 1(fixed header) and 2(varint), small bodies
+ */
+public class StorageDensityBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int messageCount = 500000;
+		int[] bodySizes = {16, 100, 1024};
+		int[] formats = {DiskMessage.FORMAT_V1, DiskMessage.FORMAT_V2};
+
+		for(int bodySize : bodySizes){
+			for(int format : formats){
+				run(format, bodySize, messageCount);
+			}
+		}
+	}
+
+	private static void run(int format, int bodySize, int messageCount) throws Exception{
+		File dir = new File("/tmp/StorageDensityBenchmark");
+		FileKit.deleteFile(dir);
+
+		DiskConfig config = new DiskConfig();
+		config.setRecordFormat(format);
+		Index index = new Index(dir, config);
+
+		QueueWriter writer = new QueueWriter(index);
+		long start = System.currentTimeMillis();
+		for(int i=0;i<messageCount;i++){
+			DiskMessage data = new DiskMessage();
+			data.id = "9f2c1d4e-" + i;
+			data.tag = "sensor.temperature";
+			data.body = new byte[bodySize];
+			writer.write(data);
+		}
+		writer.close();
+		long writeTime = System.currentTimeMillis() - start;
+
+		QueueReader reader = new QueueReader(index, "Reader");
+		start = System.currentTimeMillis();
+		int count = 0;
+		while(reader.read() != null){
+			count++;
+		}
+		long readTime = System.currentTimeMillis() - start;
+		reader.close();
+		index.close();
+
+		long diskBytes = 0;
+		for(File file : new File(dir, "data").listFiles()){
+			if(file.getName().endsWith(Index.BlockSuffix)){
+				diskBytes += file.length();
+			}
+		}
+
+		System.out.format("format=%d body=%-5d %.1f bytes/msg, overhead=%.1f, write: %.0f msg/s, read(%d): %.0f msg/s\n",
+				format, bodySize, diskBytes*1.0/messageCount, diskBytes*1.0/messageCount - bodySize,
+				messageCount*1000.0/Math.max(writeTime, 1), count, count*1000.0/Math.max(readTime, 1));
+	}
+}
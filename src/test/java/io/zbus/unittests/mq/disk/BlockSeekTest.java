@@ -0,0 +1,67 @@
+package io.zbus.unittests.mq.disk;
+
+import java.io.File;
+
+import io.zbus.kit.FileKit;
+import io.zbus.mq.disk.DiskConfig;
+import io.zbus.mq.disk.DiskMessage;
+import io.zbus.mq.disk.Index;
+import io.zbus.mq.disk.QueueReader;
+import io.zbus.mq.disk.QueueWriter;
+
+/**
+ * Seeks by offset and by time through the sparse block index(.bdx), positions checked after reopen
+ */
+public class BlockSeekTest {
+	
+	public static void main(String[] args) throws Exception { 
+		File dir = new File("/tmp/BlockSeekTest");
+		FileKit.deleteFile(dir);
+		DiskConfig config = new DiskConfig();
+		config.setIndexInterval(16);
+		
+		int batchCount = 5, batchSize = 500;
+		long[] batchTime = new long[batchCount];
+		Index index = new Index(dir, config);
+		QueueWriter writer = new QueueWriter(index);
+		for(int b=0; b<batchCount; b++){
+			Thread.sleep(20);
+			batchTime[b] = System.currentTimeMillis();
+			Thread.sleep(20);
+			for(int i=0; i<batchSize; i++){
+				writer.write(IndexUpgradeTest.message(b*batchSize + i));
+			}
+		}
+		long[] offsets = new long[batchCount*batchSize];
+		QueueReader reader = new QueueReader(index, "Scan");
+		for(int i=0; i<offsets.length; i++){
+			offsets[i] = reader.read().offset;
+		}
+		reader.close();
+		writer.close();
+		index.close();
+		
+		index = new Index(dir, config);
+		reader = new QueueReader(index, "MyGroup");
+		for(int b=batchCount-1; b>=0; b--){
+			check(reader.seek(batchTime[b]), "seek time of batch " + b);
+			DiskMessage data = reader.read();
+			check(data.id.equals("" + b*batchSize), "batch " + b + " starts at " + data.id);
+		}
+		for(int i=offsets.length-1; i>=0; i-=37){
+			check(reader.seek(offsets[i], "" + i), "seek offset of " + i);
+			check(reader.getMessageCount() == offsets.length-i, "messageCount after seek to " + i + ": " + reader.getMessageCount());
+			DiskMessage data = reader.read();
+			check(data.id.equals("" + i) && data.messageNumber == i, "read after seek to " + i + ": " + data.id);
+		}
+		check(!reader.seek(offsets[10], "11"), "seek with id not matched");
+		reader.close();
+		index.close();
+		FileKit.deleteFile(dir);
+		System.out.println("BlockSeekTest OK");
+	}
+	
+	static void check(boolean ok, String message){
+		if(!ok) throw new IllegalStateException(message);
+	}
+}
@@ -0,0 +1,69 @@
+package io.zbus.unittests.mq.disk;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import io.zbus.kit.FileKit;
+import io.zbus.mq.disk.DiskMessage;
+import io.zbus.mq.disk.Index;
+import io.zbus.mq.disk.QueueReader;
+import io.zbus.mq.disk.QueueWriter;
+
+/**
+ * Index file of version 1 upgraded in place on open, messages written before and after read in order
+ */
+public class IndexUpgradeTest {
+	
+	public static void main(String[] args) throws Exception { 
+		File dir = new File("/tmp/IndexUpgradeTest");
+		FileKit.deleteFile(dir);
+		
+		Index index = new Index(dir);
+		QueueWriter writer = new QueueWriter(index);
+		for(int i=0; i<100; i++){
+			writer.write(message(i));
+		}
+		writer.close();
+		index.close();
+		
+		File indexFile = new File(dir, dir.getName() + Index.IndexSuffix);
+		RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+		file.writeInt(Index.IndexVersion1); //as written by version 1
+		file.close();
+		
+		index = new Index(dir);
+		file = new RandomAccessFile(indexFile, "r");
+		int version = file.readInt();
+		file.close();
+		check(version == Index.IndexVersion, "version not upgraded: " + version);
+		check(index.getMessageCount() == 100, "messageCount=" + index.getMessageCount());
+		
+		writer = new QueueWriter(index);
+		for(int i=100; i<200; i++){
+			writer.write(message(i));
+		}
+		QueueReader reader = new QueueReader(index, "MyGroup");
+		for(int i=0; i<200; i++){
+			DiskMessage data = reader.read();
+			check(data != null && data.id.equals("" + i), "read " + i + ": " + (data == null? null : data.id));
+		}
+		check(reader.read() == null, "read beyond end");
+		
+		reader.close();
+		writer.close();
+		index.close();
+		FileKit.deleteFile(dir);
+		System.out.println("IndexUpgradeTest OK");
+	}
+	
+	static DiskMessage message(int i){
+		DiskMessage message = new DiskMessage();
+		message.id = "" + i;
+		message.body = ("hello" + i).getBytes();
+		return message;
+	}
+	
+	static void check(boolean ok, String message){
+		if(!ok) throw new IllegalStateException(message);
+	}
+}
@@ -0,0 +1,80 @@
+package io.zbus.unittests.mq.disk;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import io.zbus.kit.FileKit;
+import io.zbus.mq.disk.DiskMessage;
+import io.zbus.mq.disk.Index;
+import io.zbus.mq.disk.QueueReader;
+import io.zbus.mq.disk.QueueWriter;
+
+/**
+ * Blocks numbered across BlockMaxCount reuse the offset table slots in ring, read in order before and after reopen.
+ * Writes 3 blocks(about 200MB) under /tmp, removed after.
+ */
+public class IndexWrapTest {
+	private static final int BodySize = 1024*1024;
+	
+	public static void main(String[] args) throws Exception { 
+		File dir = new File("/tmp/IndexWrapTest");
+		FileKit.deleteFile(dir);
+		
+		Index index = new Index(dir);
+		index.close();
+		long blockStart = Index.BlockMaxCount - 2; //as if earlier blocks removed by retention
+		RandomAccessFile file = new RandomAccessFile(new File(dir, dir.getName() + Index.IndexSuffix), "rw");
+		file.seek(8); //blockStart of header
+		file.writeLong(blockStart);
+		file.close();
+		
+		index = new Index(dir);
+		QueueWriter writer = new QueueWriter(index);
+		int count = 0;
+		while(index.currentBlockNumber() < Index.BlockMaxCount){ //slot 0 taken by the 3rd block
+			writer.write(message(count++));
+		}
+		for(int i=0; i<10; i++){
+			writer.write(message(count++));
+		}
+		check(index.getBlockStart() == blockStart, "blockStart=" + index.getBlockStart());
+		check(index.getBlockCount() == 3, "blockCount=" + index.getBlockCount());
+		check(index.readOffset(Index.BlockMaxCount).baseOffset == 
+				index.readOffset(Index.BlockMaxCount-1).baseOffset + index.readOffset(Index.BlockMaxCount-1).endOffset, "slot 0 baseOffset");
+		
+		readAll(index, "G1", count);
+		writer.close();
+		index.close();
+		
+		index = new Index(dir);
+		check(index.currentBlockNumber() == Index.BlockMaxCount, "currentBlockNumber=" + index.currentBlockNumber());
+		check(index.getMessageCount() == count, "messageCount=" + index.getMessageCount());
+		readAll(index, "G2", count);
+		index.close();
+		FileKit.deleteFile(dir);
+		System.out.println("IndexWrapTest OK");
+	}
+	
+	static DiskMessage message(int i){
+		DiskMessage message = IndexUpgradeTest.message(i);
+		message.body = new byte[BodySize];
+		message.body[0] = (byte)i;
+		return message;
+	}
+	
+	static void readAll(Index index, String group, int count) throws Exception{
+		QueueReader reader = new QueueReader(index, group);
+		reader.setBodyLimit(Integer.MAX_VALUE);
+		for(int i=0; i<count; i++){
+			DiskMessage data = reader.read();
+			check(data != null && data.id.equals("" + i) && data.body[0] == (byte)i, group + " read " + i + ": " + (data == null? null : data.id));
+		}
+		check(reader.read() == null, group + " read beyond end");
+		check(reader.getBlockNumber() == Index.BlockMaxCount, group + " blockNumber=" + reader.getBlockNumber());
+		reader.close();
+	}
+	
+	static void check(boolean ok, String message){
+		if(!ok) throw new IllegalStateException(message);
+	}
+}
@@ -0,0 +1,87 @@
+package io.zbus.unittests.mq.disk;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import io.zbus.kit.FileKit;
+import io.zbus.mq.disk.Index;
+import io.zbus.mq.disk.QueueNak;
+import io.zbus.mq.disk.QueueNak.NakRecord;
+import io.zbus.mq.disk.QueueNak.TimeoutMessage;
+import io.zbus.mq.disk.QueueReader;
+import io.zbus.mq.disk.QueueWriter;
+
+/**
+ * NAK records and settings survive close/reopen, reloaded records time out and are redelivered with their messages
+ */
+public class QueueNakReloadTest {
+	
+	public static void main(String[] args) throws Exception { 
+		File dir = new File("/tmp/QueueNakReloadTest");
+		FileKit.deleteFile(dir);
+		int count = 500;
+		
+		Index index = new Index(dir);
+		QueueWriter writer = new QueueWriter(index);
+		for(int i=0; i<count; i++){
+			writer.write(IndexUpgradeTest.message(i));
+		}
+		QueueReader reader = new QueueReader(index, "MyGroup");
+		QueueNak nak = new QueueNak(reader);
+		nak.setWindow(1000);
+		nak.setTimeout(300);
+		nak.setMaxRetry(5);
+		Map<Long, String> expected = new HashMap<Long, String>();
+		for(int i=0; i<count; i++){
+			long offset = reader.read().offset;
+			nak.addNak(offset, i%2==0? null : 2);
+			if(i%5 == 0){
+				nak.removeNak(offset); //acked
+			} else {
+				expected.put(offset, "" + i);
+			}
+		}
+		nak.close();
+		reader.close();
+		writer.close();
+		index.close();
+		
+		index = new Index(dir);
+		reader = new QueueReader(index, "MyGroup");
+		nak = new QueueNak(reader);
+		check(nak.getWindow() == 1000 && nak.getTimeout() == 300 && nak.getMaxRetry() == 5, "settings not reloaded");
+		check(nak.size() == expected.size(), "size=" + nak.size() + ", expected " + expected.size());
+		Iterator<NakRecord> iter = nak.iterator();
+		while(iter.hasNext()){
+			NakRecord record = iter.next();
+			check(expected.containsKey(record.offset), "offset " + record.offset + " not expected");
+			int i = Integer.valueOf(expected.get(record.offset));
+			check(record.retryCount == (i%2==0? 1 : 3), "retryCount of " + i + ": " + record.retryCount);
+		}
+		
+		long deadline = System.currentTimeMillis() + 5000;
+		while(!expected.isEmpty() && System.currentTimeMillis() < deadline){
+			TimeoutMessage timeout = nak.pollTimeoutMessage();
+			if(timeout == null){
+				Thread.sleep(50);
+				continue;
+			}
+			String id = expected.remove(timeout.nakRecord.offset);
+			check(id != null && id.equals(timeout.diskMessage.id), "redelivered " + timeout.nakRecord.offset);
+		}
+		check(expected.isEmpty(), expected.size() + " records not redelivered");
+		check(nak.size() == 0, "size after redelivery=" + nak.size());
+		
+		nak.close();
+		reader.close();
+		index.close();
+		FileKit.deleteFile(dir);
+		System.out.println("QueueNakReloadTest OK");
+	}
+	
+	static void check(boolean ok, String message){
+		if(!ok) throw new IllegalStateException(message);
+	}
+}
@@ -0,0 +1,103 @@
+package io.zbus.unittests.mq.disk;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.zbus.kit.FileKit;
+import io.zbus.mq.disk.DiskMessage;
+import io.zbus.mq.disk.Index;
+import io.zbus.mq.disk.QueueNak;
+import io.zbus.mq.disk.QueueNak.NakRecord;
+import io.zbus.mq.disk.QueueNak.TimeoutListener;
+import io.zbus.mq.disk.QueueReader;
+import io.zbus.mq.disk.QueueWriter;
+
+/**
+ * Window of 100k records: NAK file grows beyond the initial 1000 entries, survives reopen,
+ * and every record is redelivered once by the timer wheel
+ */
+public class QueueNakWindowTest {
+	
+	public static void main(String[] args) throws Exception { 
+		File dir = new File("/tmp/QueueNakWindowTest");
+		FileKit.deleteFile(dir);
+		int count = 100000;
+		
+		Index index = new Index(dir);
+		QueueWriter writer = new QueueWriter(index);
+		for(int i=0; i<count; i+=100){
+			DiskMessage[] batch = new DiskMessage[100];
+			for(int j=0; j<batch.length; j++){
+				batch[j] = IndexUpgradeTest.message(i+j);
+			}
+			writer.write(batch);
+		}
+		QueueReader reader = new QueueReader(index, "MyGroup");
+		QueueNak nak = new QueueNak(reader);
+		nak.setWindow(count);
+		nak.setTimeout(1000);
+		long[] offsets = new long[count];
+		for(int i=0; i<count; i++){
+			offsets[i] = reader.read().offset;
+			nak.addNak(offsets[i], null);
+		}
+		check(nak.size() == count, "size=" + nak.size());
+		File nakFile = new File(reader.getReaderDir(), "MyGroup" + Index.NakSuffix);
+		check(nakFile.length() >= (long)count * NakRecord.Size, "nak file not grown: " + nakFile.length());
+		nak.close();
+		reader.close();
+		
+		reader = new QueueReader(index, "MyGroup");
+		nak = new QueueNak(reader);
+		check(nak.size() == count, "size after reopen=" + nak.size());
+		check(nak.remaining() == 0, "remaining=" + nak.remaining());
+		
+		final AtomicInteger notified = new AtomicInteger();
+		nak.setTimeoutListener(new TimeoutListener() {
+			@Override
+			public void onTimeout(QueueNak queueNak) {
+				notified.incrementAndGet();
+			}
+		});
+		BitSet redelivered = new BitSet(count);
+		int polled = 0;
+		long deadline = System.currentTimeMillis() + 10000;
+		while(polled < count && System.currentTimeMillis() < deadline){
+			NakRecord record = nak.pollTimeoutNak();
+			if(record == null){
+				Thread.sleep(20);
+				continue;
+			}
+			int i = indexOf(offsets, record.offset);
+			check(i >= 0 && !redelivered.get(i), "offset " + record.offset + " redelivered twice or unknown");
+			redelivered.set(i);
+			polled++;
+		}
+		check(polled == count, polled + " of " + count + " redelivered");
+		check(notified.get() > 0, "timeout listener not notified");
+		check(nak.size() == 0 && nak.pollTimeoutNak() == null, "records left");
+		
+		nak.close();
+		reader.close();
+		writer.close();
+		index.close();
+		FileKit.deleteFile(dir);
+		System.out.println("QueueNakWindowTest OK");
+	}
+	
+	static int indexOf(long[] offsets, long offset){
+		int low = 0, high = offsets.length-1;
+		while(low <= high){
+			int mid = (low + high) >>> 1;
+			if(offsets[mid] < offset) low = mid + 1;
+			else if(offsets[mid] > offset) high = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+	
+	static void check(boolean ok, String message){
+		if(!ok) throw new IllegalStateException(message);
+	}
+}
@@ -0,0 +1,72 @@
+package io.zbus.unittests.mq.disk;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import io.zbus.kit.FileKit;
+import io.zbus.mq.disk.DiskMessage;
+import io.zbus.mq.disk.Index;
+import io.zbus.mq.disk.QueueReader;
+import io.zbus.mq.disk.QueueWriter;
+
+/**
+ * Torn tail of the active block(record cut short or corrupted by crash) truncated to the last valid record on open,
+ * messageCount fixed, writes continue right after
+ */
+public class RecoveryTest {
+	
+	public static void main(String[] args) throws Exception { 
+		check(true);  //record cut short
+		check(false); //bytes of the last record corrupted
+		System.out.println("RecoveryTest OK");
+	}
+	
+	static void check(boolean truncate) throws Exception {
+		File dir = new File("/tmp/RecoveryTest");
+		FileKit.deleteFile(dir);
+		int count = 100;
+		
+		Index index = new Index(dir);
+		QueueWriter writer = new QueueWriter(index);
+		for(int i=0; i<count; i++){
+			writer.write(IndexUpgradeTest.message(i));
+		}
+		writer.close();
+		index.close();
+		
+		File blockFile = new File(new File(dir, Index.BlockDir), String.format("%020d%s", 0, Index.BlockSuffix));
+		RandomAccessFile file = new RandomAccessFile(blockFile, "rw");
+		if(truncate){
+			file.setLength(file.length() - 3);
+		} else {
+			file.seek(file.length() - 3);
+			file.write(new byte[]{ 'x', 'y', 'z' });
+		}
+		file.close();
+		
+		index = new Index(dir);
+		index.checkRecovered();
+		check(index.getMessageCount() == count-1, "messageCount=" + index.getMessageCount());
+		QueueReader reader = new QueueReader(index, "MyGroup");
+		check(reader.getMessageCount() == count-1, "reader messageCount=" + reader.getMessageCount());
+		for(int i=0; i<count-1; i++){
+			DiskMessage data = reader.read();
+			check(data != null && data.id.equals("" + i), "read " + i);
+		}
+		check(reader.read() == null, "torn record read");
+		
+		writer = new QueueWriter(index);
+		writer.write(IndexUpgradeTest.message(count));
+		DiskMessage data = reader.read();
+		check(data != null && data.id.equals("" + count) && data.messageNumber == count-1, "write after recovery");
+		
+		reader.close();
+		writer.close();
+		index.close();
+		FileKit.deleteFile(dir);
+	}
+	
+	static void check(boolean ok, String message){
+		if(!ok) throw new IllegalStateException(message);
+	}
+}